@@ -23,17 +23,32 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * AsciiHprofWriter produces hprof compatible text output for use with
- * third party tools such as PerfAnal.
+ * third party tools such as PerfAnal. If the sample counts are CPU
+ * time, the summary reports the time spent in milliseconds like hprof
+ * does for {@code cpu=times} rather than the number of samples. If
+ * the counts are the differences of two profiles, the percentages
+ * are the changes of share of each stack, see {@link HprofDiff}.
+ * Allocation sites, if any, follow in a section like the one hprof
+ * writes for {@code heap=sites}, ordered by bytes allocated. Lock
+ * sites, if any, are summarized in a table of the hottest locks,
+ * each followed by the stacks of its waiters and owners.
  */
 public final class AsciiHprofWriter {
 
     private final HprofData data;
     private final PrintWriter out;
 
+    private final Set<Integer> stackTraceIds = new HashSet<Integer>();
+    private int maxStackTraceId;
+
     /**
      * Writes the provided data to the specified stream.
      */
@@ -54,46 +69,208 @@ public final class AsciiHprofWriter {
         List<HprofData.Sample> samples
                 = new ArrayList<HprofData.Sample>(data.getSamples());
         Collections.sort(samples, SAMPLE_COMPARATOR);
-        int total = 0;
+        List<HprofData.AllocSite> sites
+                = new ArrayList<HprofData.AllocSite>(data.getAllocSites());
+        Collections.sort(sites, ALLOC_SITE_COMPARATOR);
+        Map<HprofData.StackTrace, Integer> stackTraceToId
+                = new HashMap<HprofData.StackTrace, Integer>();
+        long total = 0;
         for (HprofData.Sample sample : samples) {
-            HprofData.StackTrace stackTrace = sample.stackTrace;
-            int count = sample.count;
-            total += count;
-            out.printf("TRACE %d: (thread=%d)\n",
-                       stackTrace.stackTraceId,
-                       stackTrace.threadId);
-            for (StackTraceElement e : stackTrace.stackFrames) {
-                out.printf("\t%s\n", e);
+            total += sample.count;
+            writeTrace(sample.stackTrace, stackTraceToId);
+        }
+        for (HprofData.AllocSite site : sites) {
+            writeTrace(site.stackTrace, stackTraceToId);
+        }
+        List<HprofData.LockSite> lockSites
+                = new ArrayList<HprofData.LockSite>(data.getLockSites());
+        Collections.sort(lockSites, LOCK_SITE_COMPARATOR);
+        for (HprofData.LockSite site : lockSites) {
+            writeTrace(site.waiterStackTrace, stackTraceToId);
+            if (site.ownerStackTrace != null) {
+                writeTrace(site.ownerStackTrace, stackTraceToId);
             }
         }
+        boolean cpuTime = (data.getCountUnit() == HprofData.CountUnit.CPU_NANOS);
+        boolean delta = (data.getCountUnit() == HprofData.CountUnit.DELTA_PPM);
+        String title = cpuTime ? "CPU TIME (ms)" : delta ? "CPU SAMPLES DELTA (ppm)" : "CPU SAMPLES";
         Date now = new Date(data.getStartMillis());
         // "CPU SAMPLES BEGIN (total = 826) Wed Jul 21 12:03:46 2010"
-        out.printf("CPU SAMPLES BEGIN (total = %d) %ta %tb %td %tT %tY\n",
-                   total, now, now, now, now, now);
-        out.printf("rank   self  accum   count trace method\n");
+        out.printf("%s BEGIN (total = %d) %ta %tb %td %tT %tY\n",
+                   title, cpuTime ? nanosToMillis(total) : total, now, now, now, now, now);
+        out.printf(cpuTime
+                   ? "rank   self  accum    time trace method\n"
+                   : "rank   self  accum   count trace method\n");
         int rank = 0;
         double accum = 0;
         for (HprofData.Sample sample : samples) {
             rank++;
             HprofData.StackTrace stackTrace = sample.stackTrace;
-            int count = sample.count;
-            double self = (double)count/(double)total;
+            long count = sample.count;
+            double self = delta ? count / 1000000.0 : (double)count/(double)total;
             accum += self;
 
             // "   1 65.62% 65.62%     542 300302 java.lang.Long.parseLong"
             out.printf("% 4d% 6.2f%%% 6.2f%% % 7d % 5d %s.%s\n",
-                       rank, self*100, accum*100, count, stackTrace.stackTraceId,
+                       rank, self*100, accum*100,
+                       cpuTime ? nanosToMillis(count) : count,
+                       stackTraceToId.get(stackTrace),
                        stackTrace.stackFrames[0].getClassName(),
                        stackTrace.stackFrames[0].getMethodName());
         }
-        out.printf("CPU SAMPLES END\n");
+        out.printf("%s END\n", title);
+        if (!sites.isEmpty()) {
+            writeSites(sites, stackTraceToId, now);
+        }
+        if (!lockSites.isEmpty()) {
+            writeLocks(lockSites, stackTraceToId, now);
+        }
         out.flush();
     }
 
+    /**
+     * Writes a TRACE unless an equal stack trace was already written.
+     * The trace is numbered with the stack trace's own id unless
+     * another trace was already written with that id.
+     */
+    private void writeTrace(HprofData.StackTrace stackTrace,
+                            Map<HprofData.StackTrace, Integer> stackTraceToId) {
+        if (stackTraceToId.containsKey(stackTrace)) {
+            return;
+        }
+        int id = stackTrace.stackTraceId;
+        if (!stackTraceIds.add(id)) {
+            id = maxStackTraceId + 1;
+            stackTraceIds.add(id);
+        }
+        maxStackTraceId = Math.max(maxStackTraceId, id);
+        stackTraceToId.put(stackTrace, id);
+        out.printf("TRACE %d: (thread=%d)\n",
+                   id,
+                   stackTrace.threadId);
+        for (StackTraceElement e : stackTrace.getAnnotatedStackFrames()) {
+            out.printf("\t%s\n", e);
+        }
+    }
+
+    private void writeSites(List<HprofData.AllocSite> sites,
+                            Map<HprofData.StackTrace, Integer> stackTraceToId,
+                            Date now) {
+        long totalBytes = 0;
+        for (HprofData.AllocSite site : sites) {
+            totalBytes += site.bytes;
+        }
+        // "SITES BEGIN (ordered by allocated bytes) Wed Jul 21 12:03:46 2010"
+        out.printf("SITES BEGIN (ordered by allocated bytes) %ta %tb %td %tT %tY\n",
+                   now, now, now, now, now);
+        out.printf("rank   self  accum      bytes    objs  trace class\n");
+        int rank = 0;
+        double accum = 0;
+        for (HprofData.AllocSite site : sites) {
+            rank++;
+            double self = (totalBytes == 0) ? 0 : (double)site.bytes/(double)totalBytes;
+            accum += self;
+            // "   1 65.62% 65.62%    5242880     10 300302 <unknown>"
+            out.printf("% 4d% 6.2f%%% 6.2f%% % 10d % 7d % 6d %s\n",
+                       rank, self*100, accum*100,
+                       site.bytes, site.instances,
+                       stackTraceToId.get(site.stackTrace),
+                       (site.className == null) ? "<unknown>" : site.className);
+        }
+        out.printf("SITES END\n");
+    }
+
+    private static long nanosToMillis(long nanos) {
+        return (nanos + 500000) / 1000000;
+    }
+
     private static final Comparator<HprofData.Sample> SAMPLE_COMPARATOR
             = new Comparator<HprofData.Sample>() {
         public int compare(HprofData.Sample s1, HprofData.Sample s2) {
-            return s2.count - s1.count;
+            return (s1.count < s2.count) ? 1 : (s1.count == s2.count ? 0 : -1);
+        }
+    };
+
+    /**
+     * Writes the locks ordered by the number of samples of threads
+     * waiting for them, each followed by its sites, which are
+     * already ordered by count.
+     */
+    private void writeLocks(List<HprofData.LockSite> lockSites,
+                            Map<HprofData.StackTrace, Integer> stackTraceToId,
+                            Date now) {
+        Map<String, Lock> lockMap = new HashMap<String, Lock>();
+        long total = 0;
+        for (HprofData.LockSite site : lockSites) {
+            Lock lock = lockMap.get(site.lockName);
+            if (lock == null) {
+                lock = new Lock(site.lockName);
+                lockMap.put(site.lockName, lock);
+            }
+            lock.sites.add(site);
+            lock.count += site.count;
+            lock.waitMillis += site.waitMillis;
+            total += site.count;
+        }
+        List<Lock> locks = new ArrayList<Lock>(lockMap.values());
+        Collections.sort(locks, LOCK_COMPARATOR);
+        // "LOCKS BEGIN (total = 120) Wed Jul 21 12:03:46 2010"
+        out.printf("LOCKS BEGIN (total = %d) %ta %tb %td %tT %tY\n",
+                   total, now, now, now, now, now);
+        out.printf("rank   self  accum   count wait(ms) lock\n");
+        int rank = 0;
+        double accum = 0;
+        for (Lock lock : locks) {
+            rank++;
+            double self = (total == 0) ? 0 : (double)lock.count/(double)total;
+            accum += self;
+            // "   1 65.62% 65.62%      79      412 java.lang.Object@1b2c3d4"
+            out.printf("% 4d% 6.2f%%% 6.2f%% % 7d % 8d %s\n",
+                       rank, self*100, accum*100, lock.count, lock.waitMillis, lock.name);
+            for (HprofData.LockSite site : lock.sites) {
+                // "\t     42 waiter 300102 owner 300107"
+                out.printf("\t% 7d waiter %d owner %s\n",
+                           site.count,
+                           stackTraceToId.get(site.waiterStackTrace),
+                           (site.ownerStackTrace == null)
+                           ? "unknown"
+                           : stackTraceToId.get(site.ownerStackTrace).toString());
+            }
+        }
+        out.printf("LOCKS END\n");
+    }
+
+    /**
+     * The lock sites of one lock with their total counts.
+     */
+    private static final class Lock {
+        final String name;
+        final List<HprofData.LockSite> sites = new ArrayList<HprofData.LockSite>();
+        long count;
+        long waitMillis;
+
+        Lock(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final Comparator<Lock> LOCK_COMPARATOR = new Comparator<Lock>() {
+        public int compare(Lock l1, Lock l2) {
+            return (l1.count < l2.count) ? 1 : (l1.count == l2.count ? 0 : -1);
+        }
+    };
+
+    private static final Comparator<HprofData.LockSite> LOCK_SITE_COMPARATOR
+            = new Comparator<HprofData.LockSite>() {
+        public int compare(HprofData.LockSite s1, HprofData.LockSite s2) {
+            return (s1.count < s2.count) ? 1 : (s1.count == s2.count ? 0 : -1);
+        }
+    };
+
+    private static final Comparator<HprofData.AllocSite> ALLOC_SITE_COMPARATOR
+            = new Comparator<HprofData.AllocSite>() {
+        public int compare(HprofData.AllocSite s1, HprofData.AllocSite s2) {
+            return (s1.bytes < s2.bytes) ? 1 : (s1.bytes == s2.bytes ? 0 : -1);
         }
     };
 }
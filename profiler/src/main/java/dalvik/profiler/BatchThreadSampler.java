@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+/**
+ * A {@code ThreadSampler} that can sample many threads in a single
+ * operation, which lets the VM limit the stack depth while walking
+ * the stacks and bring all threads to a safepoint once per batch
+ * rather than once per thread. {@code SamplingProfiler} uses the
+ * batch entry point whenever its {@code ThreadSampler} implements
+ * this interface.
+ */
+public interface BatchThreadSampler extends ThreadSampler {
+
+    /**
+     * Stores in {@code stackTraces[i]} a stack trace for {@code
+     * threads[i]}, for each {@code i} from {@code from} inclusive to
+     * {@code to} exclusive, limited by the maximum depth specified by
+     * {@link #setDepth setDepth}, and in {@code threadStates[i]} the
+     * state of the thread when its stack was sampled. An element of
+     * {@code stackTraces} is set to null if no sample is available
+     * for the thread, as with {@link #getStackTrace getStackTrace}.
+     * The stack trace arrays may be reused by the next call to either
+     * method.
+     */
+    public void getStackTraces(Thread[] threads, int from, int to,
+                               StackTraceElement[][] stackTraces,
+                               Thread.State[] threadStates);
+}
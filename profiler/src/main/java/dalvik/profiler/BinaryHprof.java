@@ -74,7 +74,64 @@ public final class BinaryHprof {
         HEAP_DUMP_SEGMENT(0x1c, -0),
         HEAP_DUMP_END(0x2c, 0),
         CPU_SAMPLES(0x0d, -(4 + 4)),
-        CONTROL_SETTINGS(0x0e, 4 + 2);
+        CONTROL_SETTINGS(0x0e, 4 + 2),
+
+        /**
+         * Non-standard record of a named profiler property whose key
+         * and value are given as string ids. Other hprof readers
+         * skip it as an unknown record.
+         */
+        PROPERTY(0xf0, ID_SIZE + ID_SIZE),
+
+        /**
+         * Non-standard variant of CPU_SAMPLES with a 64-bit total and
+         * 64-bit counts, written instead of CPU_SAMPLES when a count
+         * does not fit in 32 bits.
+         */
+        CPU_SAMPLES_64(0xf1, -(8 + 4)),
+
+        /**
+         * Non-standard variant of ALLOC_SITES with 64-bit byte and
+         * instance counts for each site, written instead of
+         * ALLOC_SITES when a count does not fit in 32 bits.
+         */
+        ALLOC_SITES_64(0xf2, -(2 + 4 + 4 + 4 + 8 + 8 + 4)),
+
+        /**
+         * Non-standard variant of HEAP_SUMMARY with 64-bit live
+         * bytes and instances, written instead of HEAP_SUMMARY when
+         * the heap holds more than 32 bits worth of either.
+         */
+        HEAP_SUMMARY_64(0xf3, 8 + 8 + 8 + 8),
+
+        /**
+         * Non-standard record of lock sites. Each site gives the
+         * lock name as a string id, the stack trace ids of the
+         * waiting thread and of the lock owner, zero if unknown, and
+         * 64-bit sample count and wait time in milliseconds.
+         */
+        LOCK_SITES(0xf4, -4),
+
+        /**
+         * Non-standard record of consecutive samples of one thread,
+         * giving the thread serial number and the number of samples
+         * followed by the samples encoded as for a {@link Timeline}.
+         * Sample times are relative to the record's time, which is
+         * the offset of the first sample from the start time in
+         * microseconds.
+         */
+        TIMELINE(0xf5, -(4 + 4)),
+
+        /**
+         * Non-standard record giving the 64-bit offset from the start
+         * time in microseconds of the record that follows it, whose
+         * own time holds only the low 32 bits. Written before a heap
+         * summary or timeline record whose time is too far from that
+         * of the previous one of its kind for readers to extend the
+         * 32-bit time, which is otherwise taken to be the time
+         * nearest to the previous one.
+         */
+        RECORD_TIME_64(0xf6, 8);
 
         public final byte tag;
 
@@ -134,6 +191,44 @@ public final class BinaryHprof {
         }
     }
 
+    /**
+     * Keys of the PROPERTY records understood by the
+     * BinaryHprofReader and BinaryHprofWriter.
+     */
+    public static enum Property {
+        INTERVAL_MICROS("interval-micros"),
+        TICKS("ticks"),
+        MISSED_TICKS("missed-ticks"),
+        MAX_COUNT_ERROR("max-count-error"),
+        COUNT_UNIT("count-unit"),
+        EFFECTIVE_INTERVAL_MICROS("effective-interval-micros"),
+        ALLOC_INTERVAL_BYTES("alloc-interval-bytes"),
+        TRIGGER_REASON("trigger-reason");
+
+        public final String key;
+
+        private Property(String key) {
+            this.key = key;
+        }
+
+        private static final Map<String, Property> KEY_TO_PROPERTY
+                = new HashMap<String, Property>();
+
+        static {
+            for (Property v : Property.values()) {
+                KEY_TO_PROPERTY.put(v.key, v);
+            }
+        }
+
+        /**
+         * Returns the property for the given key, or null if the
+         * key is unknown.
+         */
+        public static Property get(String key) {
+            return KEY_TO_PROPERTY.get(key);
+        }
+    }
+
     public static enum ControlSettings {
         ALLOC_TRACES(0x01),
         CPU_SAMPLING(0x02);
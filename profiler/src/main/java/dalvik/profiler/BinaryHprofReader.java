@@ -21,6 +21,7 @@ import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -55,8 +56,8 @@ public final class BinaryHprofReader {
      */
     private String version;
 
-    private final Map<HprofData.StackTrace, int[]> stackTraces
-            = new HashMap<HprofData.StackTrace, int[]>();
+    private final Map<HprofData.StackTrace, long[]> stackTraces
+            = new HashMap<HprofData.StackTrace, long[]>();
 
     private final HprofData hprofData = new HprofData(stackTraces);
 
@@ -67,6 +68,33 @@ public final class BinaryHprofReader {
     private final Map<Integer, HprofData.StackTrace> idToStackTrace
             = new HashMap<Integer, HprofData.StackTrace>();
 
+    /**
+     * The first of each set of equal stack traces, which duplicates
+     * share so that their counts are coalesced.
+     */
+    private final Map<HprofData.StackTrace, HprofData.StackTrace> canonicalStackTraces
+            = new HashMap<HprofData.StackTrace, HprofData.StackTrace>();
+
+    /**
+     * Offset from the start time in microseconds of the last heap
+     * summary, used to extend the 32-bit record times.
+     */
+    private long heapSummaryMicros;
+
+    /**
+     * Offset from the start time in microseconds of the last
+     * timeline record, used to extend the 32-bit record times.
+     */
+    private long timelineMicros;
+
+    /**
+     * Exact offset from the start time in microseconds of the next
+     * record given by a RECORD_TIME_64 record, used instead of
+     * extending its 32-bit time if {@link #hasRecordMicros64}.
+     */
+    private long recordMicros64;
+    private boolean hasRecordMicros64;
+
     /**
      * Creates a BinaryHprofReader around the specified {@code
      * inputStream}
@@ -173,6 +201,14 @@ public final class BinaryHprofReader {
         if (TRACE) {
             System.out.println("hprofTag=" + hprofTag);
         }
+        if (hasRecordMicros64
+                && hprofTag != BinaryHprof.Tag.HEAP_SUMMARY
+                && hprofTag != BinaryHprof.Tag.HEAP_SUMMARY_64
+                && hprofTag != BinaryHprof.Tag.TIMELINE) {
+            throw new MalformedHprofException("expected a heap summary or timeline record"
+                                              + " after RECORD_TIME_64 but received "
+                                              + hprofTag);
+        }
         if (hprofTag == null) {
             skipRecord(hprofTag, recordLength);
             return true;
@@ -186,6 +222,10 @@ public final class BinaryHprofReader {
                 parseControlSettings();
                 return true;
 
+            case PROPERTY:
+                parseProperty();
+                return true;
+
             case STRING_IN_UTF8:
                 parseStringInUtf8(recordLength);
                 return true;
@@ -208,12 +248,39 @@ public final class BinaryHprofReader {
                 return true;
 
             case CPU_SAMPLES:
-                parseCpuSamples(recordLength);
+                parseCpuSamples(recordLength, false);
+                return true;
+            case CPU_SAMPLES_64:
+                parseCpuSamples(recordLength, true);
                 return true;
 
-            case UNLOAD_CLASS:
             case ALLOC_SITES:
+                parseAllocSites(recordLength, false);
+                return true;
+            case ALLOC_SITES_64:
+                parseAllocSites(recordLength, true);
+                return true;
+
             case HEAP_SUMMARY:
+                parseHeapSummary(timeDeltaInMicroseconds, false);
+                return true;
+            case HEAP_SUMMARY_64:
+                parseHeapSummary(timeDeltaInMicroseconds, true);
+                return true;
+
+            case LOCK_SITES:
+                parseLockSites(recordLength);
+                return true;
+
+            case TIMELINE:
+                parseTimeline(timeDeltaInMicroseconds, recordLength);
+                return true;
+
+            case RECORD_TIME_64:
+                parseRecordTime64(timeDeltaInMicroseconds);
+                return true;
+
+            case UNLOAD_CLASS:
             case HEAP_DUMP:
             case HEAP_DUMP_SEGMENT:
             case HEAP_DUMP_END:
@@ -245,6 +312,52 @@ public final class BinaryHprofReader {
         hprofData.setDepth(depth);
     }
 
+    private void parseProperty() throws IOException {
+        String key = readString();
+        String value = readString();
+        if (TRACE) {
+            System.out.println("\tkey=" + key);
+            System.out.println("\tvalue=" + value);
+        }
+        BinaryHprof.Property property = BinaryHprof.Property.get(key);
+        if (property == null) {
+            // properties from newer writers are ignored
+            return;
+        }
+        try {
+            switch (property) {
+                case INTERVAL_MICROS:
+                    hprofData.setIntervalMicros(Long.parseLong(value));
+                    return;
+                case EFFECTIVE_INTERVAL_MICROS:
+                    hprofData.setEffectiveIntervalMicros(Long.parseLong(value));
+                    return;
+                case TICKS:
+                    hprofData.setTicks(Long.parseLong(value));
+                    return;
+                case MISSED_TICKS:
+                    hprofData.setMissedTicks(Long.parseLong(value));
+                    return;
+                case MAX_COUNT_ERROR:
+                    hprofData.setMaxCountError(Long.parseLong(value));
+                    return;
+                case COUNT_UNIT:
+                    hprofData.setCountUnit(HprofData.CountUnit.valueOf(value));
+                    return;
+                case ALLOC_INTERVAL_BYTES:
+                    hprofData.setAllocIntervalBytes(Long.parseLong(value));
+                    return;
+                case TRIGGER_REASON:
+                    hprofData.setTriggerReason(value);
+                    return;
+            }
+        } catch (IllegalArgumentException e) {
+            // includes NumberFormatException
+            throw new MalformedHprofException("Bad value for property " + key, e);
+        }
+        throw new IllegalStateException(property.toString());
+    }
+
     private void parseStringInUtf8(int recordLength) throws IOException {
         int stringId = in.readInt();
         byte[] bytes = new byte[recordLength - BinaryHprof.ID_SIZE];
@@ -401,22 +514,43 @@ public final class BinaryHprofReader {
             stackFrames[i] = stackFrame;
         }
 
-        HprofData.StackTrace stackTrace
-                = new HprofData.StackTrace(stackTraceId, threadId, stackFrames);
-        if (strict) {
-            hprofData.addStackTrace(stackTrace, new int[1]);
+        // a synthetic leaf frame holds the thread state, if known,
+        // and synthetic root frames hold the labels, if any
+        Thread.State threadState = null;
+        if (frames > 0) {
+            threadState = HprofData.threadStateOf(stackFrames[0]);
+        }
+        int from = (threadState == null) ? 0 : 1;
+        int to = frames - HprofData.countLabelFrames(stackFrames, frames);
+        Labels labels;
+        try {
+            labels = HprofData.labelsOf(stackFrames, to, frames);
+        } catch (IllegalArgumentException e) {
+            throw new MalformedHprofException("Bad labels in stack trace " + stackTraceId, e);
+        }
+        if (from != 0 || to != frames) {
+            stackFrames = Arrays.copyOfRange(stackFrames, from, to);
+        }
+
+        HprofData.StackTrace stackTrace = new HprofData.StackTrace(stackTraceId, threadId,
+                                                                   threadState, labels,
+                                                                   stackFrames);
+        // Stack traces are only added to hprofData once they are
+        // seen in CPU_SAMPLES, since ALLOC_SITES may also refer to
+        // them.
+        HprofData.StackTrace canonical = canonicalStackTraces.get(stackTrace);
+        if (canonical == null) {
+            canonicalStackTraces.put(stackTrace, stackTrace);
+        } else if (strict) {
+            throw new MalformedHprofException("Duplicate stack trace " + stackTraceId
+                                              + " of stack trace " + canonical.stackTraceId);
         } else {
             // The RI can have duplicate stacks, presumably they
             // have a minor race if two samples with the same
             // stack are taken around the same time. if we have a
-            // duplicate, just skip adding it to hprofData, but
-            // register it locally in idToStackFrame. if it seen
-            // in CPU_SAMPLES, we will find a StackTrace is equal
-            // to the first, so they will share a countCell.
-            int[] countCell = stackTraces.get(stackTrace);
-            if (countCell == null) {
-                hprofData.addStackTrace(stackTrace, new int[1]);
-            }
+            // duplicate, register the first under both ids so
+            // that they share a countCell.
+            stackTrace = canonical;
         }
 
         HprofData.StackTrace old = idToStackTrace.put(stackTraceId, stackTrace);
@@ -426,23 +560,28 @@ public final class BinaryHprofReader {
 
     }
 
-    private void parseCpuSamples(int recordLength) throws IOException {
-        int totalSamples = in.readInt();
+    /**
+     * Parses a CPU_SAMPLES record, or a CPU_SAMPLES_64 record with
+     * 64-bit counts if {@code wide} is true.
+     */
+    private void parseCpuSamples(int recordLength, boolean wide) throws IOException {
+        int countSize = wide ? 8 : 4;
+        long totalSamples = wide ? in.readLong() : in.readInt();
         int samplesCount = in.readInt();
         if (TRACE) {
             System.out.println("\ttotalSamples=" + totalSamples);
             System.out.println("\tsamplesCount=" + samplesCount);
         }
-        int expectedLength = 4 + 4 + (samplesCount * (4 + 4));
+        int expectedLength = countSize + 4 + (samplesCount * (countSize + 4));
         if (recordLength != expectedLength) {
             throw new MalformedHprofException("Expected CPU samples record of size "
                                               + expectedLength
                                               + " based on number of samples but header "
                                               + "specified a length of  " + recordLength);
         }
-        int total = 0;
+        long total = 0;
         for (int i = 0; i < samplesCount; i++) {
-            int count = in.readInt();
+            long count = wide ? in.readLong() : in.readInt();
             int stackTraceId = in.readInt();
             if (TRACE) {
                 System.out.println("\tcount=" + count);
@@ -456,8 +595,11 @@ public final class BinaryHprofReader {
                 throw new MalformedHprofException("Zero sample count for stack trace "
                                                   + stackTrace);
             }
-            int[] countCell = stackTraces.get(stackTrace);
-            if (strict) {
+            long[] countCell = stackTraces.get(stackTrace);
+            if (countCell == null) {
+                countCell = new long[1];
+                hprofData.addStackTrace(stackTrace, countCell);
+            } else if (strict) {
                 if (countCell[0] != 0) {
                     throw new MalformedHprofException("Setting sample count of stack trace "
                                                       + stackTrace + " to " + count
@@ -477,4 +619,264 @@ public final class BinaryHprofReader {
                                               + " samples but saw " + total);
         }
     }
+
+    private void parseRecordTime64(int timeDeltaInMicroseconds) throws IOException {
+        long micros = in.readLong();
+        if (TRACE) {
+            System.out.println("\tmicros=" + micros);
+        }
+        if ((int) micros != timeDeltaInMicroseconds) {
+            throw new MalformedHprofException("RECORD_TIME_64 time " + micros
+                                              + " does not match record time "
+                                              + timeDeltaInMicroseconds);
+        }
+        recordMicros64 = micros;
+        hasRecordMicros64 = true;
+    }
+
+    /**
+     * Returns the offset from the start time in microseconds of a
+     * record with the specified 32-bit time. This is the time given
+     * by a preceding RECORD_TIME_64 record if any, otherwise the
+     * time nearest to {@code previousMicros}, the time of the
+     * previous record of its kind.
+     */
+    private long recordMicros(long previousMicros, int timeDeltaInMicroseconds)
+            throws IOException {
+        if (hasRecordMicros64) {
+            hasRecordMicros64 = false;
+            if ((int) recordMicros64 != timeDeltaInMicroseconds) {
+                throw new MalformedHprofException("record time " + timeDeltaInMicroseconds
+                                                  + " does not match RECORD_TIME_64 time "
+                                                  + recordMicros64);
+            }
+            return recordMicros64;
+        }
+        return previousMicros + (timeDeltaInMicroseconds - (int) previousMicros);
+    }
+
+    /**
+     * Parses a HEAP_SUMMARY record, or a HEAP_SUMMARY_64 record with
+     * 64-bit live counts if {@code wide} is true. Record times only
+     * have 32 bits, so unless given by a preceding RECORD_TIME_64
+     * record each is taken to be the time nearest to that of the
+     * previous heap summary, which is exact as long as consecutive
+     * summaries are less than about 35 minutes apart.
+     */
+    private void parseHeapSummary(int timeDeltaInMicroseconds, boolean wide) throws IOException {
+        long liveBytes = wide ? in.readLong() : readUnsignedInt();
+        long liveInstances = wide ? in.readLong() : readUnsignedInt();
+        long allocatedBytes = in.readLong();
+        long allocatedInstances = in.readLong();
+        heapSummaryMicros = recordMicros(heapSummaryMicros, timeDeltaInMicroseconds);
+        if (TRACE) {
+            System.out.println("\theapSummaryMicros=" + heapSummaryMicros);
+            System.out.println("\tliveBytes=" + liveBytes);
+            System.out.println("\tliveInstances=" + liveInstances);
+            System.out.println("\tallocatedBytes=" + allocatedBytes);
+            System.out.println("\tallocatedInstances=" + allocatedInstances);
+        }
+        long timeMillis = hprofData.getStartMillis() + heapSummaryMicros / 1000;
+        try {
+            hprofData.addHeapSummary(new HprofData.HeapSummary(timeMillis,
+                                                               liveBytes, liveInstances,
+                                                               allocatedBytes,
+                                                               allocatedInstances));
+        } catch (IllegalArgumentException e) {
+            throw new MalformedHprofException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Parses an ALLOC_SITES record, or an ALLOC_SITES_64 record with
+     * 64-bit site counts if {@code wide} is true. Live bytes and
+     * objects are not kept.
+     */
+    private void parseAllocSites(int recordLength, boolean wide) throws IOException {
+        int countSize = wide ? 8 : 4;
+        short flags = in.readShort();
+        float cutoffRatio = in.readFloat();
+        long totalLiveBytes = readUnsignedInt();
+        long totalLiveInstances = readUnsignedInt();
+        long totalBytes = in.readLong();
+        long totalInstances = in.readLong();
+        int sitesCount = in.readInt();
+        if (TRACE) {
+            System.out.println("\tflags=" + Integer.toHexString(flags));
+            System.out.println("\tcutoffRatio=" + cutoffRatio);
+            System.out.println("\ttotalLiveBytes=" + totalLiveBytes);
+            System.out.println("\ttotalLiveInstances=" + totalLiveInstances);
+            System.out.println("\ttotalBytes=" + totalBytes);
+            System.out.println("\ttotalInstances=" + totalInstances);
+            System.out.println("\tsitesCount=" + sitesCount);
+        }
+        long expectedLength = (2 + 4 + 4 + 4 + 8 + 8 + 4)
+                + (long) sitesCount * (1 + 4 + 4 + 4 * countSize);
+        if (recordLength != expectedLength) {
+            throw new MalformedHprofException("Expected alloc sites record of size "
+                                              + expectedLength
+                                              + " based on number of sites but header "
+                                              + "specified a length of  " + recordLength);
+        }
+        long bytesTotal = 0;
+        long instancesTotal = 0;
+        for (int i = 0; i < sitesCount; i++) {
+            byte arrayIndicator = in.readByte();
+            int classId = in.readInt();
+            int stackTraceId = in.readInt();
+            long liveBytes = wide ? in.readLong() : readUnsignedInt();
+            long liveInstances = wide ? in.readLong() : readUnsignedInt();
+            long bytes = wide ? in.readLong() : readUnsignedInt();
+            long instances = wide ? in.readLong() : readUnsignedInt();
+            if (TRACE) {
+                System.out.println("\tarrayIndicator=" + arrayIndicator);
+                System.out.println("\tclassId=" + classId);
+                System.out.println("\tstackTraceId=" + stackTraceId);
+                System.out.println("\tliveBytes=" + liveBytes);
+                System.out.println("\tliveInstances=" + liveInstances);
+                System.out.println("\tbytes=" + bytes);
+                System.out.println("\tinstances=" + instances);
+            }
+            String className = null;
+            if (classId != 0) {
+                className = idToClassName.get(classId);
+                if (className == null) {
+                    throw new MalformedHprofException("Unknown class id " + classId);
+                }
+            }
+            HprofData.StackTrace stackTrace = idToStackTrace.get(stackTraceId);
+            if (stackTrace == null) {
+                throw new MalformedHprofException("Unknown stack trace id " + stackTraceId);
+            }
+            long[] allocCell = hprofData.getAllocCell(stackTrace, className);
+            if (allocCell == null) {
+                allocCell = new long[2];
+                hprofData.addAllocSite(stackTrace, className, allocCell);
+            } else if (strict) {
+                throw new MalformedHprofException("Duplicate alloc site for class "
+                                                  + className + " and stack trace "
+                                                  + stackTrace);
+            }
+            // Coalesce duplicate sites, as for stack traces.
+            allocCell[0] += bytes;
+            allocCell[1] += instances;
+            bytesTotal += bytes;
+            instancesTotal += instances;
+        }
+        if (strict && (totalBytes != bytesTotal || totalInstances != instancesTotal)) {
+            throw new MalformedHprofException("Expected a total of " + totalBytes
+                                              + " bytes and " + totalInstances
+                                              + " objects but saw " + bytesTotal
+                                              + " and " + instancesTotal);
+        }
+    }
+
+    /**
+     * Parses a LOCK_SITES record.
+     */
+    private void parseLockSites(int recordLength) throws IOException {
+        int sitesCount = in.readInt();
+        if (TRACE) {
+            System.out.println("\tsitesCount=" + sitesCount);
+        }
+        long expectedLength = 4 + (long) sitesCount * (BinaryHprof.ID_SIZE + 4 + 4 + 8 + 8);
+        if (recordLength != expectedLength) {
+            throw new MalformedHprofException("Expected lock sites record of size "
+                                              + expectedLength
+                                              + " based on number of sites but header "
+                                              + "specified a length of  " + recordLength);
+        }
+        for (int i = 0; i < sitesCount; i++) {
+            String lockName = readString();
+            int waiterId = in.readInt();
+            int ownerId = in.readInt();
+            long count = in.readLong();
+            long waitMillis = in.readLong();
+            if (TRACE) {
+                System.out.println("\tlockName=" + lockName);
+                System.out.println("\twaiterId=" + waiterId);
+                System.out.println("\townerId=" + ownerId);
+                System.out.println("\tcount=" + count);
+                System.out.println("\twaitMillis=" + waitMillis);
+            }
+            if (lockName == null) {
+                throw new MalformedHprofException("Missing lock name");
+            }
+            if (count < 0 || waitMillis < 0) {
+                throw new MalformedHprofException("Negative count for lock " + lockName);
+            }
+            HprofData.StackTrace waiter = idToStackTrace.get(waiterId);
+            if (waiter == null) {
+                throw new MalformedHprofException("Unknown stack trace id " + waiterId);
+            }
+            HprofData.StackTrace owner = null;
+            if (ownerId != 0) {
+                owner = idToStackTrace.get(ownerId);
+                if (owner == null) {
+                    throw new MalformedHprofException("Unknown stack trace id " + ownerId);
+                }
+            }
+            long[] lockCell = hprofData.getLockCell(lockName, waiter, owner);
+            if (lockCell == null) {
+                lockCell = new long[2];
+                hprofData.addLockSite(lockName, waiter, owner, lockCell);
+            } else if (strict) {
+                throw new MalformedHprofException("Duplicate lock site for lock " + lockName
+                                                  + " and stack trace " + waiter);
+            }
+            // Coalesce duplicate sites, as for stack traces.
+            lockCell[0] += count;
+            lockCell[1] += waitMillis;
+        }
+    }
+
+    /**
+     * Parses a TIMELINE record, appending its samples to the
+     * timeline of its thread. As for heap summaries, unless given by
+     * a preceding RECORD_TIME_64 record each record time is taken to
+     * be the time nearest to that of the previous timeline record.
+     */
+    private void parseTimeline(int timeDeltaInMicroseconds, int recordLength)
+            throws IOException {
+        int threadId = in.readInt();
+        int samplesCount = in.readInt();
+        timelineMicros = recordMicros(timelineMicros, timeDeltaInMicroseconds);
+        if (TRACE) {
+            System.out.println("\ttimelineMicros=" + timelineMicros);
+            System.out.println("\tthreadId=" + threadId);
+            System.out.println("\tsamplesCount=" + samplesCount);
+        }
+        byte[] bytes = new byte[recordLength - BinaryHprof.Tag.TIMELINE.minimumSize];
+        readFully(in, bytes);
+        Timeline timeline;
+        try {
+            timeline = new Timeline(bytes, samplesCount);
+        } catch (IllegalArgumentException e) {
+            throw new MalformedHprofException("Bad timeline of thread " + threadId, e);
+        }
+        long startMicros = hprofData.getStartMillis() * 1000 + timelineMicros;
+        Timeline.Cursor cursor = timeline.cursor();
+        while (cursor.next()) {
+            int stackTraceId = cursor.getStackTraceId();
+            HprofData.StackTrace stackTrace = idToStackTrace.get(stackTraceId);
+            if (stackTrace == null) {
+                throw new MalformedHprofException("Unknown stack trace id " + stackTraceId);
+            }
+            if (stackTrace.threadId != threadId) {
+                throw new MalformedHprofException("Stack trace " + stackTraceId
+                                                  + " of thread " + stackTrace.threadId
+                                                  + " in timeline of thread " + threadId);
+            }
+            try {
+                hprofData.addTimelineSample(threadId, startMicros + cursor.getTimeMicros(),
+                                            stackTrace.stackTraceId);
+            } catch (IllegalArgumentException e) {
+                throw new MalformedHprofException(e.getMessage(), e);
+            }
+        }
+    }
+
+    private long readUnsignedInt() throws IOException {
+        return in.readInt() & 0xffffffffL;
+    }
 }
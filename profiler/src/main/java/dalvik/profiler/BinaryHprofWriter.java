@@ -19,7 +19,12 @@ package dalvik.profiler;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -38,6 +43,28 @@ public final class BinaryHprofWriter {
     private final Map<StackTraceElement, Integer> stackFrameToId
             = new HashMap<StackTraceElement, Integer>();
 
+    /**
+     * Ids of the stack traces written, so that stack traces shared by
+     * samples and allocation sites are only written once.
+     */
+    private final Map<HprofData.StackTrace, Integer> stackTraceToId
+            = new HashMap<HprofData.StackTrace, Integer>();
+    private final Set<Integer> stackTraceIds = new HashSet<Integer>();
+    private int maxStackTraceId;
+
+    /**
+     * Time of the last heap summary written as an offset from the
+     * start time in microseconds, from which readers extend the
+     * 32-bit time of the next one.
+     */
+    private long heapSummaryMicros;
+
+    /**
+     * Time of the last timeline record written, as for {@link
+     * #heapSummaryMicros}.
+     */
+    private long timelineMicros;
+
     private final HprofData data;
     private final DataOutputStream out;
 
@@ -59,17 +86,44 @@ public final class BinaryHprofWriter {
 
             writeControlSettings(data.getFlags(), data.getDepth());
 
+            writeProperties();
+
             for (HprofData.ThreadEvent event : data.getThreadHistory()) {
                 writeThreadEvent(event);
             }
 
+            for (HprofData.HeapSummary heapSummary : data.getHeapSummaries()) {
+                writeHeapSummary(heapSummary);
+            }
+
             Set<HprofData.Sample> samples = data.getSamples();
-            int total = 0;
+            long total = 0;
+            boolean wide = false;
             for (HprofData.Sample sample : samples) {
                 total += sample.count;
+                wide |= sample.count != (int) sample.count;
                 writeStackTrace(sample.stackTrace);
             }
-            writeCpuSamples(total, samples);
+            if (wide || total != (int) total) {
+                writeCpuSamples64(total, samples);
+            } else {
+                writeCpuSamples((int) total, samples);
+            }
+
+            Set<HprofData.AllocSite> allocSites = data.getAllocSites();
+            if (!allocSites.isEmpty()) {
+                writeAllocSites(allocSites);
+            }
+
+            Set<HprofData.LockSite> lockSites = data.getLockSites();
+            if (!lockSites.isEmpty()) {
+                writeLockSites(lockSites);
+            }
+
+            Map<Integer, Timeline> timelines = data.getTimelines();
+            if (!timelines.isEmpty()) {
+                writeTimelines(timelines, samples);
+            }
 
         } finally {
             out.flush();
@@ -95,6 +149,49 @@ public final class BinaryHprofWriter {
         out.writeShort((short) depth);
     }
 
+    private void writeProperties() throws IOException {
+        if (data.getIntervalMicros() != 0) {
+            writeProperty(BinaryHprof.Property.INTERVAL_MICROS, data.getIntervalMicros());
+        }
+        if (data.getEffectiveIntervalMicros() != 0) {
+            writeProperty(BinaryHprof.Property.EFFECTIVE_INTERVAL_MICROS,
+                          data.getEffectiveIntervalMicros());
+        }
+        if (data.getTicks() != 0) {
+            writeProperty(BinaryHprof.Property.TICKS, data.getTicks());
+        }
+        if (data.getMissedTicks() != 0) {
+            writeProperty(BinaryHprof.Property.MISSED_TICKS, data.getMissedTicks());
+        }
+        if (data.getMaxCountError() != 0) {
+            writeProperty(BinaryHprof.Property.MAX_COUNT_ERROR, data.getMaxCountError());
+        }
+        if (data.getCountUnit() != HprofData.CountUnit.SAMPLES) {
+            writeProperty(BinaryHprof.Property.COUNT_UNIT, data.getCountUnit().name());
+        }
+        if (data.getAllocIntervalBytes() != 0) {
+            writeProperty(BinaryHprof.Property.ALLOC_INTERVAL_BYTES,
+                          data.getAllocIntervalBytes());
+        }
+        if (data.getTriggerReason() != null) {
+            writeProperty(BinaryHprof.Property.TRIGGER_REASON, data.getTriggerReason());
+        }
+    }
+
+    private void writeProperty(BinaryHprof.Property property, long value) throws IOException {
+        writeProperty(property, Long.toString(value));
+    }
+
+    private void writeProperty(BinaryHprof.Property property, String value) throws IOException {
+        int keyId = writeString(property.key);
+        int valueId = writeString(value);
+        writeRecordHeader(BinaryHprof.Tag.PROPERTY,
+                          0,
+                          BinaryHprof.Tag.PROPERTY.maximumSize);
+        writeId(keyId);
+        writeId(valueId);
+    }
+
     private void writeThreadEvent(HprofData.ThreadEvent e) throws IOException {
         switch (e.type) {
             case START:
@@ -141,6 +238,22 @@ public final class BinaryHprofWriter {
         out.writeInt(recordLength);
     }
 
+    /**
+     * Writes a RECORD_TIME_64 record for a record with the specified
+     * time if readers cannot extend its 32-bit time from the time of
+     * the previous record of its kind.
+     */
+    private void writeRecordTime64(long micros, long previousMicros) throws IOException {
+        long delta = micros - previousMicros;
+        if (delta == (int) delta) {
+            return;
+        }
+        writeRecordHeader(BinaryHprof.Tag.RECORD_TIME_64,
+                          (int) micros,
+                          BinaryHprof.Tag.RECORD_TIME_64.maximumSize);
+        out.writeLong(micros);
+    }
+
     private void writeId(int id) throws IOException {
         out.writeInt(id);
     }
@@ -184,26 +297,277 @@ public final class BinaryHprofWriter {
         out.writeInt(totalSamples);
         out.writeInt(samplesCount);
         for (HprofData.Sample sample : samples) {
-            out.writeInt(sample.count);
-            out.writeInt(sample.stackTrace.stackTraceId);
+            out.writeInt((int) sample.count);
+            out.writeInt(stackTraceToId.get(sample.stackTrace));
         }
     }
 
-    private void writeStackTrace(HprofData.StackTrace stackTrace) throws IOException {
-        int frames = stackTrace.stackFrames.length;
+    private void writeCpuSamples64(long totalSamples, Set<HprofData.Sample> samples)
+            throws IOException {
+        int samplesCount = samples.size();
+        writeRecordHeader(BinaryHprof.Tag.CPU_SAMPLES_64, 0, 8 + 4 + (samplesCount * (8 + 4)));
+        out.writeLong(totalSamples);
+        out.writeInt(samplesCount);
+        for (HprofData.Sample sample : samples) {
+            out.writeLong(sample.count);
+            out.writeInt(stackTraceToId.get(sample.stackTrace));
+        }
+    }
+
+    /**
+     * Writes a HEAP_SUMMARY record, or a HEAP_SUMMARY_64 record if
+     * the live counts do not fit in 32 bits. The record's time is
+     * the offset of the summary from the start time in microseconds,
+     * which only has 32 bits, so it is preceded by a RECORD_TIME_64
+     * record if it is 2^31 microseconds, about 35 minutes, or more
+     * from the previous summary, see {@link BinaryHprofReader}.
+     */
+    private void writeHeapSummary(HprofData.HeapSummary heapSummary) throws IOException {
+        long micros = (heapSummary.timeMillis - data.getStartMillis()) * 1000;
+        writeRecordTime64(micros, heapSummaryMicros);
+        heapSummaryMicros = micros;
+        boolean wide = heapSummary.liveBytes > MAX_U4 || heapSummary.liveInstances > MAX_U4;
+        BinaryHprof.Tag tag = wide ? BinaryHprof.Tag.HEAP_SUMMARY_64 : BinaryHprof.Tag.HEAP_SUMMARY;
+        writeRecordHeader(tag, (int) micros, tag.maximumSize);
+        writeCount(heapSummary.liveBytes, wide);
+        writeCount(heapSummary.liveInstances, wide);
+        out.writeLong(heapSummary.allocatedBytes);
+        out.writeLong(heapSummary.allocatedInstances);
+    }
+
+    /**
+     * Writes an ALLOC_SITES record ordered by bytes allocated, or
+     * an ALLOC_SITES_64 record if any count does not fit in the 32
+     * bits of ALLOC_SITES. Only allocations are recorded, so live
+     * bytes and objects are written as zero.
+     */
+    private void writeAllocSites(Set<HprofData.AllocSite> allocSites) throws IOException {
+        List<HprofData.AllocSite> sites = new ArrayList<HprofData.AllocSite>(allocSites);
+        Collections.sort(sites, ALLOC_SITE_COMPARATOR);
+        int sitesCount = sites.size();
+        int[] classIds = new int[sitesCount];
+        int[] stackTraceIds = new int[sitesCount];
+        long totalBytes = 0;
+        long totalInstances = 0;
+        boolean wide = false;
+        for (int i = 0; i < sitesCount; i++) {
+            HprofData.AllocSite site = sites.get(i);
+            classIds[i] = (site.className == null) ? 0 : writeLoadClass(site.className);
+            stackTraceIds[i] = writeStackTrace(site.stackTrace);
+            totalBytes += site.bytes;
+            totalInstances += site.instances;
+            wide |= site.bytes > MAX_U4 || site.instances > MAX_U4;
+        }
+        int countSize = wide ? 8 : 4;
+        BinaryHprof.Tag tag = wide ? BinaryHprof.Tag.ALLOC_SITES_64 : BinaryHprof.Tag.ALLOC_SITES;
+        writeRecordHeader(tag, 0, tag.minimumSize + sitesCount * (1 + 4 + 4 + 4 * countSize));
+        out.writeShort(ALLOC_SITES_SORTED_BY_ALLOCATION);
+        out.writeFloat(0); // no cutoff ratio
+        out.writeInt(0); // total live bytes
+        out.writeInt(0); // total live instances
+        out.writeLong(totalBytes);
+        out.writeLong(totalInstances);
+        out.writeInt(sitesCount);
+        for (int i = 0; i < sitesCount; i++) {
+            HprofData.AllocSite site = sites.get(i);
+            out.writeByte(0); // not known to be an array
+            out.writeInt(classIds[i]);
+            out.writeInt(stackTraceIds[i]);
+            writeCount(0, wide); // live bytes
+            writeCount(0, wide); // live instances
+            writeCount(site.bytes, wide);
+            writeCount(site.instances, wide);
+        }
+    }
+
+    private void writeCount(long count, boolean wide) throws IOException {
+        if (wide) {
+            out.writeLong(count);
+        } else {
+            out.writeInt((int) count);
+        }
+    }
+
+    /**
+     * Writes a LOCK_SITES record ordered by sample count.
+     */
+    private void writeLockSites(Set<HprofData.LockSite> lockSites) throws IOException {
+        List<HprofData.LockSite> sites = new ArrayList<HprofData.LockSite>(lockSites);
+        Collections.sort(sites, LOCK_SITE_COMPARATOR);
+        int sitesCount = sites.size();
+        int[] lockNameIds = new int[sitesCount];
+        int[] waiterIds = new int[sitesCount];
+        int[] ownerIds = new int[sitesCount];
+        for (int i = 0; i < sitesCount; i++) {
+            HprofData.LockSite site = sites.get(i);
+            lockNameIds[i] = writeString(site.lockName);
+            waiterIds[i] = writeStackTrace(site.waiterStackTrace);
+            ownerIds[i] = (site.ownerStackTrace == null) ? 0 : writeStackTrace(site.ownerStackTrace);
+        }
+        BinaryHprof.Tag tag = BinaryHprof.Tag.LOCK_SITES;
+        writeRecordHeader(tag, 0,
+                          tag.minimumSize + sitesCount * (BinaryHprof.ID_SIZE + 4 + 4 + 8 + 8));
+        out.writeInt(sitesCount);
+        for (int i = 0; i < sitesCount; i++) {
+            HprofData.LockSite site = sites.get(i);
+            writeId(lockNameIds[i]);
+            out.writeInt(waiterIds[i]);
+            out.writeInt(ownerIds[i]);
+            out.writeLong(site.count);
+            out.writeLong(site.waitMillis);
+        }
+    }
+
+    /**
+     * Writes the timelines as TIMELINE records of at most {@link
+     * #MAX_TIMELINE_RECORD_MICROS} each, ordered by the time of
+     * their first sample so that consecutive record times are
+     * usually close enough together for readers to extend them beyond
+     * 32 bits, and preceded by a RECORD_TIME_64 record when they are
+     * not. Stack trace ids are those written for the samples of the same
+     * thread.
+     */
+    private void writeTimelines(Map<Integer, Timeline> timelines, Set<HprofData.Sample> samples)
+            throws IOException {
+        Map<Long, HprofData.StackTrace> idToStackTrace = new HashMap<Long, HprofData.StackTrace>();
+        for (HprofData.Sample sample : samples) {
+            HprofData.StackTrace stackTrace = sample.stackTrace;
+            idToStackTrace.put(threadStackTraceKey(stackTrace.threadId, stackTrace.stackTraceId),
+                               stackTrace);
+        }
+        long startMicros = data.getStartMillis() * 1000;
+        List<TimelineRecord> records = new ArrayList<TimelineRecord>();
+        for (Map.Entry<Integer, Timeline> e : timelines.entrySet()) {
+            int threadId = e.getKey();
+            TimelineRecord record = null;
+            Timeline.Cursor cursor = e.getValue().cursor();
+            while (cursor.next()) {
+                long timeMicros = cursor.getTimeMicros();
+                if (record == null
+                        || timeMicros - record.startMicros > MAX_TIMELINE_RECORD_MICROS) {
+                    record = new TimelineRecord(threadId, timeMicros);
+                    records.add(record);
+                }
+                int stackTraceId = cursor.getStackTraceId();
+                HprofData.StackTrace stackTrace
+                        = idToStackTrace.get(threadStackTraceKey(threadId, stackTraceId));
+                if (stackTrace == null) {
+                    throw new IllegalStateException("timeline of thread " + threadId
+                                                    + " refers to unknown stack trace id "
+                                                    + stackTraceId);
+                }
+                record.samples.add(timeMicros - record.startMicros,
+                                   stackTraceToId.get(stackTrace));
+            }
+        }
+        Collections.sort(records, TIMELINE_RECORD_COMPARATOR);
+        for (TimelineRecord record : records) {
+            long micros = record.startMicros - startMicros;
+            writeRecordTime64(micros, timelineMicros);
+            timelineMicros = micros;
+            int byteCount = record.samples.byteCount();
+            writeRecordHeader(BinaryHprof.Tag.TIMELINE,
+                              (int) micros,
+                              BinaryHprof.Tag.TIMELINE.minimumSize + byteCount);
+            out.writeInt(record.threadId);
+            out.writeInt(record.samples.size());
+            out.write(record.samples.bytes(), 0, byteCount);
+        }
+    }
+
+    /**
+     * Returns a key for a stack trace id that is unique across
+     * threads.
+     */
+    private static long threadStackTraceKey(int threadId, int stackTraceId) {
+        return ((long) threadId << 32) | (stackTraceId & 0xffffffffL);
+    }
+
+    private static final class TimelineRecord {
+        final int threadId;
+        final long startMicros;
+        final Timeline samples = new Timeline();
+
+        TimelineRecord(int threadId, long startMicros) {
+            this.threadId = threadId;
+            this.startMicros = startMicros;
+        }
+    }
+
+    /**
+     * Longest time span of the samples in a TIMELINE record.
+     */
+    private static final long MAX_TIMELINE_RECORD_MICROS = 60L * 1000 * 1000;
+
+    private static final Comparator<TimelineRecord> TIMELINE_RECORD_COMPARATOR
+            = new Comparator<TimelineRecord>() {
+        public int compare(TimelineRecord r1, TimelineRecord r2) {
+            long t1 = r1.startMicros;
+            long t2 = r2.startMicros;
+            return (t1 < t2) ? -1 : (t1 == t2 ? 0 : 1);
+        }
+    };
+
+    /**
+     * Largest value of an unsigned 32-bit count.
+     */
+    private static final long MAX_U4 = 0xffffffffL;
+
+    /**
+     * ALLOC_SITES flag for sites ordered by allocation rather than
+     * by live objects.
+     */
+    private static final int ALLOC_SITES_SORTED_BY_ALLOCATION = 0x0002;
+
+    private static final Comparator<HprofData.LockSite> LOCK_SITE_COMPARATOR
+            = new Comparator<HprofData.LockSite>() {
+        public int compare(HprofData.LockSite s1, HprofData.LockSite s2) {
+            return (s1.count < s2.count) ? 1 : (s1.count == s2.count ? 0 : -1);
+        }
+    };
+
+    private static final Comparator<HprofData.AllocSite> ALLOC_SITE_COMPARATOR
+            = new Comparator<HprofData.AllocSite>() {
+        public int compare(HprofData.AllocSite s1, HprofData.AllocSite s2) {
+            return (s1.bytes < s2.bytes) ? 1 : (s1.bytes == s2.bytes ? 0 : -1);
+        }
+    };
+
+    /**
+     * Ensures that a stack trace has been written and returns its id,
+     * which is the stack trace's own id unless another stack trace
+     * was already written with that id.
+     */
+    private int writeStackTrace(HprofData.StackTrace stackTrace) throws IOException {
+        Integer identifier = stackTraceToId.get(stackTrace);
+        if (identifier != null) {
+            return identifier;
+        }
+        int id = stackTrace.stackTraceId;
+        // zero stands for no stack trace in LOCK_SITES
+        if (id == 0 || !stackTraceIds.add(id)) {
+            id = maxStackTraceId + 1;
+            stackTraceIds.add(id);
+        }
+        maxStackTraceId = Math.max(maxStackTraceId, id);
+        stackTraceToId.put(stackTrace, id);
+
+        StackTraceElement[] stackFrames = stackTrace.getAnnotatedStackFrames();
+        int frames = stackFrames.length;
         int[] stackFrameIds = new int[frames];
         for (int i = 0; i < frames; i++) {
-            stackFrameIds[i] = writeStackFrame(stackTrace.stackFrames[i]);
+            stackFrameIds[i] = writeStackFrame(stackFrames[i]);
         }
         writeRecordHeader(BinaryHprof.Tag.STACK_TRACE,
                           0,
                           4 + 4 + 4 + (frames * BinaryHprof.ID_SIZE));
-        out.writeInt(stackTrace.stackTraceId);
+        out.writeInt(id);
         out.writeInt(stackTrace.threadId);
         out.writeInt(frames);
         for (int stackFrameId : stackFrameIds) {
             writeId(stackFrameId);
         }
+        return id;
     }
 
     private int writeLoadClass(String className) throws IOException {
@@ -0,0 +1,529 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BurstProfiler samples at a high rate for a short time whenever a
+ * condition fires, so that brief incidents are captured in detail at
+ * almost no cost in between. Each burst is a separate {@link
+ * SamplingProfiler} run whose {@code HprofData} records the reason
+ * it was triggered, see {@link HprofData#getTriggerReason}. A low
+ * rate profiler may run alongside for the steady state, or none at
+ * all.
+ * <pre>   {@code
+ * BurstProfiler burstProfiler = new BurstProfiler(16, threadSet);
+ * burstProfiler.setBurst(5, TimeUnit.SECONDS, 1, TimeUnit.MILLISECONDS);
+ * burstProfiler.setCpuThreshold(0.8);
+ * burstProfiler.setLatencyThreshold(500, TimeUnit.MILLISECONDS);
+ * burstProfiler.setBurstDirectory(new File("/var/tmp/bursts"));
+ * burstProfiler.start();
+ * // in request handling
+ * burstProfiler.reportLatency(elapsedMillis, TimeUnit.MILLISECONDS);
+ * }</pre>
+ * Conditions are a process CPU load threshold and a GC time
+ * threshold, which are checked on every {@link #setPollInterval
+ * poll}, a latency threshold checked whenever the application
+ * {@link #reportLatency reports a latency}, and explicit {@link
+ * #trigger triggers}. Triggers are ignored while a burst is running
+ * and for the {@link #setCooldown cooldown} after it, so a sustained
+ * condition produces periodic bursts rather than continuous
+ * sampling. Polling and bursts run on a single daemon thread.
+ */
+public final class BurstProfiler {
+
+    private final int depth;
+    private final SamplingProfiler.ThreadSet threadSet;
+
+    private final ScheduledExecutorService executor
+            = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SamplingProfiler-burst");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /*
+     * Configuration, guarded by this.
+     */
+    private long burstNanos = TimeUnit.SECONDS.toNanos(10);
+    private long burstIntervalMicros = 1000;
+    private long cooldownNanos = TimeUnit.SECONDS.toNanos(60);
+    private long pollNanos = TimeUnit.SECONDS.toNanos(1);
+    private double cpuThreshold;
+    private long gcThresholdMillis;
+    private long latencyThresholdNanos;
+    private int maxBursts = 8;
+    private File burstDirectory;
+
+    /*
+     * State, guarded by this.
+     */
+    private ScheduledFuture<?> pollFuture;
+    private boolean bursting;
+    private long cooldownEndNanos;
+    private final LinkedList<HprofData> bursts = new LinkedList<HprofData>();
+    private long triggerCount;
+    private long ignoredTriggerCount;
+
+    /**
+     * The profiler of the running burst, or null if none.
+     */
+    private SamplingProfiler burstProfiler;
+
+    /*
+     * Readings of the previous poll, only used on the executor thread.
+     */
+    private long lastPollNanos;
+    private long lastCpuNanos = -1;
+    private long lastGcMillis = -1;
+    private boolean cpuProblem;
+
+    /**
+     * Reads the CPU time of the process, or null if the VM cannot
+     * report it.
+     */
+    private final Method getProcessCpuTime;
+
+    /**
+     * @param depth The maximum stack depth of burst samples, see
+     * {@link SamplingProfiler#SamplingProfiler SamplingProfiler}.
+     * @param threadSet The threads sampled during bursts. Only one
+     * burst runs at a time, so the set is never used concurrently.
+     */
+    public BurstProfiler(int depth, SamplingProfiler.ThreadSet threadSet) {
+        if (threadSet == null) {
+            throw new NullPointerException("threadSet == null");
+        }
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth < 1");
+        }
+        this.depth = depth;
+        this.threadSet = threadSet;
+        Method method = null;
+        try {
+            method = Class.forName("com.sun.management.OperatingSystemMXBean")
+                    .getMethod("getProcessCpuTime");
+        } catch (Exception ignored) {
+        } catch (LinkageError ignored) {
+        }
+        this.getProcessCpuTime = method;
+        this.cooldownEndNanos = System.nanoTime();
+    }
+
+    /**
+     * Sets the length of each burst and the sampling interval during
+     * a burst. The default is 10 seconds at one millisecond.
+     */
+    public synchronized void setBurst(long duration, TimeUnit durationUnit,
+                                      long interval, TimeUnit intervalUnit) {
+        if (duration < 1) {
+            throw new IllegalArgumentException("duration < 1");
+        }
+        long intervalMicros = intervalUnit.toMicros(interval);
+        if (intervalMicros < 1) {
+            throw new IllegalArgumentException("interval < 1 microsecond");
+        }
+        this.burstNanos = durationUnit.toNanos(duration);
+        this.burstIntervalMicros = intervalMicros;
+    }
+
+    /**
+     * Sets the time after the end of a burst during which triggers
+     * are ignored. The default is one minute.
+     */
+    public synchronized void setCooldown(long cooldown, TimeUnit unit) {
+        if (cooldown < 0) {
+            throw new IllegalArgumentException("cooldown < 0");
+        }
+        this.cooldownNanos = unit.toNanos(cooldown);
+    }
+
+    /**
+     * Sets how often the CPU and GC thresholds are checked. The
+     * default is once a second. Takes effect on the next {@link
+     * #start}.
+     */
+    public synchronized void setPollInterval(long interval, TimeUnit unit) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval < 1");
+        }
+        this.pollNanos = unit.toNanos(interval);
+    }
+
+    /**
+     * Triggers a burst when the CPU time used by the process between
+     * two polls exceeds the specified fraction of the CPU time
+     * available to it on all processors. Zero, the default, disables
+     * the condition.
+     *
+     * @throws UnsupportedOperationException if the VM does not report
+     * the CPU time of the process.
+     */
+    public synchronized void setCpuThreshold(double cpuThreshold) {
+        if (cpuThreshold < 0 || cpuThreshold > 1) {
+            throw new IllegalArgumentException("cpuThreshold out of range [0, 1]: "
+                                               + cpuThreshold);
+        }
+        if (cpuThreshold != 0 && getProcessCpuTime == null) {
+            throw new UnsupportedOperationException("process CPU time not supported");
+        }
+        this.cpuThreshold = cpuThreshold;
+    }
+
+    /**
+     * Triggers a burst when the garbage collectors spend at least the
+     * specified time collecting between two polls. With a poll
+     * interval close to the threshold this approximates a single GC
+     * pause of that length. Zero, the default, disables the
+     * condition.
+     */
+    public synchronized void setGcThreshold(long gcTime, TimeUnit unit) {
+        if (gcTime < 0) {
+            throw new IllegalArgumentException("gcTime < 0");
+        }
+        this.gcThresholdMillis = unit.toMillis(gcTime);
+    }
+
+    /**
+     * Triggers a burst when a latency at least the specified one is
+     * {@link #reportLatency reported}. Zero, the default, disables
+     * the condition.
+     */
+    public synchronized void setLatencyThreshold(long latency, TimeUnit unit) {
+        if (latency < 0) {
+            throw new IllegalArgumentException("latency < 0");
+        }
+        this.latencyThresholdNanos = unit.toNanos(latency);
+    }
+
+    /**
+     * Sets the directory each finished burst is written to as a
+     * binary hprof file named after the start time of the burst, or
+     * null, the default, to keep bursts in memory only.
+     */
+    public synchronized void setBurstDirectory(File burstDirectory) {
+        this.burstDirectory = burstDirectory;
+    }
+
+    /**
+     * Sets the number of finished bursts kept in memory, 8 by
+     * default. May be zero if they are only written to the {@link
+     * #setBurstDirectory burst directory}.
+     */
+    public synchronized void setMaxBursts(int maxBursts) {
+        if (maxBursts < 0) {
+            throw new IllegalArgumentException("maxBursts < 0");
+        }
+        this.maxBursts = maxBursts;
+        while (bursts.size() > maxBursts) {
+            bursts.removeFirst();
+        }
+    }
+
+    /**
+     * Starts checking the CPU and GC thresholds, if either is set.
+     * Latency reports and explicit triggers work whether or not the
+     * profiler is started.
+     */
+    public synchronized void start() {
+        if (pollFuture != null) {
+            throw new IllegalStateException("already started");
+        }
+        if (cpuThreshold == 0 && gcThresholdMillis == 0) {
+            return;
+        }
+        lastCpuNanos = -1;
+        lastGcMillis = -1;
+        cpuProblem = false;
+        pollFuture = executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                poll();
+            }
+        }, 0, pollNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops checking thresholds. A burst in progress still runs to
+     * completion.
+     */
+    public synchronized void stop() {
+        if (pollFuture != null) {
+            pollFuture.cancel(false);
+            pollFuture = null;
+        }
+    }
+
+    /**
+     * Stops checking thresholds and abandons any burst in progress,
+     * after which no further bursts are taken.
+     */
+    public synchronized void shutdown() {
+        stop();
+        executor.shutdownNow();
+        if (burstProfiler != null) {
+            burstProfiler.shutdown();
+            burstProfiler = null;
+        }
+    }
+
+    /**
+     * Reports the latency of an operation, which triggers a burst if
+     * it reaches the {@link #setLatencyThreshold latency threshold}.
+     * Cheap enough to call on every request.
+     */
+    public void reportLatency(long latency, TimeUnit unit) {
+        long thresholdNanos;
+        synchronized (this) {
+            thresholdNanos = latencyThresholdNanos;
+        }
+        if (thresholdNanos == 0) {
+            return;
+        }
+        long latencyNanos = unit.toNanos(latency);
+        if (latencyNanos >= thresholdNanos) {
+            trigger("latency " + TimeUnit.NANOSECONDS.toMillis(latencyNanos) + "ms >= "
+                    + TimeUnit.NANOSECONDS.toMillis(thresholdNanos) + "ms");
+        }
+    }
+
+    /**
+     * Starts a burst recording the specified reason, unless a burst is
+     * already running or cooling down. Returns true if a burst was
+     * started.
+     */
+    public synchronized boolean trigger(String reason) {
+        if (reason == null) {
+            throw new NullPointerException("reason == null");
+        }
+        triggerCount++;
+        if (bursting || System.nanoTime() - cooldownEndNanos < 0 || executor.isShutdown()) {
+            ignoredTriggerCount++;
+            return false;
+        }
+        bursting = true;
+        final String burstReason = reason;
+        executor.execute(new Runnable() {
+            public void run() {
+                runBurst(burstReason);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Returns true while a burst is running.
+     */
+    public synchronized boolean isBursting() {
+        return bursting;
+    }
+
+    /**
+     * Returns the number of triggers, including those ignored.
+     */
+    public synchronized long getTriggerCount() {
+        return triggerCount;
+    }
+
+    /**
+     * Returns the number of triggers ignored because a burst was
+     * running or cooling down.
+     */
+    public synchronized long getIgnoredTriggerCount() {
+        return ignoredTriggerCount;
+    }
+
+    /**
+     * Returns the most recent finished bursts, oldest first.
+     */
+    public synchronized List<HprofData> getBursts() {
+        return new ArrayList<HprofData>(bursts);
+    }
+
+    /**
+     * Checks the CPU and GC thresholds against the readings of the
+     * previous poll.
+     */
+    private void poll() {
+        double cpu;
+        long gc;
+        synchronized (this) {
+            cpu = cpuThreshold;
+            gc = gcThresholdMillis;
+        }
+        long nowNanos = System.nanoTime();
+        long elapsedNanos = nowNanos - lastPollNanos;
+        lastPollNanos = nowNanos;
+        if (cpu != 0) {
+            long cpuNanos;
+            try {
+                cpuNanos = processCpuNanos();
+                cpuProblem = false;
+            } catch (RuntimeException e) {
+                // Keep polling, for the GC threshold and in case the
+                // next reading succeeds, but only report the first of
+                // consecutive failures.
+                if (!cpuProblem) {
+                    System.out.println("Problem reading process CPU time: " + e);
+                    cpuProblem = true;
+                }
+                cpuNanos = -1;
+            }
+            if (cpuNanos >= 0 && lastCpuNanos >= 0 && elapsedNanos > 0) {
+                int processors = Runtime.getRuntime().availableProcessors();
+                double load = (double) (cpuNanos - lastCpuNanos) / elapsedNanos / processors;
+                if (load >= cpu) {
+                    trigger(String.format("cpu %.2f >= %.2f", load, cpu));
+                }
+            }
+            lastCpuNanos = cpuNanos;
+        }
+        if (gc != 0) {
+            long gcMillis = 0;
+            for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+                gcMillis += Math.max(0, bean.getCollectionTime());
+            }
+            if (lastGcMillis >= 0 && gcMillis - lastGcMillis >= gc) {
+                trigger("gc " + (gcMillis - lastGcMillis) + "ms >= " + gc + "ms");
+            }
+            lastGcMillis = gcMillis;
+        }
+    }
+
+    private long processCpuNanos() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        try {
+            return (Long) getProcessCpuTime.invoke(bean);
+        } catch (Exception e) {
+            throw new IllegalStateException("cannot read process CPU time", e);
+        }
+    }
+
+    /**
+     * Samples for one burst and then finishes it. Runs on the
+     * executor thread, where the finish is scheduled too, so polls
+     * continue during the burst.
+     */
+    private void runBurst(final String reason) {
+        final SamplingProfiler profiler;
+        long burstNanos;
+        synchronized (this) {
+            if (executor.isShutdown()) {
+                return;
+            }
+            burstNanos = this.burstNanos;
+            profiler = startProfiler(reason);
+            if (profiler == null) {
+                return;
+            }
+            burstProfiler = profiler;
+        }
+        executor.schedule(new Runnable() {
+            public void run() {
+                finishBurst(profiler, reason);
+            }
+        }, burstNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns a new profiler sampling for a burst, or null if it
+     * could not be started, in which case the burst is abandoned and
+     * the cooldown begins as if it had finished.
+     */
+    private SamplingProfiler startProfiler(String reason) {
+        SamplingProfiler profiler = null;
+        try {
+            profiler = new SamplingProfiler(depth, threadSet);
+            profiler.start(burstIntervalMicros, TimeUnit.MICROSECONDS);
+            return profiler;
+        } catch (RuntimeException e) {
+            System.out.println("Problem starting burst for " + reason + ": " + e);
+            if (profiler != null) {
+                profiler.shutdown();
+            }
+            bursting = false;
+            cooldownEndNanos = System.nanoTime() + cooldownNanos;
+            return null;
+        }
+    }
+
+    private void finishBurst(SamplingProfiler profiler, String reason) {
+        synchronized (this) {
+            if (burstProfiler != profiler) {
+                // shut down in the meantime
+                return;
+            }
+            burstProfiler = null;
+        }
+        profiler.stop();
+        HprofData burst = profiler.getHprofData();
+        profiler.shutdown();
+        burst.setTriggerReason(reason);
+        File directory;
+        synchronized (this) {
+            directory = burstDirectory;
+        }
+        try {
+            if (directory != null) {
+                writeBurst(burst, directory);
+            }
+        } catch (IOException e) {
+            System.out.println("Problem writing burst to " + directory + ": " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                if (maxBursts != 0) {
+                    bursts.add(burst);
+                    if (bursts.size() > maxBursts) {
+                        bursts.removeFirst();
+                    }
+                }
+                bursting = false;
+                cooldownEndNanos = System.nanoTime() + cooldownNanos;
+            }
+        }
+    }
+
+    /**
+     * Writes a finished burst to a new file in the directory.
+     */
+    private static void writeBurst(HprofData burst, File directory) throws IOException {
+        File file = new File(directory, "burst-" + burst.getStartMillis() + ".hprof");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            BinaryHprofWriter.write(burst, out);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A CallTree aggregates samples into one prefix tree per thread,
+ * keyed by stack frame from the outermost caller inwards. Stacks
+ * that share callers share the nodes for those callers, so deep and
+ * recursive stacks take much less memory than storing every
+ * distinct stack in full. Each node keeps a self count, the number
+ * of samples whose innermost frame is the node, and an inclusive
+ * count, the number of samples passing through the node. The
+ * thread state of a sample, if known, is kept as a child of the
+ * innermost frame using the synthetic {@link
+ * HprofData#threadStateFrame thread state frame}, and the labels of
+ * a sample, if any, are kept as the outermost nodes using synthetic
+ * {@link HprofData#labelFrame label frames}.
+ * <p>
+ * The tree can be exported as stack traces into an {@link
+ * HprofData}. Each node with a nonzero self count becomes one stack
+ * trace whose identifier is assigned on first export and then stays
+ * the same, so successive exports are consistent.
+ */
+final class CallTree {
+
+    /**
+     * Number of children above which a node indexes its children
+     * with a map instead of scanning them.
+     */
+    private static final int MAX_LINEAR_CHILDREN = 8;
+
+    static final class Node {
+
+        final StackTraceElement frame;
+        final Node parent;
+        final int depth;
+        long selfCount;
+        long inclusiveCount;
+        int stackTraceId;
+
+        private Node[] children;
+        private int childCount;
+        private Map<StackTraceElement, Node> childMap;
+
+        private Node(StackTraceElement frame, Node parent) {
+            this.frame = frame;
+            this.parent = parent;
+            this.depth = (parent == null) ? 0 : parent.depth + 1;
+        }
+
+        private Node child(StackTraceElement frame) {
+            if (childMap != null) {
+                Node child = childMap.get(frame);
+                if (child == null) {
+                    child = new Node(frame, this);
+                    childMap.put(frame, child);
+                }
+                return child;
+            }
+            for (int i = 0; i < childCount; i++) {
+                Node child = children[i];
+                if (child.frame == frame || child.frame.equals(frame)) {
+                    return child;
+                }
+            }
+            Node child = new Node(frame, this);
+            if (childCount == MAX_LINEAR_CHILDREN) {
+                childMap = new HashMap<StackTraceElement, Node>();
+                for (int i = 0; i < childCount; i++) {
+                    childMap.put(children[i].frame, children[i]);
+                }
+                childMap.put(frame, child);
+                children = null;
+                childCount = 0;
+                return child;
+            }
+            if (children == null) {
+                children = new Node[2];
+            } else if (childCount == children.length) {
+                Node[] grown = new Node[childCount * 2];
+                System.arraycopy(children, 0, grown, 0, childCount);
+                children = grown;
+            }
+            children[childCount++] = child;
+            return child;
+        }
+
+        /**
+         * Returns a new array of this node's children.
+         */
+        Node[] children() {
+            List<Node> list = new ArrayList<Node>();
+            addChildrenTo(list);
+            return list.toArray(new Node[list.size()]);
+        }
+
+        private void addChildrenTo(List<Node> list) {
+            if (childMap != null) {
+                list.addAll(childMap.values());
+                return;
+            }
+            for (int i = 0; i < childCount; i++) {
+                list.add(children[i]);
+            }
+        }
+    }
+
+    /**
+     * Root node of each thread's tree. Roots have no frame.
+     */
+    private final Map<Integer, Node> roots = new HashMap<Integer, Node>();
+
+    private int nodeCount;
+
+    private int stackCount;
+
+    /**
+     * Adds {@code count} samples of the specified stack, which like
+     * {@code Thread.getStackTrace} has the innermost frame first.
+     * Only the first {@code length} frames are used. The thread
+     * state and labels may be null if unknown or none.
+     */
+    public void add(int threadId, Thread.State threadState, Labels labels,
+                    StackTraceElement[] stackFrames, int length, long count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count < 1: " + count);
+        }
+        Node node = roots.get(threadId);
+        if (node == null) {
+            node = new Node(null, null);
+            roots.put(threadId, node);
+        }
+        node.inclusiveCount += count;
+        int labelCount = (labels == null) ? 0 : labels.size();
+        for (int i = 0; i < labelCount; i++) {
+            node = node.child(HprofData.labelFrame(labels.getKey(i), labels.getValue(i)));
+            if (node.inclusiveCount == 0) {
+                nodeCount++;
+            }
+            node.inclusiveCount += count;
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            node = node.child(stackFrames[i]);
+            if (node.inclusiveCount == 0) {
+                // only newly created nodes have no samples
+                nodeCount++;
+            }
+            node.inclusiveCount += count;
+        }
+        if (threadState != null) {
+            node = node.child(HprofData.threadStateFrame(threadState));
+            if (node.inclusiveCount == 0) {
+                nodeCount++;
+            }
+            node.inclusiveCount += count;
+        }
+        if (node.selfCount == 0) {
+            stackCount++;
+        }
+        node.selfCount += count;
+    }
+
+    /**
+     * Returns the root node of the specified thread's tree, or null
+     * if there are no samples for the thread.
+     */
+    public Node getRoot(int threadId) {
+        return roots.get(threadId);
+    }
+
+    /**
+     * Removes all samples and nodes.
+     */
+    public void clear() {
+        roots.clear();
+        nodeCount = 0;
+        stackCount = 0;
+    }
+
+    /**
+     * Returns true if no samples have been added.
+     */
+    public boolean isEmpty() {
+        return roots.isEmpty();
+    }
+
+    /**
+     * Returns the number of frame nodes in all trees.
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Returns the number of distinct stacks, that is the number of
+     * nodes with samples of their own.
+     */
+    public int getStackCount() {
+        return stackCount;
+    }
+
+    /**
+     * Adds a stack trace with its self count to {@code hprofData} for
+     * every node that has samples of its own. Nodes without a stack
+     * trace identifier are assigned one starting at {@code
+     * nextStackTraceId}. Returns the next unused identifier.
+     */
+    public int exportTo(HprofData hprofData, int nextStackTraceId) {
+        List<Node> pending = new ArrayList<Node>();
+        for (Map.Entry<Integer, Node> e : roots.entrySet()) {
+            int threadId = e.getKey();
+            pending.add(e.getValue());
+            while (!pending.isEmpty()) {
+                Node node = pending.remove(pending.size() - 1);
+                node.addChildrenTo(pending);
+                if (node.selfCount == 0) {
+                    continue;
+                }
+                if (node.stackTraceId == 0) {
+                    node.stackTraceId = nextStackTraceId++;
+                }
+                Node leaf = node;
+                Thread.State threadState
+                        = (node.frame == null) ? null : HprofData.threadStateOf(node.frame);
+                if (threadState != null) {
+                    leaf = node.parent;
+                }
+                StackTraceElement[] stackFrames = new StackTraceElement[leaf.depth];
+                int i = 0;
+                for (Node n = leaf; n.parent != null; n = n.parent) {
+                    stackFrames[i++] = n.frame;
+                }
+                int length = stackFrames.length
+                        - HprofData.countLabelFrames(stackFrames, stackFrames.length);
+                Labels labels = HprofData.labelsOf(stackFrames, length, stackFrames.length);
+                if (labels != null) {
+                    stackFrames = Arrays.copyOf(stackFrames, length);
+                }
+                HprofData.StackTrace stackTrace = new HprofData.StackTrace(node.stackTraceId,
+                                                                           threadId,
+                                                                           threadState,
+                                                                           labels,
+                                                                           stackFrames);
+                hprofData.addStackTrace(stackTrace, new long[] { node.selfCount });
+            }
+        }
+        return nextStackTraceId;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ContentionSampler samples threads that are contending for a lock
+ * using {@code ThreadMXBean.getThreadInfo(long[], int)}. A thread is
+ * contending if it is blocked entering a monitor, or waiting for a
+ * {@code java.util.concurrent} lock that another thread owns. Threads
+ * waiting in {@code Object.wait} or on a condition, which own nothing
+ * and are merely idle, are not contending. It is a separate class so
+ * that {@code java.lang.management} is only needed when contention
+ * is sampled.
+ * <p>
+ * After {@link #sample sample} the results for each thread are
+ * available by index until the next call. {@code ThreadMXBean} does
+ * not report on virtual threads, so those are never contending.
+ */
+final class ContentionSampler {
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private int depth;
+
+    /**
+     * Reusable buffer of thread ids for batch requests.
+     */
+    private long[] threadIds = new long[0];
+
+    /**
+     * Thread infos of the last batch, indexed like the sampled
+     * threads.
+     */
+    private ThreadInfo[] threadInfos = new ThreadInfo[0];
+
+    private int from;
+    private int to;
+
+    /**
+     * Index of each thread of the last batch by thread id, built on
+     * the first lookup of an owner.
+     */
+    private final Map<Long, Integer> indexById = new HashMap<Long, Integer>();
+
+    /**
+     * @param waitTime True to also measure the time threads spend
+     * blocked or waiting, which the VM may not support.
+     */
+    public ContentionSampler(boolean waitTime) {
+        if (waitTime && threadMXBean.isThreadContentionMonitoringSupported()
+                && !threadMXBean.isThreadContentionMonitoringEnabled()) {
+            threadMXBean.setThreadContentionMonitoringEnabled(true);
+        }
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    /**
+     * Samples the threads from {@code from} inclusive to {@code to}
+     * exclusive.
+     */
+    public void sample(Thread[] threads, int from, int to) {
+        int count = to - from;
+        if (threadIds.length != count) {
+            threadIds = new long[count];
+        }
+        if (threadInfos.length < threads.length) {
+            threadInfos = new ThreadInfo[threads.length];
+        }
+        for (int i = 0; i < count; i++) {
+            threadIds[i] = threads[from + i].getId();
+        }
+        ThreadInfo[] batch = threadMXBean.getThreadInfo(threadIds, depth);
+        System.arraycopy(batch, 0, threadInfos, from, count);
+        indexById.clear();
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Releases the results of the last batch.
+     */
+    public void clear() {
+        for (int i = from; i < to; i++) {
+            threadInfos[i] = null;
+        }
+        from = 0;
+        to = 0;
+        indexById.clear();
+    }
+
+    /**
+     * Returns true if the thread with the specified index was
+     * contending for a lock when sampled.
+     */
+    public boolean isContending(int i) {
+        ThreadInfo threadInfo = threadInfos[i];
+        if (threadInfo == null || threadInfo.getLockInfo() == null) {
+            return false;
+        }
+        switch (threadInfo.getThreadState()) {
+            case BLOCKED:
+                return true;
+            case WAITING:
+            case TIMED_WAITING:
+                return threadInfo.getLockOwnerId() != -1;
+            default:
+                return false;
+        }
+    }
+
+    public StackTraceElement[] getStackTrace(int i) {
+        StackTraceElement[] stackFrames = threadInfos[i].getStackTrace();
+        return (stackFrames.length == 0) ? null : stackFrames;
+    }
+
+    public Thread.State getThreadState(int i) {
+        return threadInfos[i].getThreadState();
+    }
+
+    /**
+     * Returns the class name of the lock the thread with the
+     * specified index was contending for.
+     */
+    public String getLockClassName(int i) {
+        return threadInfos[i].getLockInfo().getClassName();
+    }
+
+    /**
+     * Returns the identity hash code of the lock the thread with the
+     * specified index was contending for.
+     */
+    public int getLockIdentityHashCode(int i) {
+        return threadInfos[i].getLockInfo().getIdentityHashCode();
+    }
+
+    /**
+     * Returns the id of the thread owning the lock the thread with
+     * the specified index was contending for, or -1 if unknown.
+     */
+    public long getLockOwnerId(int i) {
+        return threadInfos[i].getLockOwnerId();
+    }
+
+    /**
+     * Returns the total time in milliseconds the thread with the
+     * specified index has spent blocked or waiting, or -1 if not
+     * measured.
+     */
+    public long getWaitMillis(int i) {
+        ThreadInfo threadInfo = threadInfos[i];
+        long blocked = threadInfo.getBlockedTime();
+        long waited = threadInfo.getWaitedTime();
+        if (blocked < 0 || waited < 0) {
+            return -1;
+        }
+        return blocked + waited;
+    }
+
+    /**
+     * Returns the stack of the thread with the specified id, or null
+     * if it is not alive. Threads of the last batch are not sampled
+     * again, so that their stack is the one they had at the same time
+     * as the waiting threads.
+     */
+    public StackTraceElement[] getOwnerStackTrace(long threadId) {
+        if (indexById.isEmpty()) {
+            for (int i = from; i < to; i++) {
+                if (threadInfos[i] != null) {
+                    indexById.put(threadInfos[i].getThreadId(), i);
+                }
+            }
+        }
+        Integer index = indexById.get(threadId);
+        if (index != null) {
+            return getStackTrace(index);
+        }
+        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, depth);
+        if (threadInfo == null || threadInfo.getStackTrace().length == 0) {
+            return null;
+        }
+        return threadInfo.getStackTrace();
+    }
+}
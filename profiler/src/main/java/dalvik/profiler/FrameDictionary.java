@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A FrameDictionary assigns a small int id to each distinct {@code
+ * StackTraceElement} it is given, so that stacks can be stored and
+ * compared as {@code int[]} instead of {@code StackTraceElement[]}.
+ * Only a single instance of each distinct frame is retained no
+ * matter how many stacks contain it.
+ * <p>
+ * A dictionary may only be written by one thread. Other threads may
+ * concurrently {@link #getFrame look up} ids that were interned
+ * before some synchronization with the writing thread.
+ */
+final class FrameDictionary {
+
+    private final Map<StackTraceElement, Integer> frameToId
+            = new HashMap<StackTraceElement, Integer>();
+
+    /**
+     * Frames indexed by id. Replaced rather than modified in place
+     * when it needs to grow so that readers see either the old or
+     * the new array, both of which contain every previously
+     * published id.
+     */
+    private volatile StackTraceElement[] frames = new StackTraceElement[64];
+
+    private int size;
+
+    /**
+     * Returns the id of the specified frame, assigning a new one if
+     * the frame has not been seen before.
+     */
+    public int intern(StackTraceElement frame) {
+        Integer id = frameToId.get(frame);
+        if (id != null) {
+            return id;
+        }
+        StackTraceElement[] array = frames;
+        if (size == array.length) {
+            array = Arrays.copyOf(array, size * 2);
+        }
+        array[size] = frame;
+        frames = array;
+        frameToId.put(frame, size);
+        return size++;
+    }
+
+    /**
+     * Returns the frame with the specified id.
+     */
+    public StackTraceElement getFrame(int id) {
+        return frames[id];
+    }
+
+    /**
+     * Returns the number of distinct frames interned.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Decodes the frames of an encoded stack.
+     */
+    public StackTraceElement[] decode(Stack stack) {
+        StackTraceElement[] array = frames;
+        StackTraceElement[] stackFrames = new StackTraceElement[stack.length];
+        for (int i = 0; i < stack.length; i++) {
+            stackFrames[i] = array[stack.frameIds[i]];
+        }
+        return stackFrames;
+    }
+
+    /**
+     * A stack of a specific thread, optionally in a specific thread
+     * state and with specific labels, encoded as frame ids from a
+     * FrameDictionary. The 64-bit hash is computed once when the
+     * stack is set, so hashing is constant time and equality is
+     * usually decided without comparing frames.
+     */
+    static final class Stack {
+
+        int threadId;
+        Thread.State threadState;
+        Labels labels;
+        int[] frameIds;
+        int length;
+        long hash;
+
+        /**
+         * Creates an empty stack for use as a mutable probe.
+         */
+        Stack() {
+            this.frameIds = new int[0];
+        }
+
+        /**
+         * Creates a stack holding a copy of the first {@code length}
+         * frame ids.
+         */
+        Stack(Stack stack) {
+            this.threadId = stack.threadId;
+            this.threadState = stack.threadState;
+            this.labels = stack.labels;
+            this.frameIds = Arrays.copyOf(stack.frameIds, stack.length);
+            this.length = stack.length;
+            this.hash = stack.hash;
+        }
+
+        /**
+         * Sets this stack to the specified thread, thread state and
+         * labels, which may be null if unknown or none, and the
+         * first {@code length} frame ids, recomputing its hash. The
+         * frame ids are not copied.
+         */
+        void set(int threadId, Thread.State threadState, Labels labels,
+                 int[] frameIds, int length) {
+            this.threadId = threadId;
+            this.threadState = threadState;
+            this.labels = labels;
+            this.frameIds = frameIds;
+            this.length = length;
+            long h = 0x9e3779b97f4a7c15L * (threadId + 1);
+            if (threadState != null) {
+                h = (h ^ ~threadState.ordinal()) * 0xbf58476d1ce4e5b9L;
+            }
+            if (labels != null) {
+                h = (h ^ labels.hashCode()) * 0xbf58476d1ce4e5b9L;
+            }
+            for (int i = 0; i < length; i++) {
+                h = (h ^ frameIds[i]) * 0xbf58476d1ce4e5b9L;
+                h ^= h >>> 31;
+            }
+            this.hash = h;
+        }
+
+        @Override public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Stack)) {
+                return false;
+            }
+            Stack s = (Stack) o;
+            if (hash != s.hash || threadId != s.threadId
+                    || threadState != s.threadState || length != s.length) {
+                return false;
+            }
+            if (labels != s.labels && (labels == null || !labels.equals(s.labels))) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (frameIds[i] != s.frameIds[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
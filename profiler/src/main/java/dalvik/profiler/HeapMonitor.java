@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HeapMonitor takes {@link HprofData.HeapSummary heap summaries}.
+ * The live bytes are the heap usage reported by {@code
+ * MemoryMXBean}. The VM does not report the number of live objects,
+ * nor the number of objects allocated, so those are zero. The bytes
+ * allocated are the sum of the bytes allocated by every thread, if
+ * the VM can measure them, see {@link ThreadAllocationCounter}.
+ * Threads that end keep contributing the bytes they had allocated
+ * when last seen, so the total is a lower bound that never
+ * decreases. Only used by one thread at a time.
+ */
+final class HeapMonitor {
+
+    private final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+
+    /**
+     * Source of the bytes allocated by threads, or null if the VM
+     * cannot measure them.
+     */
+    private final ThreadAllocationCounter threadAllocationCounter;
+
+    /**
+     * Bytes allocated by each live thread when last seen, keyed by
+     * thread id.
+     */
+    private Map<Long, Long> threadAllocatedBytes = new HashMap<Long, Long>();
+
+    /**
+     * Bytes allocated by threads that have ended.
+     */
+    private long endedAllocatedBytes;
+
+    private long lastTimeMillis = Long.MIN_VALUE;
+
+    public HeapMonitor() {
+        ThreadAllocationCounter counter;
+        try {
+            counter = new ThreadAllocationCounter();
+        } catch (UnsupportedOperationException e) {
+            counter = null;
+        } catch (LinkageError e) {
+            counter = null;
+        }
+        threadAllocationCounter = counter;
+    }
+
+    /**
+     * Returns a summary of the heap taken at the specified time, or
+     * at the time of the previous summary if the clock went back.
+     */
+    public HprofData.HeapSummary summarize(long timeMillis) {
+        lastTimeMillis = Math.max(lastTimeMillis, timeMillis);
+        long liveBytes = memoryMXBean.getHeapMemoryUsage().getUsed();
+        return new HprofData.HeapSummary(lastTimeMillis, liveBytes, 0, allocatedBytes(), 0);
+    }
+
+    private long allocatedBytes() {
+        if (threadAllocationCounter == null) {
+            return 0;
+        }
+        long[] threadIds = threadAllocationCounter.getAllThreadIds();
+        long[] allocated = threadAllocationCounter.getAllocatedBytes(threadIds);
+        Map<Long, Long> live = new HashMap<Long, Long>(threadIds.length * 2);
+        long total = 0;
+        for (int i = 0; i < threadIds.length; i++) {
+            if (allocated[i] < 0) {
+                // ended since listed, counted below if seen before
+                continue;
+            }
+            live.put(threadIds[i], allocated[i]);
+            total += allocated[i];
+        }
+        for (Map.Entry<Long, Long> e : threadAllocatedBytes.entrySet()) {
+            if (!live.containsKey(e.getKey())) {
+                endedAllocatedBytes += e.getValue();
+            }
+        }
+        threadAllocatedBytes = live;
+        return endedAllocatedBytes + total;
+    }
+}
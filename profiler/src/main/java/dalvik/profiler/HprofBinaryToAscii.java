@@ -43,15 +43,29 @@ public final class HprofBinaryToAscii {
 
     /**
      * Reads single file from arguments and attempts to read it as
-     * either a binary hprof file or a version with a text header.
+     * either a binary hprof file or a version with a text header. The
+     * file may be preceded by {@code --label key=value} to only write
+     * the samples with that label.
      */
     private static boolean convert(String[] args) {
 
-        if (args.length != 1) {
+        String labelKey = null;
+        String labelValue = null;
+        int argIndex = 0;
+        if (args.length == 3 && args[0].equals("--label")) {
+            int equals = args[1].indexOf('=');
+            if (equals < 1) {
+                usage("label key=value expected but found " + args[1]);
+                return false;
+            }
+            labelKey = args[1].substring(0, equals);
+            labelValue = args[1].substring(equals + 1);
+            argIndex = 2;
+        } else if (args.length != 1) {
             usage("binary hprof file argument expected");
             return false;
         }
-        File file = new File(args[0]);
+        File file = new File(args[argIndex]);
         if (!file.exists()) {
             usage("file " + file + " does not exist");
             return false;
@@ -66,6 +80,9 @@ public final class HprofBinaryToAscii {
                                    + file + ": " + e.getMessage());
                 return false;
             }
+            if (labelKey != null) {
+                hprofData = hprofData.filterByLabel(labelKey, labelValue);
+            }
             return write(hprofData);
         }
 
@@ -77,6 +94,9 @@ public final class HprofBinaryToAscii {
                                + file + ": " + e.getMessage());
             return false;
         }
+        if (labelKey != null) {
+            hprofData = hprofData.filterByLabel(labelKey, labelValue);
+        }
         return write(hprofData);
     }
 
@@ -175,8 +195,9 @@ public final class HprofBinaryToAscii {
         System.out.print("ERROR: ");
         System.out.println(error);
         System.out.println();
-        System.out.println("usage: HprofBinaryToAscii <binary-hprof-file>");
+        System.out.println("usage: HprofBinaryToAscii [--label key=value] <binary-hprof-file>");
         System.out.println();
         System.out.println("Reads a binary hprof file and print it in ASCII format");
+        System.out.println("--label only prints the samples labelled with key=value");
     }
 }
@@ -21,6 +21,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Map;
@@ -34,14 +35,143 @@ import java.util.Set;
  * The data includes:
  * <ul>
  * <li>the start time of the last sampling period
+ * <li>the requested and effective sampling interval and the number
+ * of taken and missed ticks
+ * <li>an error bound if sample counts are approximate
  * <li>the history of thread start and end events
- * <li>stack traces with frequency counts
+ * <li>the unit of the counts, either samples or CPU time
+ * <li>stack traces with frequency counts, optionally qualified by
+ * the state of the sampled thread and by its {@link Labels labels}
+ * <li>allocation sites with the bytes and objects allocated, if
+ * allocations were sampled
+ * <li>a series of heap summaries, if the heap was monitored
+ * <li>lock sites with the samples of threads contending for each
+ * lock, if lock contention was sampled
+ * <li>a timeline of the samples of each thread, if one was kept
  * <ul>
+ * Writers represent the thread state of a stack trace as a
+ * synthetic leaf frame, see {@link #threadStateFrame}, and its labels
+ * as synthetic root frames, see {@link #labelFrame}.
  */
 public final class HprofData {
 
     public static enum ThreadEventType { START, END };
 
+    /**
+     * The unit of the sample counts.
+     */
+    public static enum CountUnit {
+        /**
+         * Each sample counts one.
+         */
+        SAMPLES,
+
+        /**
+         * Each sample is weighted by the CPU time in nanoseconds its
+         * thread consumed since the thread was previously sampled.
+         */
+        CPU_NANOS,
+
+        /**
+         * Each count is the change of a stack's share of the samples
+         * between two profiles in millionths, negative if the share
+         * shrank, see {@link HprofDiff}.
+         */
+        DELTA_PPM
+    }
+
+    /**
+     * The synthetic frame that takes the place of the frames dropped
+     * from a stack that was too deep, between the leaf frames and
+     * any root frames that were kept.
+     */
+    public static final StackTraceElement TRUNCATED_FRAME
+            = new StackTraceElement("<profiler>", "truncated", null, -1);
+
+    /**
+     * Class name of the synthetic frames that represent thread states.
+     */
+    private static final String THREAD_STATE_CLASS_NAME = "<thread-state>";
+
+    private static final StackTraceElement[] THREAD_STATE_FRAMES
+            = new StackTraceElement[Thread.State.values().length];
+    static {
+        for (Thread.State threadState : Thread.State.values()) {
+            THREAD_STATE_FRAMES[threadState.ordinal()]
+                    = new StackTraceElement(THREAD_STATE_CLASS_NAME, threadState.name(), null, -1);
+        }
+    }
+
+    /**
+     * Returns the synthetic frame that represents the specified thread
+     * state when it is written as the leaf of a stack trace.
+     */
+    public static StackTraceElement threadStateFrame(Thread.State threadState) {
+        return THREAD_STATE_FRAMES[threadState.ordinal()];
+    }
+
+    /**
+     * Returns the thread state represented by a synthetic frame
+     * created by {@link #threadStateFrame}, or null if the frame is
+     * an ordinary frame.
+     */
+    public static Thread.State threadStateOf(StackTraceElement frame) {
+        if (!THREAD_STATE_CLASS_NAME.equals(frame.getClassName())) {
+            return null;
+        }
+        try {
+            return Thread.State.valueOf(frame.getMethodName());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static final String LABEL_CLASS_NAME = "<label>";
+
+    /**
+     * Returns the synthetic frame that represents a label when it is
+     * written as a root frame of a stack trace. The key is the
+     * frame's method name and the value its file name.
+     */
+    public static StackTraceElement labelFrame(String key, String value) {
+        return new StackTraceElement(LABEL_CLASS_NAME, key, value, -1);
+    }
+
+    /**
+     * Returns true if the frame is a synthetic frame created by
+     * {@link #labelFrame}.
+     */
+    public static boolean isLabelFrame(StackTraceElement frame) {
+        return LABEL_CLASS_NAME.equals(frame.getClassName()) && frame.getFileName() != null;
+    }
+
+    /**
+     * Returns the number of label frames at the root end of the first
+     * {@code length} frames.
+     */
+    static int countLabelFrames(StackTraceElement[] frames, int length) {
+        int count = 0;
+        while (count < length && isLabelFrame(frames[length - 1 - count])) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the labels represented by the label frames in the range
+     * [{@code from}, {@code to}), or null if the range is empty.
+     *
+     * @throws IllegalArgumentException if a key is repeated.
+     */
+    static Labels labelsOf(StackTraceElement[] frames, int from, int to) {
+        String[] keysAndValues = new String[(to - from) * 2];
+        for (int i = from; i < to; i++) {
+            keysAndValues[(i - from) * 2] = frames[i].getMethodName();
+            keysAndValues[(i - from) * 2 + 1] = frames[i].getFileName();
+        }
+        return Labels.of(keysAndValues);
+    }
+
     /**
      * ThreadEvent represents thread creation and death events for
      * reporting. It provides a record of the thread and thread group
@@ -133,12 +263,15 @@ public final class HprofData {
     }
 
     /**
-     * A unique stack trace for a specific thread.
+     * A unique stack trace for a specific thread, optionally in a
+     * specific thread state and with specific labels.
      */
     public static final class StackTrace {
 
         public final int stackTraceId;
         int threadId;
+        Thread.State threadState;
+        Labels labels;
         StackTraceElement[] stackFrames;
 
         StackTrace() {
@@ -146,11 +279,33 @@ public final class HprofData {
         }
 
         public StackTrace(int stackTraceId, int threadId, StackTraceElement[] stackFrames) {
+            this(stackTraceId, threadId, null, stackFrames);
+        }
+
+        /**
+         * @param threadState The state of the thread when the stack
+         * was sampled, or null if unknown.
+         */
+        public StackTrace(int stackTraceId, int threadId, Thread.State threadState,
+                          StackTraceElement[] stackFrames) {
+            this(stackTraceId, threadId, threadState, null, stackFrames);
+        }
+
+        /**
+         * @param threadState The state of the thread when the stack
+         * was sampled, or null if unknown.
+         * @param labels The labels of the thread when the stack was
+         * sampled, or null if none.
+         */
+        public StackTrace(int stackTraceId, int threadId, Thread.State threadState,
+                          Labels labels, StackTraceElement[] stackFrames) {
             if (stackFrames == null) {
                 throw new NullPointerException("stackFrames == null");
             }
             this.stackTraceId = stackTraceId;
             this.threadId = threadId;
+            this.threadState = threadState;
+            this.labels = labels;
             this.stackFrames = stackFrames;
         }
 
@@ -158,13 +313,82 @@ public final class HprofData {
             return threadId;
         }
 
+        /**
+         * Returns the state of the thread when the stack was sampled,
+         * or null if unknown.
+         */
+        public Thread.State getThreadState() {
+            return threadState;
+        }
+
+        /**
+         * Returns the labels of the thread when the stack was
+         * sampled, or null if none.
+         */
+        public Labels getLabels() {
+            return labels;
+        }
+
         public StackTraceElement[] getStackFrames() {
             return stackFrames;
         }
 
+        /**
+         * Returns true if frames were dropped from the stack because
+         * it was too deep, in which case they are replaced by the
+         * {@link #TRUNCATED_FRAME truncated frame}. Since the flag is
+         * carried by the frame, it is preserved by the hprof writers
+         * and readers.
+         */
+        public boolean isTruncated() {
+            for (StackTraceElement frame : stackFrames) {
+                if (TRUNCATED_FRAME.equals(frame)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the stack frames preceded by the synthetic leaf
+         * frame for the thread state, if known, as written by the
+         * hprof writers.
+         */
+        public StackTraceElement[] getStackFramesWithThreadState() {
+            if (threadState == null) {
+                return stackFrames;
+            }
+            StackTraceElement[] frames = new StackTraceElement[stackFrames.length + 1];
+            frames[0] = threadStateFrame(threadState);
+            System.arraycopy(stackFrames, 0, frames, 1, stackFrames.length);
+            return frames;
+        }
+
+        /**
+         * Returns the stack frames preceded by the synthetic leaf
+         * frame for the thread state, if known, and followed by a
+         * synthetic root frame for each label, as written by the
+         * hprof writers. The first label is the outermost frame.
+         */
+        public StackTraceElement[] getAnnotatedStackFrames() {
+            StackTraceElement[] frames = getStackFramesWithThreadState();
+            if (labels == null) {
+                return frames;
+            }
+            int size = labels.size();
+            StackTraceElement[] annotated = Arrays.copyOf(frames, frames.length + size);
+            for (int i = 0; i < size; i++) {
+                annotated[annotated.length - 1 - i]
+                        = labelFrame(labels.getKey(i), labels.getValue(i));
+            }
+            return annotated;
+        }
+
         @Override public int hashCode() {
             int result = 17;
             result = 31 * result + threadId;
+            result = 31 * result + (threadState == null ? 0 : threadState.ordinal() + 1);
+            result = 31 * result + (labels == null ? 0 : labels.hashCode());
             result = 31 * result + Arrays.hashCode(stackFrames);
             return result;
         }
@@ -174,7 +398,10 @@ public final class HprofData {
                 return false;
             }
             StackTrace s = (StackTrace) o;
-            return threadId == s.threadId && Arrays.equals(stackFrames, s.stackFrames);
+            return threadId == s.threadId
+                    && threadState == s.threadState
+                    && (labels == null ? s.labels == null : labels.equals(s.labels))
+                    && Arrays.equals(stackFrames, s.stackFrames);
         }
 
         @Override public String toString() {
@@ -191,6 +418,8 @@ public final class HprofData {
             }
             return "StackTrace[stackTraceId=" + stackTraceId
                     + ", threadId=" + threadId
+                    + ", threadState=" + threadState
+                    + ", labels=" + labels
                     + ", frames=" + frames + "]";
 
         }
@@ -202,13 +431,20 @@ public final class HprofData {
     public static final class Sample {
 
         public final StackTrace stackTrace;
-        public final int count;
 
-        private Sample(StackTrace stackTrace, int count) {
+        /**
+         * The number of samples of the stack trace, or their total
+         * weight in the {@link HprofData#getCountUnit count unit} of
+         * the data, which is negative for a shrunk stack if the unit
+         * is {@link CountUnit#DELTA_PPM}.
+         */
+        public final long count;
+
+        private Sample(StackTrace stackTrace, long count, boolean signed) {
             if (stackTrace == null) {
                 throw new NullPointerException("stackTrace == null");
             }
-            if (count < 0) {
+            if (count < 0 && !signed) {
                 throw new IllegalArgumentException("count < 0:" + count);
             }
             this.stackTrace = stackTrace;
@@ -218,7 +454,7 @@ public final class HprofData {
         @Override public int hashCode() {
             int result = 17;
             result = 31 * result + stackTrace.hashCode();
-            result = 31 * result + count;
+            result = 31 * result + (int) (count ^ (count >>> 32));
             return result;
         }
 
@@ -236,6 +472,310 @@ public final class HprofData {
 
     }
 
+    /**
+     * A read only container combining a stack trace with the
+     * allocations attributed to it.
+     */
+    public static final class AllocSite {
+
+        public final StackTrace stackTrace;
+
+        /**
+         * The class of the objects allocated, or null if unknown.
+         */
+        public final String className;
+
+        /**
+         * The number of bytes allocated.
+         */
+        public final long bytes;
+
+        /**
+         * The number of objects allocated.
+         */
+        public final long instances;
+
+        private AllocSite(StackTrace stackTrace, String className, long bytes, long instances) {
+            if (stackTrace == null) {
+                throw new NullPointerException("stackTrace == null");
+            }
+            if (bytes < 0) {
+                throw new IllegalArgumentException("bytes < 0:" + bytes);
+            }
+            if (instances < 0) {
+                throw new IllegalArgumentException("instances < 0:" + instances);
+            }
+            this.stackTrace = stackTrace;
+            this.className = className;
+            this.bytes = bytes;
+            this.instances = instances;
+        }
+
+        @Override public int hashCode() {
+            int result = 17;
+            result = 31 * result + stackTrace.hashCode();
+            result = 31 * result + (className == null ? 0 : className.hashCode());
+            result = 31 * result + (int) (bytes ^ (bytes >>> 32));
+            result = 31 * result + (int) (instances ^ (instances >>> 32));
+            return result;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof AllocSite)) {
+                return false;
+            }
+            AllocSite s = (AllocSite) o;
+            return bytes == s.bytes
+                    && instances == s.instances
+                    && (className == null ? s.className == null : className.equals(s.className))
+                    && stackTrace.equals(s.stackTrace);
+        }
+
+        @Override public String toString() {
+            return ("AllocSite[bytes=" + bytes
+                    + " instances=" + instances
+                    + " className=" + className
+                    + " " + stackTrace + "]");
+        }
+    }
+
+    /**
+     * A read only container of the samples of threads that were
+     * found contending for a lock with the same stack, while the
+     * lock was held by a thread with the same stack, if known.
+     */
+    public static final class LockSite {
+
+        /**
+         * The identity of the lock, its class name and identity hash
+         * code as given by {@code java.lang.management.LockInfo}.
+         */
+        public final String lockName;
+
+        /**
+         * The stack of the waiting threads.
+         */
+        public final StackTrace waiterStackTrace;
+
+        /**
+         * The stack of the thread holding the lock, or null if
+         * unknown.
+         */
+        public final StackTrace ownerStackTrace;
+
+        /**
+         * The number of samples of waiting threads.
+         */
+        public final long count;
+
+        /**
+         * The time in milliseconds that the waiting threads spent
+         * blocked or waiting since they were previously sampled, zero
+         * if not measured.
+         */
+        public final long waitMillis;
+
+        private LockSite(String lockName, StackTrace waiterStackTrace,
+                         StackTrace ownerStackTrace, long count, long waitMillis) {
+            if (lockName == null) {
+                throw new NullPointerException("lockName == null");
+            }
+            if (waiterStackTrace == null) {
+                throw new NullPointerException("waiterStackTrace == null");
+            }
+            if (count < 0) {
+                throw new IllegalArgumentException("count < 0:" + count);
+            }
+            if (waitMillis < 0) {
+                throw new IllegalArgumentException("waitMillis < 0:" + waitMillis);
+            }
+            this.lockName = lockName;
+            this.waiterStackTrace = waiterStackTrace;
+            this.ownerStackTrace = ownerStackTrace;
+            this.count = count;
+            this.waitMillis = waitMillis;
+        }
+
+        @Override public int hashCode() {
+            int result = 17;
+            result = 31 * result + lockName.hashCode();
+            result = 31 * result + waiterStackTrace.hashCode();
+            result = 31 * result + (ownerStackTrace == null ? 0 : ownerStackTrace.hashCode());
+            result = 31 * result + (int) (count ^ (count >>> 32));
+            result = 31 * result + (int) (waitMillis ^ (waitMillis >>> 32));
+            return result;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof LockSite)) {
+                return false;
+            }
+            LockSite s = (LockSite) o;
+            return count == s.count
+                    && waitMillis == s.waitMillis
+                    && lockName.equals(s.lockName)
+                    && waiterStackTrace.equals(s.waiterStackTrace)
+                    && (ownerStackTrace == null
+                        ? s.ownerStackTrace == null
+                        : ownerStackTrace.equals(s.ownerStackTrace));
+        }
+
+        @Override public String toString() {
+            return ("LockSite[count=" + count
+                    + " waitMillis=" + waitMillis
+                    + " lockName=" + lockName
+                    + " waiter=" + waiterStackTrace
+                    + " owner=" + ownerStackTrace + "]");
+        }
+    }
+
+    /**
+     * Key of a lock site, the lock and the stacks of its waiter and
+     * owner.
+     */
+    private static final class LockKey {
+        final String lockName;
+        final StackTrace waiterStackTrace;
+        final StackTrace ownerStackTrace;
+
+        LockKey(String lockName, StackTrace waiterStackTrace, StackTrace ownerStackTrace) {
+            this.lockName = lockName;
+            this.waiterStackTrace = waiterStackTrace;
+            this.ownerStackTrace = ownerStackTrace;
+        }
+
+        @Override public int hashCode() {
+            int result = lockName.hashCode();
+            result = 31 * result + waiterStackTrace.hashCode();
+            result = 31 * result + (ownerStackTrace == null ? 0 : ownerStackTrace.hashCode());
+            return result;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof LockKey)) {
+                return false;
+            }
+            LockKey k = (LockKey) o;
+            return lockName.equals(k.lockName)
+                    && waiterStackTrace.equals(k.waiterStackTrace)
+                    && (ownerStackTrace == null
+                        ? k.ownerStackTrace == null
+                        : ownerStackTrace.equals(k.ownerStackTrace));
+        }
+    }
+
+    /**
+     * A read only summary of the heap at a point in time. Counts that
+     * were not measured are zero.
+     */
+    public static final class HeapSummary {
+
+        /**
+         * The time the summary was taken in milliseconds since the
+         * epoch.
+         */
+        public final long timeMillis;
+
+        /**
+         * The number of bytes in use in the heap.
+         */
+        public final long liveBytes;
+
+        /**
+         * The number of objects in the heap.
+         */
+        public final long liveInstances;
+
+        /**
+         * The total number of bytes allocated so far.
+         */
+        public final long allocatedBytes;
+
+        /**
+         * The total number of objects allocated so far.
+         */
+        public final long allocatedInstances;
+
+        public HeapSummary(long timeMillis, long liveBytes, long liveInstances,
+                           long allocatedBytes, long allocatedInstances) {
+            if (liveBytes < 0) {
+                throw new IllegalArgumentException("liveBytes < 0:" + liveBytes);
+            }
+            if (liveInstances < 0) {
+                throw new IllegalArgumentException("liveInstances < 0:" + liveInstances);
+            }
+            if (allocatedBytes < 0) {
+                throw new IllegalArgumentException("allocatedBytes < 0:" + allocatedBytes);
+            }
+            if (allocatedInstances < 0) {
+                throw new IllegalArgumentException("allocatedInstances < 0:"
+                                                   + allocatedInstances);
+            }
+            this.timeMillis = timeMillis;
+            this.liveBytes = liveBytes;
+            this.liveInstances = liveInstances;
+            this.allocatedBytes = allocatedBytes;
+            this.allocatedInstances = allocatedInstances;
+        }
+
+        @Override public int hashCode() {
+            int result = 17;
+            result = 31 * result + (int) (timeMillis ^ (timeMillis >>> 32));
+            result = 31 * result + (int) (liveBytes ^ (liveBytes >>> 32));
+            result = 31 * result + (int) (liveInstances ^ (liveInstances >>> 32));
+            result = 31 * result + (int) (allocatedBytes ^ (allocatedBytes >>> 32));
+            result = 31 * result + (int) (allocatedInstances ^ (allocatedInstances >>> 32));
+            return result;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof HeapSummary)) {
+                return false;
+            }
+            HeapSummary s = (HeapSummary) o;
+            return timeMillis == s.timeMillis
+                    && liveBytes == s.liveBytes
+                    && liveInstances == s.liveInstances
+                    && allocatedBytes == s.allocatedBytes
+                    && allocatedInstances == s.allocatedInstances;
+        }
+
+        @Override public String toString() {
+            return ("HeapSummary[timeMillis=" + timeMillis
+                    + " liveBytes=" + liveBytes
+                    + " liveInstances=" + liveInstances
+                    + " allocatedBytes=" + allocatedBytes
+                    + " allocatedInstances=" + allocatedInstances + "]");
+        }
+    }
+
+    /**
+     * Key of an allocation site, its stack trace and the class of
+     * the objects allocated there.
+     */
+    private static final class SiteKey {
+        final StackTrace stackTrace;
+        final String className;
+
+        SiteKey(StackTrace stackTrace, String className) {
+            this.stackTrace = stackTrace;
+            this.className = className;
+        }
+
+        @Override public int hashCode() {
+            return 31 * stackTrace.hashCode() + (className == null ? 0 : className.hashCode());
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof SiteKey)) {
+                return false;
+            }
+            SiteKey k = (SiteKey) o;
+            return (className == null ? k.className == null : className.equals(k.className))
+                    && stackTrace.equals(k.stackTrace);
+        }
+    }
+
     /**
      * Start of last sampling period.
      */
@@ -251,6 +791,71 @@ public final class HprofData {
      */
     private int depth;
 
+    /**
+     * Sampling interval in microseconds, zero if unknown.
+     */
+    private long intervalMicros;
+
+    /**
+     * Average time between sample ticks actually taken in
+     * microseconds, zero if unknown.
+     */
+    private long effectiveIntervalMicros;
+
+    /**
+     * Number of sample ticks taken.
+     */
+    private long ticks;
+
+    /**
+     * Number of sample ticks skipped because a previous tick overran.
+     */
+    private long missedTicks;
+
+    /**
+     * Upper bound on the samples of any stack trace that are not
+     * included in its count. Zero if the counts are exact.
+     */
+    private long maxCountError;
+
+    /**
+     * Unit of the sample counts.
+     */
+    private CountUnit countUnit = CountUnit.SAMPLES;
+
+    /**
+     * Average number of bytes allocated between allocation samples,
+     * zero if allocations were not sampled.
+     */
+    private long allocIntervalBytes;
+
+    /**
+     * Why the data was captured, or null if it was not triggered.
+     */
+    private String triggerReason;
+
+    /**
+     * Map of allocation sites to mutable cells of the bytes and
+     * objects allocated, in that order.
+     */
+    private final Map<SiteKey, long[]> allocSites = new HashMap<SiteKey, long[]>();
+
+    /**
+     * Heap summaries in the order they were taken.
+     */
+    private final List<HeapSummary> heapSummaries = new ArrayList<HeapSummary>();
+
+    /**
+     * Map of lock sites to mutable cells of the samples and wait
+     * time, in that order.
+     */
+    private final Map<LockKey, long[]> lockSites = new HashMap<LockKey, long[]>();
+
+    /**
+     * Map of thread id to the thread's samples in time order.
+     */
+    private final Map<Integer, Timeline> timelines = new HashMap<Integer, Timeline>();
+
     /**
      * List of thread creation and death events.
      */
@@ -265,19 +870,113 @@ public final class HprofData {
     /**
      * Map of stack traces to a mutable sample count. The map is
      * provided by the creator of the HprofData so only have
-     * mutable access to the int[] cells that contain the sample
+     * mutable access to the long[] cells that contain the sample
      * count. Only an unmodifiable iterator view is available to
      * users of the HprofData.
      */
-    private final Map<HprofData.StackTrace, int[]> stackTraces;
+    private final Map<HprofData.StackTrace, long[]> stackTraces;
 
-    public HprofData(Map<StackTrace, int[]> stackTraces) {
+    public HprofData(Map<StackTrace, long[]> stackTraces) {
         if (stackTraces == null) {
             throw new NullPointerException("stackTraces == null");
         }
         this.stackTraces = stackTraces;
     }
 
+    /**
+     * Returns a copy of this data with its own thread history and
+     * sample counts, so that it is unaffected by later changes to
+     * this instance. Stack traces are immutable and shared.
+     */
+    public HprofData copy() {
+        HprofData copy = new HprofData(new HashMap<StackTrace, long[]>(stackTraces.size()));
+        copy.startMillis = startMillis;
+        copy.flags = flags;
+        copy.depth = depth;
+        copy.intervalMicros = intervalMicros;
+        copy.effectiveIntervalMicros = effectiveIntervalMicros;
+        copy.ticks = ticks;
+        copy.missedTicks = missedTicks;
+        copy.maxCountError = maxCountError;
+        copy.countUnit = countUnit;
+        copy.allocIntervalBytes = allocIntervalBytes;
+        copy.triggerReason = triggerReason;
+        copy.threadHistory.addAll(threadHistory);
+        copy.threadIdToThreadEvent.putAll(threadIdToThreadEvent);
+        for (Entry<StackTrace, long[]> e : stackTraces.entrySet()) {
+            copy.stackTraces.put(e.getKey(), new long[] { e.getValue()[0] });
+        }
+        for (Entry<SiteKey, long[]> e : allocSites.entrySet()) {
+            copy.allocSites.put(e.getKey(), e.getValue().clone());
+        }
+        copy.heapSummaries.addAll(heapSummaries);
+        for (Entry<LockKey, long[]> e : lockSites.entrySet()) {
+            copy.lockSites.put(e.getKey(), e.getValue().clone());
+        }
+        for (Entry<Integer, Timeline> e : timelines.entrySet()) {
+            copy.timelines.put(e.getKey(), e.getValue().copy());
+        }
+        return copy;
+    }
+
+    /**
+     * Returns a copy of this data with only the samples, allocation
+     * sites, lock sites and timeline samples whose stack trace has a
+     * label with the specified key and value. A lock site is kept
+     * if the stack trace of its waiting thread has the label. The
+     * thread history, heap summaries and properties are kept in
+     * full.
+     */
+    public HprofData filterByLabel(String key, String value) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        if (value == null) {
+            throw new NullPointerException("value == null");
+        }
+        HprofData filtered = copy();
+        Set<List<Integer>> kept = new HashSet<List<Integer>>();
+        for (Iterator<StackTrace> i = filtered.stackTraces.keySet().iterator(); i.hasNext(); ) {
+            StackTrace stackTrace = i.next();
+            if (hasLabel(stackTrace, key, value)) {
+                kept.add(Arrays.asList(stackTrace.threadId, stackTrace.stackTraceId));
+            } else {
+                i.remove();
+            }
+        }
+        for (Iterator<SiteKey> i = filtered.allocSites.keySet().iterator(); i.hasNext(); ) {
+            if (!hasLabel(i.next().stackTrace, key, value)) {
+                i.remove();
+            }
+        }
+        for (Iterator<LockKey> i = filtered.lockSites.keySet().iterator(); i.hasNext(); ) {
+            if (!hasLabel(i.next().waiterStackTrace, key, value)) {
+                i.remove();
+            }
+        }
+        for (Iterator<Entry<Integer, Timeline>> i = filtered.timelines.entrySet().iterator();
+                i.hasNext(); ) {
+            Entry<Integer, Timeline> e = i.next();
+            Timeline timeline = new Timeline();
+            Timeline.Cursor cursor = e.getValue().cursor();
+            while (cursor.next()) {
+                if (kept.contains(Arrays.asList(e.getKey(), cursor.getStackTraceId()))) {
+                    timeline.add(cursor.getTimeMicros(), cursor.getStackTraceId());
+                }
+            }
+            if (timeline.isEmpty()) {
+                i.remove();
+            } else {
+                e.setValue(timeline);
+            }
+        }
+        return filtered;
+    }
+
+    private static boolean hasLabel(StackTrace stackTrace, String key, String value) {
+        return stackTrace.labels != null && value.equals(stackTrace.labels.get(key));
+    }
+
     /**
      * The start time in milliseconds of the last profiling period.
      */
@@ -320,6 +1019,146 @@ public final class HprofData {
         this.depth = depth;
     }
 
+    /**
+     * Get the sampling interval in microseconds, zero if unknown.
+     */
+    public long getIntervalMicros() {
+        return intervalMicros;
+    }
+
+    /**
+     * Set the sampling interval in microseconds
+     */
+    public void setIntervalMicros(long intervalMicros) {
+        this.intervalMicros = intervalMicros;
+    }
+
+    /**
+     * Get the average time in microseconds between the sample ticks
+     * that were actually taken, zero if unknown. This differs from
+     * the {@link #getIntervalMicros interval} when ticks were missed
+     * or the profiler adapted its rate to an overhead budget. Sample
+     * counts multiplied by the effective interval estimate time
+     * spent, so they are comparable across profiles taken at
+     * different rates.
+     */
+    public long getEffectiveIntervalMicros() {
+        return effectiveIntervalMicros;
+    }
+
+    /**
+     * Set the average time in microseconds between sample ticks taken.
+     */
+    public void setEffectiveIntervalMicros(long effectiveIntervalMicros) {
+        this.effectiveIntervalMicros = effectiveIntervalMicros;
+    }
+
+    /**
+     * Get the number of sample ticks taken.
+     */
+    public long getTicks() {
+        return ticks;
+    }
+
+    /**
+     * Set the number of sample ticks taken.
+     */
+    public void setTicks(long ticks) {
+        this.ticks = ticks;
+    }
+
+    /**
+     * Get the number of sample ticks that were skipped because a
+     * previous tick overran its interval. Sample counts can be scaled
+     * by {@code (ticks + missedTicks) / ticks} to estimate the counts
+     * that would have been seen had no ticks been missed.
+     */
+    public long getMissedTicks() {
+        return missedTicks;
+    }
+
+    /**
+     * Set the number of sample ticks that were skipped.
+     */
+    public void setMissedTicks(long missedTicks) {
+        this.missedTicks = missedTicks;
+    }
+
+    /**
+     * Returns true if sample counts are approximate, for example
+     * because they were collected with a bounded number of stacks.
+     */
+    public boolean isApproximate() {
+        return maxCountError != 0;
+    }
+
+    /**
+     * Get the upper bound on the number of samples of any stack trace
+     * that are not included in its count, but are attributed to
+     * other stack traces of the same thread instead. Zero means the
+     * counts are exact.
+     */
+    public long getMaxCountError() {
+        return maxCountError;
+    }
+
+    /**
+     * Set the upper bound on the error of any sample count.
+     */
+    public void setMaxCountError(long maxCountError) {
+        this.maxCountError = maxCountError;
+    }
+
+    /**
+     * Get the unit of the sample counts.
+     */
+    public CountUnit getCountUnit() {
+        return countUnit;
+    }
+
+    /**
+     * Set the unit of the sample counts.
+     */
+    public void setCountUnit(CountUnit countUnit) {
+        if (countUnit == null) {
+            throw new NullPointerException("countUnit == null");
+        }
+        this.countUnit = countUnit;
+    }
+
+    /**
+     * Get the average number of bytes allocated between allocation
+     * samples, zero if allocations were not sampled.
+     */
+    public long getAllocIntervalBytes() {
+        return allocIntervalBytes;
+    }
+
+    /**
+     * Set the average number of bytes allocated between allocation
+     * samples.
+     */
+    public void setAllocIntervalBytes(long allocIntervalBytes) {
+        this.allocIntervalBytes = allocIntervalBytes;
+    }
+
+    /**
+     * Get the reason the data was captured, such as the condition
+     * that triggered a {@link BurstProfiler burst}, or null if it was
+     * not triggered.
+     */
+    public String getTriggerReason() {
+        return triggerReason;
+    }
+
+    /**
+     * Set the reason the data was captured, or null if it was not
+     * triggered.
+     */
+    public void setTriggerReason(String triggerReason) {
+        this.triggerReason = triggerReason;
+    }
+
     /**
      * Return an unmodifiable history of start and end thread events.
      */
@@ -332,16 +1171,131 @@ public final class HprofData {
      */
     public Set<Sample> getSamples() {
         Set<Sample> samples = new HashSet<Sample>(stackTraces.size());
-        for (Entry<StackTrace, int[]> e : stackTraces.entrySet()) {
+        boolean signed = (countUnit == CountUnit.DELTA_PPM);
+        for (Entry<StackTrace, long[]> e : stackTraces.entrySet()) {
             StackTrace stackTrace = e.getKey();
-            int countCell[] = e.getValue();
-            int count = countCell[0];
-            Sample sample = new Sample(stackTrace, count);
+            long[] countCell = e.getValue();
+            long count = countCell[0];
+            Sample sample = new Sample(stackTrace, count, signed);
             samples.add(sample);
         }
         return samples;
     }
 
+    /**
+     * Return a new set containing the current allocation sites.
+     */
+    public Set<AllocSite> getAllocSites() {
+        Set<AllocSite> sites = new HashSet<AllocSite>(allocSites.size());
+        for (Entry<SiteKey, long[]> e : allocSites.entrySet()) {
+            SiteKey key = e.getKey();
+            long[] cell = e.getValue();
+            sites.add(new AllocSite(key.stackTrace, key.className, cell[0], cell[1]));
+        }
+        return sites;
+    }
+
+    /**
+     * Return a new set containing the current lock sites.
+     */
+    public Set<LockSite> getLockSites() {
+        Set<LockSite> sites = new HashSet<LockSite>(lockSites.size());
+        for (Entry<LockKey, long[]> e : lockSites.entrySet()) {
+            LockKey key = e.getKey();
+            long[] cell = e.getValue();
+            sites.add(new LockSite(key.lockName, key.waiterStackTrace, key.ownerStackTrace,
+                                   cell[0], cell[1]));
+        }
+        return sites;
+    }
+
+    /**
+     * Return an unmodifiable list of the heap summaries in the order
+     * they were taken.
+     */
+    public List<HeapSummary> getHeapSummaries() {
+        return Collections.unmodifiableList(heapSummaries);
+    }
+
+    /**
+     * Record a heap summary, which must not have been taken before
+     * the last one recorded.
+     */
+    public void addHeapSummary(HeapSummary heapSummary) {
+        if (heapSummary == null) {
+            throw new NullPointerException("heapSummary == null");
+        }
+        int size = heapSummaries.size();
+        if (size != 0 && heapSummary.timeMillis < heapSummaries.get(size - 1).timeMillis) {
+            throw new IllegalArgumentException("HeapSummary out of order: " + heapSummary);
+        }
+        heapSummaries.add(heapSummary);
+    }
+
+    /**
+     * Return an unmodifiable map of thread id to the timeline of the
+     * thread's samples. Threads without samples in the timeline are
+     * not included.
+     */
+    public Map<Integer, Timeline> getTimelines() {
+        return Collections.unmodifiableMap(timelines);
+    }
+
+    /**
+     * Record a sample of a thread in its timeline. The sample must
+     * not have been taken before the last sample of the same thread.
+     *
+     * @param timeMicros The time of the sample in microseconds since
+     * the epoch.
+     * @param stackTraceId The id of the stack trace of the sample,
+     * which should be a stack trace of the same thread among the
+     * samples.
+     */
+    public void addTimelineSample(int threadId, long timeMicros, int stackTraceId) {
+        if (!threadIdToThreadEvent.containsKey(threadId)) {
+            throw new IllegalArgumentException("Unknown thread id " + threadId);
+        }
+        Timeline timeline = timelines.get(threadId);
+        if (timeline == null) {
+            timeline = new Timeline();
+            timelines.put(threadId, timeline);
+        }
+        timeline.add(timeMicros, stackTraceId);
+    }
+
+    /**
+     * Starts a new time window at the specified time. All samples,
+     * timelines, heap summaries, tick statistics and the history of
+     * threads that have ended are removed. The start events of
+     * threads that are still alive are kept so that the data of the
+     * new window is self-contained.
+     */
+    void startWindow(long startMillis) {
+        List<ThreadEvent> live = new ArrayList<ThreadEvent>();
+        for (ThreadEvent event : threadHistory) {
+            if (event.type == ThreadEventType.START
+                    && threadIdToThreadEvent.get(event.threadId) == event) {
+                live.add(event);
+            }
+        }
+        threadHistory.clear();
+        threadHistory.addAll(live);
+        threadIdToThreadEvent.clear();
+        for (ThreadEvent event : live) {
+            threadIdToThreadEvent.put(event.threadId, event);
+        }
+        stackTraces.clear();
+        allocSites.clear();
+        heapSummaries.clear();
+        lockSites.clear();
+        timelines.clear();
+        this.startMillis = startMillis;
+        ticks = 0;
+        missedTicks = 0;
+        effectiveIntervalMicros = 0;
+        maxCountError = 0;
+    }
+
     /**
      * Record an event in the thread history.
      */
@@ -375,20 +1329,98 @@ public final class HprofData {
     }
 
     /**
-     * Record an stack trace and an associated int[] cell of
+     * Record an stack trace and an associated long[] cell of
      * sample cound for the stack trace. The caller is allowed
      * retain a pointer to the cell to update the count. The
      * SamplingProfiler intentionally does not present a mutable
      * view of the count.
      */
-    public void addStackTrace(StackTrace stackTrace, int[] countCell) {
+    public void addStackTrace(StackTrace stackTrace, long[] countCell) {
         if (!threadIdToThreadEvent.containsKey(stackTrace.threadId)) {
             throw new IllegalArgumentException("Unknown thread id " + stackTrace.threadId);
         }
-        int[] old = stackTraces.put(stackTrace, countCell);
+        long[] old = stackTraces.put(stackTrace, countCell);
         if (old != null) {
             throw new IllegalArgumentException("StackTrace already registered for id "
                                                + stackTrace.stackTraceId + ":\n" + stackTrace);
         }
     }
+
+    /**
+     * Record an allocation site and an associated long[] cell of
+     * the bytes and objects allocated there, in that order. As with
+     * {@link #addStackTrace addStackTrace} the caller may retain the
+     * cell to update the counts. The stack trace need not have
+     * samples of its own.
+     *
+     * @param className The class of the objects allocated, or null
+     * if unknown.
+     */
+    public void addAllocSite(StackTrace stackTrace, String className, long[] allocCell) {
+        if (!threadIdToThreadEvent.containsKey(stackTrace.threadId)) {
+            throw new IllegalArgumentException("Unknown thread id " + stackTrace.threadId);
+        }
+        if (allocCell.length != 2) {
+            throw new IllegalArgumentException("allocCell.length != 2");
+        }
+        SiteKey key = new SiteKey(stackTrace, className);
+        if (allocSites.containsKey(key)) {
+            throw new IllegalArgumentException("AllocSite already registered for class "
+                                               + className + " and stack trace "
+                                               + stackTrace.stackTraceId + ":\n" + stackTrace);
+        }
+        allocSites.put(key, allocCell);
+    }
+
+    /**
+     * Returns the cell of the allocation site with an equal stack
+     * trace and class, or null if there is none.
+     */
+    long[] getAllocCell(StackTrace stackTrace, String className) {
+        return allocSites.get(new SiteKey(stackTrace, className));
+    }
+
+    /**
+     * Record a lock site and an associated long[] cell of the
+     * samples of waiting threads and the time they spent waiting, in
+     * that order. As with {@link #addStackTrace addStackTrace} the
+     * caller may retain the cell to update the counts. The stack
+     * traces need not have samples of their own.
+     *
+     * @param ownerStackTrace The stack of the thread holding the lock,
+     * or null if unknown.
+     */
+    public void addLockSite(String lockName, StackTrace waiterStackTrace,
+                            StackTrace ownerStackTrace, long[] lockCell) {
+        if (lockName == null) {
+            throw new NullPointerException("lockName == null");
+        }
+        if (!threadIdToThreadEvent.containsKey(waiterStackTrace.threadId)) {
+            throw new IllegalArgumentException("Unknown thread id " + waiterStackTrace.threadId);
+        }
+        if (ownerStackTrace != null
+                && !threadIdToThreadEvent.containsKey(ownerStackTrace.threadId)) {
+            throw new IllegalArgumentException("Unknown thread id " + ownerStackTrace.threadId);
+        }
+        if (lockCell.length != 2) {
+            throw new IllegalArgumentException("lockCell.length != 2");
+        }
+        LockKey key = new LockKey(lockName, waiterStackTrace, ownerStackTrace);
+        if (lockSites.containsKey(key)) {
+            throw new IllegalArgumentException("LockSite already registered for lock "
+                                               + lockName + " and stack trace "
+                                               + waiterStackTrace.stackTraceId + ":\n"
+                                               + waiterStackTrace);
+        }
+        lockSites.put(key, lockCell);
+    }
+
+    /**
+     * Returns the cell of the lock site with an equal lock and
+     * stack traces, or null if there is none.
+     */
+    long[] getLockCell(String lockName, StackTrace waiterStackTrace,
+                       StackTrace ownerStackTrace) {
+        return lockSites.get(new LockKey(lockName, waiterStackTrace, ownerStackTrace));
+    }
 }
@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * HprofDiff compares two profiles, typically of the same program
+ * before and after a change, to find the stacks and methods whose
+ * share of the samples changed. Each profile is normalized by its
+ * total, so profiles of different length or sampling rate can be
+ * compared. Stacks are matched by their frames, thread state and
+ * labels, since thread names and ids differ from run to run, so the
+ * samples of all threads with the same stack are combined. Methods
+ * are compared both by self samples, where the method is the leaf
+ * frame, and by total samples, where it appears anywhere in the
+ * stack.
+ * <p>
+ * Each difference comes with a z-score from a two-proportion test,
+ * the change in share divided by its standard error if the share
+ * had not changed. Differences with an absolute z-score above about
+ * 3 are unlikely to be sampling noise. Counts weighted by CPU time
+ * are converted to sample equivalents using the sampling interval.
+ * <p>
+ * Comparing takes time linear in the number of stacks and frames of
+ * both profiles, and reporting the largest {@code n} differences
+ * adds a factor of {@code log n}, so profiles with millions of
+ * stacks can be compared. The result can be written as text with
+ * {@link #writeText writeText}, or converted to an {@code HprofData}
+ * with signed counts with {@link #toHprofData toHprofData}.
+ */
+public final class HprofDiff {
+
+    /**
+     * The change of a stack or method between two profiles.
+     */
+    public static final class Delta {
+
+        /**
+         * The stack trace compared, with thread id zero, or null if a
+         * method is compared.
+         */
+        public final HprofData.StackTrace stackTrace;
+
+        /**
+         * The class and method name of the method compared, or of the
+         * leaf frame of the stack trace compared.
+         */
+        public final String method;
+
+        /**
+         * The samples of the stack or method in the profile before.
+         */
+        public final double beforeCount;
+
+        /**
+         * The samples of the stack or method in the profile after.
+         */
+        public final double afterCount;
+
+        public final double beforeFraction;
+        public final double afterFraction;
+
+        /**
+         * The change of share in standard errors.
+         */
+        public final double zScore;
+
+        private Delta(HprofData.StackTrace stackTrace, String method,
+                      double beforeCount, double afterCount,
+                      double beforeTotal, double afterTotal) {
+            this.stackTrace = stackTrace;
+            this.method = method;
+            this.beforeCount = beforeCount;
+            this.afterCount = afterCount;
+            this.beforeFraction = (beforeTotal == 0) ? 0 : beforeCount / beforeTotal;
+            this.afterFraction = (afterTotal == 0) ? 0 : afterCount / afterTotal;
+            this.zScore = zScore(beforeCount, afterCount, beforeTotal, afterTotal);
+        }
+
+        /**
+         * Returns the change of the share of the samples, positive if
+         * the stack or method became more expensive.
+         */
+        public double getDelta() {
+            return afterFraction - beforeFraction;
+        }
+
+        @Override public String toString() {
+            return "Delta[" + method
+                    + String.format(" %.4f -> %.4f, z=%.1f", beforeFraction, afterFraction, zScore)
+                    + (stackTrace == null ? "" : ", " + stackTrace)
+                    + "]";
+        }
+    }
+
+    /**
+     * Returns the z-score of the two-proportion test, zero if there is
+     * no variance.
+     */
+    private static double zScore(double before, double after,
+                                 double beforeTotal, double afterTotal) {
+        if (beforeTotal == 0 || afterTotal == 0) {
+            return 0;
+        }
+        double pooled = (before + after) / (beforeTotal + afterTotal);
+        double variance = pooled * (1 - pooled) * (1 / beforeTotal + 1 / afterTotal);
+        if (variance <= 0) {
+            return 0;
+        }
+        return (after / afterTotal - before / beforeTotal) / Math.sqrt(variance);
+    }
+
+    private static final Comparator<Delta> ABSOLUTE_DELTA_COMPARATOR = new Comparator<Delta>() {
+        public int compare(Delta d1, Delta d2) {
+            return Double.compare(Math.abs(d1.getDelta()), Math.abs(d2.getDelta()));
+        }
+    };
+
+    /**
+     * The class and method name of a frame, ignoring the line.
+     */
+    private static final class MethodKey {
+        final String className;
+        final String methodName;
+        final int hashCode;
+
+        MethodKey(StackTraceElement frame) {
+            this.className = frame.getClassName();
+            this.methodName = frame.getMethodName();
+            this.hashCode = 31 * className.hashCode() + methodName.hashCode();
+        }
+
+        @Override public int hashCode() {
+            return hashCode;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof MethodKey)) {
+                return false;
+            }
+            MethodKey k = (MethodKey) o;
+            return hashCode == k.hashCode
+                    && className.equals(k.className)
+                    && methodName.equals(k.methodName);
+        }
+
+        @Override public String toString() {
+            return className + "." + methodName;
+        }
+    }
+
+    private final HprofData before;
+    private final HprofData after;
+    private final double beforeTotal;
+    private final double afterTotal;
+    private final List<Delta> stackDeltas;
+    private final List<Delta> selfMethodDeltas;
+    private final List<Delta> totalMethodDeltas;
+
+    private HprofDiff(HprofData before, HprofData after) {
+        this.before = before;
+        this.after = after;
+
+        // before and after counts, in sample equivalents
+        Map<HprofData.StackTrace, double[]> stacks = new HashMap<HprofData.StackTrace, double[]>();
+        Map<MethodKey, double[]> selfMethods = new HashMap<MethodKey, double[]>();
+        Map<MethodKey, double[]> totalMethods = new HashMap<MethodKey, double[]>();
+        Set<MethodKey> seen = new HashSet<MethodKey>();
+        double[] totals = new double[2];
+        for (int side = 0; side < 2; side++) {
+            HprofData data = (side == 0) ? before : after;
+            double scale = sampleScale(data);
+            for (HprofData.Sample sample : data.getSamples()) {
+                double count = sample.count * scale;
+                totals[side] += count;
+                HprofData.StackTrace stackTrace = sample.stackTrace;
+                StackTraceElement[] frames = stackTrace.stackFrames;
+                HprofData.StackTrace key = new HprofData.StackTrace(0, 0,
+                                                                    stackTrace.threadState,
+                                                                    stackTrace.labels,
+                                                                    frames);
+                cell(stacks, key)[side] += count;
+                if (frames.length == 0) {
+                    continue;
+                }
+                cell(selfMethods, new MethodKey(frames[0]))[side] += count;
+                seen.clear();
+                for (StackTraceElement frame : frames) {
+                    MethodKey method = new MethodKey(frame);
+                    // count recursive methods once per stack
+                    if (seen.add(method)) {
+                        cell(totalMethods, method)[side] += count;
+                    }
+                }
+            }
+        }
+        this.beforeTotal = totals[0];
+        this.afterTotal = totals[1];
+
+        stackDeltas = new ArrayList<Delta>(stacks.size());
+        for (Map.Entry<HprofData.StackTrace, double[]> e : stacks.entrySet()) {
+            HprofData.StackTrace stackTrace = e.getKey();
+            String method = (stackTrace.stackFrames.length == 0)
+                    ? "<empty>"
+                    : new MethodKey(stackTrace.stackFrames[0]).toString();
+            stackDeltas.add(new Delta(stackTrace, method, e.getValue()[0], e.getValue()[1],
+                                      beforeTotal, afterTotal));
+        }
+        selfMethodDeltas = methodDeltas(selfMethods);
+        totalMethodDeltas = methodDeltas(totalMethods);
+    }
+
+    private static <K> double[] cell(Map<K, double[]> map, K key) {
+        double[] cell = map.get(key);
+        if (cell == null) {
+            cell = new double[2];
+            map.put(key, cell);
+        }
+        return cell;
+    }
+
+    private List<Delta> methodDeltas(Map<MethodKey, double[]> methods) {
+        List<Delta> deltas = new ArrayList<Delta>(methods.size());
+        for (Map.Entry<MethodKey, double[]> e : methods.entrySet()) {
+            deltas.add(new Delta(null, e.getKey().toString(), e.getValue()[0], e.getValue()[1],
+                                 beforeTotal, afterTotal));
+        }
+        return deltas;
+    }
+
+    /**
+     * Returns the factor that converts the counts of the data to
+     * samples.
+     */
+    private static double sampleScale(HprofData data) {
+        switch (data.getCountUnit()) {
+            case SAMPLES:
+                return 1;
+            case CPU_NANOS:
+                long intervalNanos = data.getIntervalMicros() * 1000;
+                return (intervalNanos == 0) ? 1 : 1.0 / intervalNanos;
+            default:
+                throw new IllegalArgumentException("cannot compare counts in "
+                                                   + data.getCountUnit());
+        }
+    }
+
+    /**
+     * Compares two profiles.
+     *
+     * @throws IllegalArgumentException if the profiles count in
+     * different units, or one is itself a difference.
+     */
+    public static HprofDiff compare(HprofData before, HprofData after) {
+        if (before == null) {
+            throw new NullPointerException("before == null");
+        }
+        if (after == null) {
+            throw new NullPointerException("after == null");
+        }
+        if (before.getCountUnit() != after.getCountUnit()) {
+            throw new IllegalArgumentException("cannot compare counts in "
+                                               + before.getCountUnit()
+                                               + " with counts in " + after.getCountUnit());
+        }
+        return new HprofDiff(before, after);
+    }
+
+    /**
+     * Returns the total samples of the profile before.
+     */
+    public double getBeforeTotal() {
+        return beforeTotal;
+    }
+
+    /**
+     * Returns the total samples of the profile after.
+     */
+    public double getAfterTotal() {
+        return afterTotal;
+    }
+
+    /**
+     * Returns the change of every stack in either profile, in no
+     * particular order.
+     */
+    public List<Delta> getStackDeltas() {
+        return Collections.unmodifiableList(stackDeltas);
+    }
+
+    /**
+     * Returns the change of the self samples of every method that is
+     * the leaf of a stack in either profile, in no particular order.
+     */
+    public List<Delta> getSelfMethodDeltas() {
+        return Collections.unmodifiableList(selfMethodDeltas);
+    }
+
+    /**
+     * Returns the change of the total samples of every method in
+     * either profile, in no particular order.
+     */
+    public List<Delta> getTotalMethodDeltas() {
+        return Collections.unmodifiableList(totalMethodDeltas);
+    }
+
+    /**
+     * Returns the {@code n} deltas with the largest absolute change,
+     * largest first.
+     */
+    public static List<Delta> largest(List<Delta> deltas, int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("n < 0");
+        }
+        if (n == 0) {
+            return new ArrayList<Delta>();
+        }
+        // min-heap of the n largest seen so far
+        PriorityQueue<Delta> largest = new PriorityQueue<Delta>(n, ABSOLUTE_DELTA_COMPARATOR);
+        for (Delta delta : deltas) {
+            if (largest.size() < n) {
+                largest.add(delta);
+            } else if (ABSOLUTE_DELTA_COMPARATOR.compare(delta, largest.peek()) > 0) {
+                largest.poll();
+                largest.add(delta);
+            }
+        }
+        List<Delta> result = new ArrayList<Delta>(largest);
+        Collections.sort(result, Collections.reverseOrder(ABSOLUTE_DELTA_COMPARATOR));
+        return result;
+    }
+
+    /**
+     * Returns the difference as profile data with one stack trace per
+     * changed stack, all on a single synthetic thread, whose count is
+     * the change of its share of the samples in millionths, negative
+     * if it became cheaper, see {@link HprofData.CountUnit#DELTA_PPM}.
+     * Stacks whose share changed by less than a millionth are left
+     * out.
+     */
+    public HprofData toHprofData() {
+        HprofData diff = new HprofData(new HashMap<HprofData.StackTrace, long[]>());
+        diff.setStartMillis(after.getStartMillis());
+        diff.setFlags(after.getFlags());
+        diff.setDepth(Math.max(before.getDepth(), after.getDepth()));
+        diff.setCountUnit(HprofData.CountUnit.DELTA_PPM);
+        diff.addThreadEvent(HprofData.ThreadEvent.start(1, 1, "diff", "main", null));
+        int nextStackTraceId = 1;
+        for (Delta delta : stackDeltas) {
+            long ppm = Math.round(delta.getDelta() * 1000 * 1000);
+            if (ppm == 0) {
+                continue;
+            }
+            HprofData.StackTrace stackTrace
+                    = new HprofData.StackTrace(nextStackTraceId++, 1,
+                                               delta.stackTrace.threadState,
+                                               delta.stackTrace.labels,
+                                               delta.stackTrace.stackFrames);
+            diff.addStackTrace(stackTrace, new long[] { ppm });
+        }
+        return diff;
+    }
+
+    /**
+     * Writes the {@code limit} largest changes of stacks, self
+     * samples of methods and total samples of methods as text,
+     * followed by the frames of the stacks listed.
+     */
+    public void writeText(OutputStream outputStream, int limit) {
+        PrintWriter out = new PrintWriter(outputStream);
+        out.printf("DIFF BEGIN (before total = %.0f, after total = %.0f)\n",
+                   beforeTotal, afterTotal);
+        List<Delta> stacks = largest(stackDeltas, limit);
+        writeDeltas(out, "STACKS", stacks, true);
+        writeDeltas(out, "METHODS SELF", largest(selfMethodDeltas, limit), false);
+        writeDeltas(out, "METHODS TOTAL", largest(totalMethodDeltas, limit), false);
+        int trace = 0;
+        for (Delta delta : stacks) {
+            trace++;
+            out.printf("TRACE %d:%s%s\n", trace,
+                       delta.stackTrace.threadState == null
+                               ? "" : " (state=" + delta.stackTrace.threadState + ")",
+                       delta.stackTrace.labels == null
+                               ? "" : " (labels=" + delta.stackTrace.labels + ")");
+            for (StackTraceElement frame : delta.stackTrace.stackFrames) {
+                out.println("\t" + frame);
+            }
+        }
+        out.println("DIFF END");
+        out.flush();
+    }
+
+    private static void writeDeltas(PrintWriter out, String title, List<Delta> deltas,
+                                    boolean traces) {
+        out.println(title);
+        out.println(traces
+                    ? "rank  before   after    delta       z trace method"
+                    : "rank  before   after    delta       z method");
+        int rank = 0;
+        for (Delta delta : deltas) {
+            rank++;
+            // "   1  12.50%  18.75%  +6.25%   +4.1     1 java.lang.Long.parseLong"
+            out.printf("% 4d% 7.2f%%% 7.2f%% %+7.2f%% %+7.1f %s%s\n",
+                       rank, delta.beforeFraction * 100, delta.afterFraction * 100,
+                       delta.getDelta() * 100, delta.zScore,
+                       traces ? String.format("% 5d ", rank) : "",
+                       delta.method);
+        }
+    }
+
+    /**
+     * Compares two binary hprof files, writes the largest changes to
+     * standard output, and optionally the difference to a binary
+     * hprof file.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 && args.length != 3) {
+            System.out.println("usage: HprofDiff <before-hprof-file> <after-hprof-file>"
+                               + " [<diff-hprof-file>]");
+            System.out.println();
+            System.out.println("Prints the stacks and methods whose share of the samples"
+                               + " changed the most");
+            System.exit(1);
+        }
+        HprofDiff diff = compare(read(args[0]), read(args[1]));
+        diff.writeText(System.out, 20);
+        if (args.length == 3) {
+            OutputStream out = new FileOutputStream(args[2]);
+            try {
+                BinaryHprofWriter.write(diff.toHprofData(), out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static HprofData read(String fileName) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(fileName));
+        try {
+            BinaryHprofReader reader = new BinaryHprofReader(in);
+            reader.setStrict(false);
+            reader.read();
+            return reader.getHprofData();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BatchThreadSampler implementation based on the {@code
+ * jdk.ExecutionSample} events of an in-process JFR recording,
+ * streamed with {@code jdk.jfr.consumer.RecordingStream}. JFR samples
+ * threads asynchronously without bringing them to a safepoint, so
+ * unlike {@code Thread.getStackTrace} and {@code ThreadMXBean} the
+ * samples are not biased towards safepoint polls and sampling does
+ * not stall the sampled threads.
+ * <p>
+ * JFR pushes its samples to the stream in chunks, roughly once a
+ * second, while a {@code ThreadSampler} is polled on every tick. The
+ * samples of each thread are therefore queued as they arrive and
+ * each poll returns the oldest pending sample of the thread, or null
+ * if there is none, so the samples appear with a delay of up to one
+ * flush but at the rate JFR took them. Only threads running Java
+ * code are sampled by JFR, so every sample is reported as {@link
+ * Thread.State#RUNNABLE} and idle threads have no samples, much like
+ * {@link SamplingProfiler.SamplingMode#ON_CPU}. JFR reports no
+ * source file names, and its stacks are limited to the depth set
+ * with {@code -XX:FlightRecorderOptions:stackdepth}.
+ * <p>
+ * The JFR API is only accessed reflectively, so this class can be
+ * compiled and loaded anywhere, but constructing it throws {@code
+ * UnsupportedOperationException} unless the VM supports recording
+ * streams, which were added in Java 14. All samplers share one
+ * recording, which is closed when the last sampler is closed.
+ */
+class JfrThreadSampler implements BatchThreadSampler, Closeable {
+
+    private static final String EXECUTION_SAMPLE = "jdk.ExecutionSample";
+
+    /**
+     * Maximum number of samples queued per thread. Older samples are
+     * dropped once a thread is not polled for this many samples.
+     */
+    private static final int MAX_PENDING = 256;
+
+    /**
+     * Shortest sampling period JFR supports.
+     */
+    private static final long MIN_PERIOD_NANOS = 1000 * 1000;
+
+    private static final long DEFAULT_PERIOD_NANOS = 10 * 1000 * 1000;
+
+    /**
+     * The recording shared by all samplers, or null if none is open.
+     * Guarded by JfrThreadSampler.class.
+     */
+    private static Recording recording;
+
+    /**
+     * The number of open samplers. Guarded by JfrThreadSampler.class.
+     */
+    private static int openCount;
+
+    private boolean closed;
+
+    /**
+     * Opens the shared recording if it is not open yet.
+     *
+     * @throws UnsupportedOperationException if JFR recording streams
+     * are not available.
+     */
+    public JfrThreadSampler() {
+        synchronized (JfrThreadSampler.class) {
+            if (recording == null) {
+                recording = new Recording();
+            }
+            openCount++;
+        }
+    }
+
+    /**
+     * Returns true if JFR recording streams are available in this VM,
+     * although starting a recording may still fail if JFR is
+     * disabled.
+     */
+    public static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.consumer.RecordingStream");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override public void setDepth(int depth) {
+        Recording r = recording();
+        synchronized (r) {
+            r.depth = depth;
+        }
+    }
+
+    /**
+     * Sets the period at which JFR samples each thread, which should
+     * match the interval at which the sampler is polled. The shared
+     * recording uses the period set last.
+     */
+    public void setPeriod(long periodNanos) {
+        if (periodNanos < 1) {
+            throw new IllegalArgumentException("periodNanos < 1");
+        }
+        recording().setPeriod(Math.max(periodNanos, MIN_PERIOD_NANOS));
+    }
+
+    @Override public StackTraceElement[] getStackTrace(Thread thread) {
+        return recording().poll(thread);
+    }
+
+    @Override public void getStackTraces(Thread[] threads, int from, int to,
+                                         StackTraceElement[][] stackTraces,
+                                         Thread.State[] threadStates) {
+        Recording r = recording();
+        for (int i = from; i < to; i++) {
+            StackTraceElement[] stackFrames = r.poll(threads[i]);
+            stackTraces[i] = stackFrames;
+            threadStates[i] = (stackFrames == null) ? null : Thread.State.RUNNABLE;
+        }
+    }
+
+    /**
+     * Releases this sampler's use of the shared recording, closing it
+     * if no other sampler uses it.
+     */
+    public void close() {
+        Recording toClose = null;
+        synchronized (JfrThreadSampler.class) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (--openCount == 0) {
+                toClose = recording;
+                recording = null;
+            }
+        }
+        if (toClose != null) {
+            toClose.close();
+        }
+    }
+
+    private Recording recording() {
+        synchronized (JfrThreadSampler.class) {
+            if (closed) {
+                throw new IllegalStateException("sampler closed");
+            }
+            return recording;
+        }
+    }
+
+    /**
+     * A started {@code RecordingStream} and the samples it delivered
+     * that have not been polled yet.
+     */
+    private static final class Recording implements InvocationHandler {
+
+        private final Object stream;
+        private final Object settings;
+        private final Method withPeriod;
+        private final Method ofNanos;
+        private final Method closeStream;
+
+        private final Method getStackTrace;
+        private final Method getThread;
+        private final Method getFrames;
+        private final Method isJavaFrame;
+        private final Method getMethod;
+        private final Method getLineNumber;
+        private final Method getType;
+        private final Method getMethodName;
+        private final Method getClassName;
+        private final Method getJavaThreadId;
+
+        /*
+         * The following are guarded by this.
+         */
+        private int depth = Integer.MAX_VALUE;
+
+        /**
+         * Pending samples of the threads that have been polled, keyed
+         * by thread id. Samples of other threads are dropped.
+         */
+        private final Map<Long, ArrayDeque<StackTraceElement[]>> pending
+                = new HashMap<Long, ArrayDeque<StackTraceElement[]>>();
+
+        private Recording() {
+            try {
+                Class<?> streamClass = Class.forName("jdk.jfr.consumer.RecordingStream");
+                Class<?> settingsClass = Class.forName("jdk.jfr.EventSettings");
+                Class<?> durationClass = Class.forName("java.time.Duration");
+                Class<?> consumerClass = Class.forName("java.util.function.Consumer");
+                Class<?> eventClass = Class.forName("jdk.jfr.consumer.RecordedEvent");
+                Class<?> stackTraceClass = Class.forName("jdk.jfr.consumer.RecordedStackTrace");
+                Class<?> frameClass = Class.forName("jdk.jfr.consumer.RecordedFrame");
+                Class<?> methodClass = Class.forName("jdk.jfr.consumer.RecordedMethod");
+                Class<?> classClass = Class.forName("jdk.jfr.consumer.RecordedClass");
+                Class<?> threadClass = Class.forName("jdk.jfr.consumer.RecordedThread");
+                withPeriod = settingsClass.getMethod("withPeriod", durationClass);
+                ofNanos = durationClass.getMethod("ofNanos", long.class);
+                closeStream = streamClass.getMethod("close");
+                getStackTrace = eventClass.getMethod("getStackTrace");
+                getThread = eventClass.getMethod("getThread", String.class);
+                getFrames = stackTraceClass.getMethod("getFrames");
+                isJavaFrame = frameClass.getMethod("isJavaFrame");
+                getMethod = frameClass.getMethod("getMethod");
+                getLineNumber = frameClass.getMethod("getLineNumber");
+                getType = methodClass.getMethod("getType");
+                getMethodName = methodClass.getMethod("getName");
+                getClassName = classClass.getMethod("getName");
+                getJavaThreadId = threadClass.getMethod("getJavaThreadId");
+
+                Object stream = streamClass.getConstructor().newInstance();
+                boolean started = false;
+                try {
+                    settings = streamClass.getMethod("enable", String.class)
+                            .invoke(stream, EXECUTION_SAMPLE);
+                    setPeriod(DEFAULT_PERIOD_NANOS);
+                    Object consumer
+                            = Proxy.newProxyInstance(JfrThreadSampler.class.getClassLoader(),
+                                                     new Class<?>[] { consumerClass },
+                                                     this);
+                    streamClass.getMethod("onEvent", String.class, consumerClass)
+                            .invoke(stream, EXECUTION_SAMPLE, consumer);
+                    streamClass.getMethod("startAsync").invoke(stream);
+                    started = true;
+                } finally {
+                    // the stream holds a JFR recording until closed
+                    if (!started) {
+                        try {
+                            closeStream.invoke(stream);
+                        } catch (Exception ignored) {
+                        }
+                    }
+                }
+                this.stream = stream;
+            } catch (InvocationTargetException e) {
+                throw unsupported(e.getCause());
+            } catch (Exception e) {
+                throw unsupported(e);
+            } catch (LinkageError e) {
+                throw unsupported(e);
+            }
+        }
+
+        private static UnsupportedOperationException unsupported(Throwable cause) {
+            UnsupportedOperationException e
+                    = new UnsupportedOperationException("JFR recording stream unavailable: "
+                                                        + cause);
+            e.initCause(cause);
+            return e;
+        }
+
+        private void setPeriod(long periodNanos) {
+            try {
+                withPeriod.invoke(settings, ofNanos.invoke(null, periodNanos));
+            } catch (Exception e) {
+                throw new IllegalStateException("cannot set JFR sampling period", e);
+            }
+        }
+
+        /**
+         * Removes and returns the oldest pending sample of a thread.
+         */
+        private synchronized StackTraceElement[] poll(Thread thread) {
+            Long threadId = thread.getId();
+            ArrayDeque<StackTraceElement[]> samples = pending.get(threadId);
+            if (samples == null) {
+                if (thread.isAlive()) {
+                    pending.put(threadId, new ArrayDeque<StackTraceElement[]>());
+                }
+                return null;
+            }
+            if (!thread.isAlive()) {
+                pending.remove(threadId);
+                return null;
+            }
+            return samples.poll();
+        }
+
+        /**
+         * Receives each {@code jdk.ExecutionSample} event as the
+         * {@code Consumer} registered with the stream.
+         */
+        @Override public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("accept")) {
+                try {
+                    accept(args[0]);
+                } catch (Exception e) {
+                    // a malformed event is dropped rather than
+                    // terminating the stream
+                }
+                return null;
+            }
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            if (name.equals("toString")) {
+                return "JfrThreadSampler consumer";
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        private void accept(Object event) throws Exception {
+            Object thread = getThread.invoke(event, "sampledThread");
+            Object stackTrace = getStackTrace.invoke(event);
+            if (thread == null || stackTrace == null) {
+                return;
+            }
+            Long threadId = (Long) getJavaThreadId.invoke(thread);
+            int maxDepth;
+            synchronized (this) {
+                if (!pending.containsKey(threadId)) {
+                    return;
+                }
+                maxDepth = depth;
+            }
+            List<?> frames = (List<?>) getFrames.invoke(stackTrace);
+            StackTraceElement[] stackFrames
+                    = new StackTraceElement[Math.min(frames.size(), maxDepth)];
+            int length = 0;
+            for (Object frame : frames) {
+                if (length == stackFrames.length) {
+                    break;
+                }
+                if (!(Boolean) isJavaFrame.invoke(frame)) {
+                    continue;
+                }
+                Object method = getMethod.invoke(frame);
+                String className = (String) getClassName.invoke(getType.invoke(method));
+                String methodName = (String) getMethodName.invoke(method);
+                int lineNumber = (Integer) getLineNumber.invoke(frame);
+                stackFrames[length++] = new StackTraceElement(className, methodName, null,
+                                                              lineNumber);
+            }
+            if (length == 0) {
+                return;
+            }
+            if (length != stackFrames.length) {
+                StackTraceElement[] shorter = new StackTraceElement[length];
+                System.arraycopy(stackFrames, 0, shorter, 0, length);
+                stackFrames = shorter;
+            }
+            synchronized (this) {
+                ArrayDeque<StackTraceElement[]> samples = pending.get(threadId);
+                if (samples == null) {
+                    return;
+                }
+                if (samples.size() == MAX_PENDING) {
+                    samples.poll();
+                }
+                samples.add(stackFrames);
+            }
+        }
+
+        private void close() {
+            try {
+                closeStream.invoke(stream);
+            } catch (Exception ignored) {
+            }
+            synchronized (this) {
+                pending.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * An immutable set of key/value labels, such as the endpoint or
+ * tenant a thread is working for. Application code labels the
+ * current thread with {@link #push push}, and the {@link
+ * SamplingProfiler} records the labels of each thread with its
+ * samples, so that stack traces can be told apart by label.
+ * <pre>   {@code
+ * Labels.Scope scope = Labels.push("route", "/checkout");
+ * try {
+ *     // samples of this thread are labelled route=/checkout
+ * } finally {
+ *     scope.close();
+ * }
+ * }</pre>
+ * Where try-with-resources is available the scope can be closed
+ * by it instead. Changing labels allocates a new set, but reading
+ * the labels of a thread from the profiler never locks once the
+ * thread has been seen with labels.
+ */
+public final class Labels {
+
+    /**
+     * Keys and values alternately, ordered by key.
+     */
+    private final String[] keysAndValues;
+
+    private final int hashCode;
+
+    private Labels(String[] keysAndValues) {
+        this.keysAndValues = keysAndValues;
+        this.hashCode = Arrays.hashCode(keysAndValues);
+    }
+
+    /**
+     * Returns the labels with the specified keys and values, given
+     * alternately, or null if there are none.
+     *
+     * @throws IllegalArgumentException if a key is repeated or a key
+     * lacks a value.
+     */
+    public static Labels of(String... keysAndValues) {
+        if (keysAndValues.length % 2 != 0) {
+            throw new IllegalArgumentException("key without value: "
+                                               + keysAndValues[keysAndValues.length - 1]);
+        }
+        Labels labels = null;
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            String key = keysAndValues[i];
+            if (labels != null && labels.get(key) != null) {
+                throw new IllegalArgumentException("duplicate key: " + key);
+            }
+            labels = with(labels, key, keysAndValues[i + 1]);
+        }
+        return labels;
+    }
+
+    /**
+     * Returns the specified labels, which may be null, with the
+     * value of a key replaced, or removed if the value is null.
+     * Returns null if no labels remain.
+     */
+    static Labels with(Labels labels, String key, String value) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        String[] old = (labels == null) ? new String[0] : labels.keysAndValues;
+        int index = 0;
+        while (index < old.length && old[index].compareTo(key) < 0) {
+            index += 2;
+        }
+        boolean found = index < old.length && old[index].equals(key);
+        if (value == null) {
+            if (!found) {
+                return labels;
+            }
+            if (old.length == 2) {
+                return null;
+            }
+            String[] keysAndValues = new String[old.length - 2];
+            System.arraycopy(old, 0, keysAndValues, 0, index);
+            System.arraycopy(old, index + 2, keysAndValues, index, old.length - index - 2);
+            return new Labels(keysAndValues);
+        }
+        String[] keysAndValues;
+        if (found) {
+            keysAndValues = old.clone();
+        } else {
+            keysAndValues = new String[old.length + 2];
+            System.arraycopy(old, 0, keysAndValues, 0, index);
+            System.arraycopy(old, index, keysAndValues, index + 2, old.length - index);
+            keysAndValues[index] = key;
+        }
+        keysAndValues[index + 1] = value;
+        return new Labels(keysAndValues);
+    }
+
+    /**
+     * Returns the number of labels.
+     */
+    public int size() {
+        return keysAndValues.length / 2;
+    }
+
+    /**
+     * Returns the key of the label at the specified index. Labels
+     * are ordered by key.
+     */
+    public String getKey(int index) {
+        return keysAndValues[index * 2];
+    }
+
+    /**
+     * Returns the value of the label at the specified index.
+     */
+    public String getValue(int index) {
+        return keysAndValues[index * 2 + 1];
+    }
+
+    /**
+     * Returns the value of the specified key, or null if there is no
+     * label with that key.
+     */
+    public String get(String key) {
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            if (keysAndValues[i].equals(key)) {
+                return keysAndValues[i + 1];
+            }
+        }
+        return null;
+    }
+
+    @Override public int hashCode() {
+        return hashCode;
+    }
+
+    @Override public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof Labels)) {
+            return false;
+        }
+        Labels l = (Labels) o;
+        return hashCode == l.hashCode && Arrays.equals(keysAndValues, l.keysAndValues);
+    }
+
+    @Override public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            if (i != 0) {
+                result.append(',');
+            }
+            result.append(keysAndValues[i]).append('=').append(keysAndValues[i + 1]);
+        }
+        return result.toString();
+    }
+
+    /**
+     * The labels of one thread. Only written by the thread itself,
+     * but read by the profiler, which keeps a reference to the slot
+     * once it has found it so later reads need no lock.
+     */
+    static final class Slot {
+        volatile Labels labels;
+    }
+
+    /**
+     * Slots of the threads that have set labels. Weak so that the
+     * slot of a thread does not outlive it.
+     */
+    private static final Map<Thread, Slot> SLOTS = new WeakHashMap<Thread, Slot>();
+
+    /**
+     * The number of slots ever created, so that the profiler only
+     * looks up the slot of a thread without labels again once
+     * another thread has set labels.
+     */
+    private static volatile int slotCount;
+
+    private static final ThreadLocal<Slot> CURRENT_SLOT = new ThreadLocal<Slot>() {
+        @Override protected Slot initialValue() {
+            Slot slot = new Slot();
+            synchronized (SLOTS) {
+                SLOTS.put(Thread.currentThread(), slot);
+                slotCount++;
+            }
+            return slot;
+        }
+    };
+
+    /**
+     * Returns the slot of the specified thread, or null if it has
+     * never set labels.
+     */
+    static Slot slotOf(Thread thread) {
+        synchronized (SLOTS) {
+            return SLOTS.get(thread);
+        }
+    }
+
+    static int slotCount() {
+        return slotCount;
+    }
+
+    /**
+     * Returns the labels of the current thread, or null if it has
+     * none.
+     */
+    public static Labels current() {
+        return CURRENT_SLOT.get().labels;
+    }
+
+    /**
+     * Sets the value of a label of the current thread until the
+     * returned scope is closed, which restores the labels the thread
+     * had before. A null value removes the label within the scope.
+     * Scopes must be closed on the same thread in the reverse order
+     * they were opened.
+     */
+    public static Scope push(String key, String value) {
+        Slot slot = CURRENT_SLOT.get();
+        Labels previous = slot.labels;
+        slot.labels = with(previous, key, value);
+        return new Scope(slot, previous);
+    }
+
+    /**
+     * Restores the labels of a thread when closed.
+     */
+    public static final class Scope implements Closeable {
+
+        private final Slot slot;
+        private final Labels previous;
+
+        private Scope(Slot slot, Labels previous) {
+            this.slot = slot;
+            this.previous = previous;
+        }
+
+        /**
+         * Restores the labels the thread had when the scope was
+         * opened.
+         *
+         * @throws IllegalStateException if called on another thread.
+         */
+        public void close() {
+            if (CURRENT_SLOT.get() != slot) {
+                throw new IllegalStateException("scope closed on another thread");
+            }
+            slot.labels = previous;
+        }
+    }
+}
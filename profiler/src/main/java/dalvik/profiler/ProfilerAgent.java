@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Java agent that profiles a whole program from startup without
+ * changes to its code. Run with:
+ * <pre>
+ * java -javaagent:profiler.jar=interval=10ms,output=app.hprof ...
+ * </pre>
+ * The agent starts a {@link SamplingProfiler} in {@code premain} and
+ * writes its data as binary hprof when the VM shuts down, and
+ * optionally whenever a signal is received or a trigger file
+ * appears. Options are comma separated {@code key=value} pairs:
+ * <ul>
+ * <li>{@code depth}: maximum stack depth, 12 by default.
+ * <li>{@code interval}: time between samples, as a number followed
+ * by {@code us}, {@code ms} or {@code s}, or milliseconds if there
+ * is no unit. 10ms by default.
+ * <li>{@code threads}: pattern the names of sampled threads must
+ * entirely match, see {@link
+ * SamplingProfiler#newThreadNameThreadSet}. All threads by default.
+ * The pattern cannot contain commas.
+ * <li>{@code output}: file the data is written to, {@code
+ * profile.hprof} in the working directory by default. Each dump
+ * replaces the previous one.
+ * <li>{@code signal}: name of a signal, such as {@code USR2}, on
+ * which to dump. Only supported on VMs with {@code sun.misc.Signal}.
+ * <li>{@code trigger}: file whose appearance causes a dump. The file
+ * is deleted once the dump is written. Checked once a second.
+ * <li>{@code sampler}: {@code jfr} to sample with JFR where
+ * available, see {@link SamplingProfiler#THREAD_SAMPLER_PROPERTY}.
+ * </ul>
+ * Startup stays fast: the writers are only loaded on the first dump
+ * and no thread beyond the profiler's own is started unless a signal
+ * or trigger file is requested.
+ */
+public final class ProfilerAgent {
+
+    private static final long TRIGGER_POLL_MILLIS = 1000;
+
+    /**
+     * Options parsed from the agent argument.
+     */
+    static final class Options {
+        int depth = 12;
+        long intervalMicros = 10 * 1000;
+        Pattern threads;
+        File output = new File("profile.hprof");
+        String signal;
+        File trigger;
+        String sampler;
+
+        /**
+         * Parses comma separated {@code key=value} options. A null or
+         * empty string yields the defaults.
+         *
+         * @throws IllegalArgumentException if an option is unknown or
+         * its value is invalid.
+         */
+        static Options parse(String arguments) {
+            Options options = new Options();
+            if (arguments == null || arguments.length() == 0) {
+                return options;
+            }
+            for (String option : arguments.split(",")) {
+                int equals = option.indexOf('=');
+                if (equals < 1) {
+                    throw new IllegalArgumentException("key=value expected but found " + option);
+                }
+                String key = option.substring(0, equals);
+                String value = option.substring(equals + 1);
+                if (key.equals("depth")) {
+                    options.depth = parseInt(key, value);
+                    if (options.depth < 1) {
+                        throw new IllegalArgumentException("depth < 1: " + value);
+                    }
+                } else if (key.equals("interval")) {
+                    options.intervalMicros = parseIntervalMicros(value);
+                } else if (key.equals("threads")) {
+                    options.threads = Pattern.compile(value);
+                } else if (key.equals("output")) {
+                    options.output = new File(value);
+                } else if (key.equals("signal")) {
+                    options.signal = value;
+                } else if (key.equals("trigger")) {
+                    options.trigger = new File(value);
+                } else if (key.equals("sampler")) {
+                    options.sampler = value;
+                } else {
+                    throw new IllegalArgumentException("unknown option " + key);
+                }
+            }
+            return options;
+        }
+
+        private static int parseInt(String key, String value) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad " + key + ": " + value);
+            }
+        }
+
+        private static long parseIntervalMicros(String value) {
+            TimeUnit unit = TimeUnit.MILLISECONDS;
+            String number = value;
+            if (value.endsWith("us")) {
+                unit = TimeUnit.MICROSECONDS;
+                number = value.substring(0, value.length() - 2);
+            } else if (value.endsWith("ms")) {
+                number = value.substring(0, value.length() - 2);
+            } else if (value.endsWith("s")) {
+                unit = TimeUnit.SECONDS;
+                number = value.substring(0, value.length() - 1);
+            }
+            long interval;
+            try {
+                interval = Long.parseLong(number);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad interval: " + value);
+            }
+            if (interval < 1) {
+                throw new IllegalArgumentException("interval < 1: " + value);
+            }
+            return unit.toMicros(interval);
+        }
+    }
+
+    private final SamplingProfiler profiler;
+    private final File output;
+    private final Thread shutdownHook;
+
+    /**
+     * Runs trigger file checks and dumps requested by signal, or null
+     * if neither is enabled.
+     */
+    private ScheduledExecutorService executor;
+
+    private ProfilerAgent(SamplingProfiler profiler, File output) {
+        this.profiler = profiler;
+        this.output = output;
+        this.shutdownHook = new Thread("SamplingProfiler-shutdown") {
+            @Override public void run() {
+                finish();
+            }
+        };
+    }
+
+    /**
+     * Entry point of the agent when the VM is started with {@code
+     * -javaagent}.
+     *
+     * @throws IllegalArgumentException if the options are invalid,
+     * which aborts VM startup.
+     */
+    public static void premain(String arguments, Instrumentation instrumentation) {
+        start(arguments);
+    }
+
+    /**
+     * Starts profiling with the specified options and returns the
+     * agent, which dumps when the VM shuts down.
+     */
+    static ProfilerAgent start(String arguments) {
+        Options options = Options.parse(arguments);
+        if (options.sampler != null) {
+            System.setProperty(SamplingProfiler.THREAD_SAMPLER_PROPERTY, options.sampler);
+        }
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        SamplingProfiler.ThreadSet threadSet = (options.threads == null)
+                ? SamplingProfiler.newThreadGroupTheadSet(root)
+                : SamplingProfiler.newThreadNameThreadSet(root, options.threads);
+        SamplingProfiler profiler = new SamplingProfiler(options.depth, threadSet);
+        final ProfilerAgent agent = new ProfilerAgent(profiler, options.output);
+        if (options.signal != null || options.trigger != null) {
+            agent.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SamplingProfiler-dump");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        if (options.signal != null) {
+            agent.handleSignal(options.signal);
+        }
+        if (options.trigger != null) {
+            final File trigger = options.trigger;
+            agent.executor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    if (trigger.exists()) {
+                        agent.dumpQuietly();
+                        trigger.delete();
+                    }
+                }
+            }, TRIGGER_POLL_MILLIS, TRIGGER_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(agent.shutdownHook);
+        profiler.start(options.intervalMicros, TimeUnit.MICROSECONDS);
+        return agent;
+    }
+
+    /**
+     * Dumps whenever the named signal is received, if the VM supports
+     * {@code sun.misc.Signal}, which is only accessed reflectively.
+     */
+    private void handleSignal(String name) {
+        try {
+            Class<?> signalClass = Class.forName("sun.misc.Signal");
+            Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+            Object signal = signalClass.getConstructor(String.class).newInstance(name);
+            Object handler = Proxy.newProxyInstance(ProfilerAgent.class.getClassLoader(),
+                                                    new Class<?>[] { handlerClass },
+                                                    new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("handle")) {
+                        // dump off the signal dispatch thread
+                        executor.execute(new Runnable() {
+                            public void run() {
+                                dumpQuietly();
+                            }
+                        });
+                        return null;
+                    }
+                    if (method.getName().equals("equals")) {
+                        return proxy == args[0];
+                    }
+                    if (method.getName().equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    }
+                    return "ProfilerAgent signal handler";
+                }
+            });
+            signalClass.getMethod("handle", signalClass, handlerClass)
+                    .invoke(null, signal, handler);
+        } catch (Exception e) {
+            System.out.println("Problem handling signal " + name + ": " + e);
+        } catch (LinkageError e) {
+            System.out.println("Problem handling signal " + name + ": " + e);
+        }
+    }
+
+    /**
+     * Returns the profiler run by the agent.
+     */
+    public SamplingProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Writes a snapshot of the data collected so far to the output
+     * file without interrupting sampling.
+     */
+    public void dump() throws IOException {
+        Dump.write(profiler.snapshot(), output);
+    }
+
+    private void dumpQuietly() {
+        try {
+            dump();
+        } catch (IOException e) {
+            System.out.println("Problem writing profile to " + output + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops profiling and writes the final data, as when the VM shuts
+     * down, without waiting for shutdown.
+     */
+    void shutdown() {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        finish();
+    }
+
+    private void finish() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        profiler.stop();
+        try {
+            Dump.write(profiler.getHprofData(), output);
+        } catch (IOException e) {
+            System.out.println("Problem writing profile to " + output + ": " + e.getMessage());
+        }
+        profiler.shutdown();
+    }
+
+    /**
+     * Writes dumps. A separate class so that the writers are only
+     * loaded on the first dump.
+     */
+    private static final class Dump {
+
+        /**
+         * Writes the data to a temporary file next to the output file
+         * and then renames it, so a reader never sees a partial dump.
+         */
+        static synchronized void write(HprofData hprofData, File output) throws IOException {
+            File temporary = new File(output.getPath() + ".tmp");
+            OutputStream out = new FileOutputStream(temporary);
+            try {
+                BinaryHprofWriter.write(hprofData, out);
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(output)) {
+                output.delete();
+                if (!temporary.renameTo(output)) {
+                    throw new IOException("cannot rename " + temporary + " to " + output);
+                }
+            }
+        }
+    }
+}
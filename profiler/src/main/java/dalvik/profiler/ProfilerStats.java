@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+/**
+ * ProfilerStats describes the behavior and cost of a {@link
+ * SamplingProfiler} itself, as returned by {@link
+ * SamplingProfiler#getStats getStats}: how long sample ticks take,
+ * how long capturing a single thread takes, how many threads are
+ * captured per tick, how many ticks were missed or late, and how
+ * large the sample store has grown. Tick statistics accumulate over
+ * the lifetime of the profiler, while the store statistics describe
+ * the store at the time of the call.
+ */
+public final class ProfilerStats {
+
+    /**
+     * A Histogram records a distribution of non-negative values in
+     * power of two buckets, so recording a value is constant time
+     * and never allocates. Percentiles are therefore only accurate to
+     * within a factor of two, but the count, sum and maximum are
+     * exact.
+     */
+    public static final class Histogram {
+
+        /**
+         * Bucket {@code i} counts the values from {@code 2^(i-1)}
+         * up to {@code 2^i - 1}, bucket zero counts zeros.
+         */
+        private final long[] buckets = new long[64];
+        private long count;
+        private long sum;
+        private long max;
+
+        Histogram() {
+        }
+
+        Histogram(Histogram histogram) {
+            add(histogram);
+        }
+
+        /**
+         * Records a value, clamping negative values to zero.
+         */
+        void record(long value) {
+            record(value, 1);
+        }
+
+        /**
+         * Records {@code n} occurrences of a value, clamping negative
+         * values to zero.
+         */
+        void record(long value, long n) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets[64 - Long.numberOfLeadingZeros(value)] += n;
+            count += n;
+            sum += value * n;
+            if (value > max) {
+                max = value;
+            }
+        }
+
+        /**
+         * Adds all values recorded by another histogram.
+         */
+        void add(Histogram histogram) {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] += histogram.buckets[i];
+            }
+            count += histogram.count;
+            sum += histogram.sum;
+            max = Math.max(max, histogram.max);
+        }
+
+        void clear() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = 0;
+            }
+            count = 0;
+            sum = 0;
+            max = 0;
+        }
+
+        /**
+         * Returns the number of values recorded.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the sum of the values recorded.
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * Returns the largest value recorded, zero if none.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Returns the mean of the values recorded, zero if none.
+         */
+        public double getMean() {
+            return (count == 0) ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Returns an upper bound on the specified percentile of the
+         * values recorded, at most twice the true value, or zero if
+         * none were recorded.
+         *
+         * @param percentile The percentile between 0 and 100.
+         */
+        public long getPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile out of range [0, 100]: "
+                                                   + percentile);
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    long upper = (i == 0) ? 0 : (1L << i) - 1;
+                    return Math.min(upper, max);
+                }
+            }
+            return max;
+        }
+
+        @Override public String toString() {
+            return ("Histogram[count=" + count
+                    + " mean=" + (long) getMean()
+                    + " p50=" + getPercentile(50)
+                    + " p99=" + getPercentile(99)
+                    + " max=" + max
+                    + "]");
+        }
+    }
+
+    final Histogram tickNanos;
+    final Histogram threadNanos;
+    final Histogram threadsPerTick;
+    long missedTicks;
+    long lateTicks;
+    long failedTicks;
+    RuntimeException failure;
+    int distinctStacks;
+    int maxPendingStacks;
+    int distinctFrames;
+    long retainedBytes;
+
+    ProfilerStats() {
+        this.tickNanos = new Histogram();
+        this.threadNanos = new Histogram();
+        this.threadsPerTick = new Histogram();
+    }
+
+    /**
+     * Returns a deep copy.
+     */
+    ProfilerStats copy() {
+        return new ProfilerStats(this);
+    }
+
+    private ProfilerStats(ProfilerStats stats) {
+        this.tickNanos = new Histogram(stats.tickNanos);
+        this.threadNanos = new Histogram(stats.threadNanos);
+        this.threadsPerTick = new Histogram(stats.threadsPerTick);
+        this.missedTicks = stats.missedTicks;
+        this.lateTicks = stats.lateTicks;
+        this.failedTicks = stats.failedTicks;
+        this.failure = stats.failure;
+        this.distinctStacks = stats.distinctStacks;
+        this.maxPendingStacks = stats.maxPendingStacks;
+        this.distinctFrames = stats.distinctFrames;
+        this.retainedBytes = stats.retainedBytes;
+    }
+
+    /**
+     * Returns the number of ticks taken.
+     */
+    public long getTicks() {
+        return tickNanos.getCount();
+    }
+
+    /**
+     * Returns the distribution of the wall clock duration of each
+     * tick in nanoseconds, from noticing thread changes to the last
+     * stack being recorded.
+     */
+    public Histogram getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * Returns the distribution of the time in nanoseconds to capture
+     * the stack of a single thread. Threads captured in one batch are
+     * each charged an equal share of the batch.
+     */
+    public Histogram getThreadNanos() {
+        return threadNanos;
+    }
+
+    /**
+     * Returns the distribution of the number of threads whose stacks
+     * were recorded per tick.
+     */
+    public Histogram getThreadsPerTick() {
+        return threadsPerTick;
+    }
+
+    /**
+     * Returns the number of ticks skipped because a previous tick
+     * overran their deadline.
+     */
+    public long getMissedTicks() {
+        return missedTicks;
+    }
+
+    /**
+     * Returns the number of ticks that started more than a quarter of
+     * the sampling interval after their deadline, typically because
+     * the timer thread was not scheduled in time.
+     */
+    public long getLateTicks() {
+        return lateTicks;
+    }
+
+    /**
+     * Returns the number of ticks that threw an exception, for
+     * example from a {@link SamplingProfiler.ThreadSet}. Sampling
+     * continues with the next tick.
+     */
+    public long getFailedTicks() {
+        return failedTicks;
+    }
+
+    /**
+     * Returns the exception thrown by the first failed tick, or null
+     * if no tick failed.
+     */
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns the number of distinct stacks currently retained.
+     */
+    public int getDistinctStacks() {
+        return distinctStacks;
+    }
+
+    /**
+     * Returns the largest number of stacks any capture worker held
+     * at the end of a tick, waiting to be merged. With {@link
+     * SamplingProfiler.Aggregation#TOP_STACKS} or {@link
+     * SamplingProfiler.Aggregation#CALL_TREE} this stays bounded by
+     * {@link SamplingProfiler#getMaxStacks maxStacks}, otherwise it
+     * grows until the next merge.
+     */
+    public int getMaxPendingStacks() {
+        return maxPendingStacks;
+    }
+
+    /**
+     * Returns the number of distinct frames currently retained by
+     * the capture workers.
+     */
+    public int getDistinctFrames() {
+        return distinctFrames;
+    }
+
+    /**
+     * Returns a rough estimate of the bytes retained by the sample
+     * store, not counting the strings shared with the VM's own
+     * stack trace elements.
+     */
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    @Override public String toString() {
+        return ("ProfilerStats[ticks=" + getTicks()
+                + " missedTicks=" + missedTicks
+                + " lateTicks=" + lateTicks
+                + " failedTicks=" + failedTicks
+                + " tickNanos=" + tickNanos
+                + " threadNanos=" + threadNanos
+                + " threadsPerTick=" + threadsPerTick
+                + " distinctStacks=" + distinctStacks
+                + " maxPendingStacks=" + maxPendingStacks
+                + " distinctFrames=" + distinctFrames
+                + " retainedBytes=" + retainedBytes
+                + "]");
+    }
+}
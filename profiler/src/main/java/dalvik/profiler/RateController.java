@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+/**
+ * RateController chooses the sampling interval that keeps the cost of
+ * sampling within a budget. The budget is the fraction of one core
+ * that sampling may use, so a tick costing {@code c} nanoseconds
+ * needs an interval of at least {@code c / budget}. The cost is
+ * smoothed with an exponentially weighted moving average so that a
+ * single slow tick, for example one delayed by garbage collection,
+ * does not immediately slow down sampling. The interval never drops
+ * below the minimum the profiler was started with.
+ */
+final class RateController {
+
+    /**
+     * Weight of the newest tick in the moving average is {@code 1 /
+     * 2^SMOOTHING_SHIFT}.
+     */
+    private static final int SMOOTHING_SHIFT = 3;
+
+    private final long minIntervalNanos;
+    private final double budget;
+
+    /**
+     * Moving average of the tick cost, zero before the first tick.
+     */
+    private long averageCostNanos;
+
+    private long intervalNanos;
+
+    /**
+     * @param minIntervalNanos The shortest interval to use.
+     * @param budget The fraction of one core, greater than 0 and at
+     * most 1, that sampling may use.
+     */
+    public RateController(long minIntervalNanos, double budget) {
+        if (minIntervalNanos < 1) {
+            throw new IllegalArgumentException("minIntervalNanos < 1");
+        }
+        if (!(budget > 0 && budget <= 1)) {
+            throw new IllegalArgumentException("budget out of range (0, 1]: " + budget);
+        }
+        this.minIntervalNanos = minIntervalNanos;
+        this.budget = budget;
+        this.intervalNanos = minIntervalNanos;
+    }
+
+    /**
+     * Records the cost of a tick and returns the interval to use
+     * before the next one.
+     */
+    public long tick(long costNanos) {
+        if (averageCostNanos == 0) {
+            averageCostNanos = costNanos;
+        } else {
+            averageCostNanos += (costNanos - averageCostNanos) >> SMOOTHING_SHIFT;
+        }
+        intervalNanos = Math.max(minIntervalNanos, (long) (averageCostNanos / budget));
+        return intervalNanos;
+    }
+
+    /**
+     * Returns the interval chosen after the latest tick.
+     */
+    public long getIntervalNanos() {
+        return intervalNanos;
+    }
+
+    /**
+     * Returns the smoothed cost of a tick.
+     */
+    public long getAverageCostNanos() {
+        return averageCostNanos;
+    }
+}
@@ -16,18 +16,34 @@
 
 package dalvik.profiler;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 /**
  * A sampling profiler. It currently is implemented without any
  * virtual machine support, relying solely on {@code
- * Thread.getStackTrace} to collect samples. As such, the overhead is
+ * Thread.getStackTrace} or {@code ThreadMXBean.getThreadInfo} to
+ * collect samples. As such, the overhead is
  * higher than a native approach and it does not provide insight into
  * where time is spent within native code, but it can still provide
  * useful insight into where a program is spending time.
@@ -53,14 +69,175 @@ import java.util.TimerTask;
  * profiler.shutdown();
  * AsciiHprofWriter.write(profiler.getHprofData(), System.out);
  * }</pre>
+ *
+ * <h3>Sampling Many Threads</h3>
+ *
+ * By default all stacks are captured serially on the profiler's
+ * timer thread. For processes with thousands of threads a single
+ * sample tick can take longer than the sampling interval. {@link
+ * #setCaptureWorkers setCaptureWorkers} splits the sampled threads
+ * across a small pool of capture workers, each of which aggregates
+ * into its own shard. Shards are only merged into the {@code
+ * HprofData} when it is requested with {@link #getHprofData}.
+ *
+ * <h3>JFR Sampling</h3>
+ *
+ * Stack walks from the profiler bring each sampled thread to a
+ * safepoint, which stalls it and biases samples towards safepoint
+ * polls. On VMs with JFR recording streams, setting the system
+ * property {@value #THREAD_SAMPLER_PROPERTY} to {@value
+ * #JFR_THREAD_SAMPLER} before creating the profiler samples stacks
+ * with JFR instead, see {@link JfrThreadSampler}. Where JFR is not
+ * available the default sampler is used.
+ *
+ * <h3>Continuous Profiling</h3>
+ *
+ * {@link #snapshot} returns a consistent copy of the data collected so
+ * far without stopping the profiler. Samples and thread events are
+ * double buffered: between two ticks the caller swaps the timer
+ * thread's buffers for empty ones and then merges and copies the
+ * filled ones on its own thread.
+ *
+ * <h3>Aggregation</h3>
+ *
+ * By default every distinct stack is kept in full with its sample
+ * count. {@link #setAggregation setAggregation} can instead select a
+ * per-thread call tree in which stacks that share callers share
+ * storage, which uses much less memory for deep, recursive or
+ * framework heavy code. The call tree is exported as ordinary stack
+ * traces whenever {@code HprofData} is requested. For profiling
+ * sessions lasting days, {@link Aggregation#TOP_STACKS} bounds memory
+ * use by only keeping the most frequent stacks, at the cost of
+ * approximate counts.
+ *
+ * <h3>Thread States</h3>
+ *
+ * Each sample records the state of its thread, which is kept with
+ * the stack trace in the {@code HprofData} and written as a
+ * synthetic leaf frame. By default every thread is sampled whatever
+ * its state, showing where wall clock time goes. In a server with
+ * large idle thread pools, {@link SamplingMode#ON_CPU} records only
+ * runnable threads so that parked threads do not hide the hotspots.
+ *
+ * <h3>CPU Time</h3>
+ *
+ * By default each sample counts one, however much CPU its thread
+ * used. With {@link #setCountUnit setCountUnit} samples can instead
+ * be weighted by the CPU time each thread consumed since it was
+ * previously sampled, as reported by {@code
+ * ThreadMXBean.getThreadCpuTime}. Threads that used no CPU time are
+ * not recorded. All counts are 64-bit so long sessions cannot
+ * overflow them.
+ *
+ * <h3>Overhead Budget</h3>
+ *
+ * When profiling in production, {@link #setOverheadBudget
+ * setOverheadBudget} caps the cost of sampling to a fraction of one
+ * core. The profiler measures how long its ticks take and lengthens
+ * the sampling interval to stay within the budget, recording the
+ * interval actually achieved in the {@code HprofData}.
+ *
+ * <h3>Time Windows</h3>
+ *
+ * For continuous profiling, {@link #setWindows setWindows} cuts the
+ * collected data into windows of fixed length, each with its own
+ * {@code HprofData}, and keeps the most recent windows in memory.
+ * Finished windows can also be written to a directory as separate
+ * binary hprof files with {@link #setWindowDirectory
+ * setWindowDirectory}. Windows are cut on a separate thread using
+ * the same hand off as {@link #snapshot}, so the sample tick is
+ * never stalled.
+ *
+ * <h3>Truncation</h3>
+ *
+ * Stacks deeper than the profiler's depth keep their leaf frames
+ * only. With {@link #setRootDepth setRootDepth} a number of root
+ * frames is kept as well, so that a hot leaf can still be traced to
+ * the entry point that called it, and with {@link #setMarkTruncation
+ * setMarkTruncation} the dropped frames are marked by a synthetic
+ * frame so truncated stacks can be told apart.
+ *
+ * <h3>Overhead Metrics</h3>
+ *
+ * The profiler measures itself: {@link #getStats getStats} reports
+ * the distribution of tick durations, the time to capture each
+ * thread and the number of threads captured per tick, missed and
+ * late ticks, and the size of the sample store. Recording these on
+ * each tick does not allocate.
+ *
+ * <h3>Virtual Threads</h3>
+ *
+ * Virtual threads can be sampled with a {@link VirtualThreadSet},
+ * which adds the registered virtual threads that are mounted to the
+ * platform threads. All virtual threads of a task are reported as a
+ * single thread named after the task, so the thread history stays
+ * bounded however many virtual threads are created. Virtual threads
+ * have no CPU time of their own, so they are not sampled when
+ * counting {@link HprofData.CountUnit#CPU_NANOS CPU time}; their carrier
+ * threads are.
+ *
+ * <h3>Allocations</h3>
+ *
+ * With {@link #setAllocationSampling setAllocationSampling} the
+ * profiler also reads how many bytes each sampled thread has
+ * allocated, using {@code
+ * com.sun.management.ThreadMXBean.getThreadAllocatedBytes}. Every
+ * time a thread crosses another multiple of the sampling interval,
+ * one sampled allocation of that many bytes is attributed to the
+ * stack captured on that tick. The resulting allocation sites are
+ * written as {@code ALLOC_SITES} records. The class of the objects
+ * allocated is not known.
+ *
+ * <h3>Heap Summaries</h3>
+ *
+ * With {@link #setHeapSummaryInterval setHeapSummaryInterval} the
+ * timer thread also takes a summary of the heap at a fixed
+ * interval, recording the bytes in use and the total bytes
+ * allocated so far, so that spikes in the samples can be correlated
+ * with heap growth. The summaries are written as {@code
+ * HEAP_SUMMARY} records.
+ *
+ * <h3>Lock Contention</h3>
+ *
+ * With {@link SamplingMode#CONTENTION} only threads contending for a
+ * monitor or a {@code java.util.concurrent} lock are recorded. Besides
+ * the usual samples of their stacks, each such sample is recorded
+ * as a {@link HprofData.LockSite lock site} keyed by the identity of
+ * the lock, the stack of the waiting thread and the stack of the
+ * thread owning the lock, so the hottest locks can be traced both to
+ * the code queuing on them and to the code holding them. With
+ * {@link #setContentionTiming setContentionTiming} the time the
+ * waiting threads spent blocked or waiting is measured as well.
+ *
+ * <h3>Labels</h3>
+ *
+ * Application code can label the current thread with {@link
+ * Labels#push Labels.push}, for example with the endpoint or tenant
+ * it is serving. The labels of a thread at the time it is sampled
+ * are part of the key samples are aggregated by, so the same stack
+ * is counted separately for each endpoint, and are kept with the
+ * stack traces in the {@code HprofData}, see {@link
+ * HprofData#filterByLabel}. Reading the labels of a thread is a
+ * single volatile read.
+ *
+ * <h3>Timeline</h3>
+ *
+ * Aggregated counts show where time went but not when, so a stall
+ * of a few seconds is invisible in a long session. With {@link
+ * #setTimeline setTimeline} the profiler also keeps the sequence of
+ * samples of each thread with the time of their tick, delta encoded
+ * in a {@link Timeline} that takes a few bytes per sample. Timelines
+ * are written as {@code TIMELINE} records whose record times are the
+ * actual times of their samples, so tools can render each thread's
+ * stacks over time.
  */
 public final class SamplingProfiler {
 
     /**
      * Map of stack traces to a mutable sample count.
      */
-    private final Map<HprofData.StackTrace, int[]> stackTraces
-            = new HashMap<HprofData.StackTrace, int[]>();
+    private final Map<HprofData.StackTrace, long[]> stackTraces
+            = new HashMap<HprofData.StackTrace, long[]>();
 
     /**
      * Data collected by the sampling profiler
@@ -68,23 +245,113 @@ public final class SamplingProfiler {
     private final HprofData hprofData = new HprofData(stackTraces);
 
     /**
-     * Timer that is used for the lifetime of the profiler
+     * Scheduler that is used for the lifetime of the profiler. Its
+     * thread is referred to as the timer thread.
      */
-    private final Timer timer = new Timer("SamplingProfiler", true);
+    private final SamplingScheduler scheduler = new SamplingScheduler("SamplingProfiler");
 
     /**
      * A sampler is created every time profiling starts and cleared
-     * everytime profiling stops because once a {@code TimerTask} is
-     * canceled it cannot be reused.
+     * everytime profiling stops.
      */
     private Sampler sampler;
 
+    /**
+     * The fraction of the sampling interval over which sample ticks
+     * are randomly displaced. See {@link #setJitter setJitter}.
+     */
+    private double jitter;
+
+    /**
+     * The fraction of one core that sampling may use, zero for no
+     * limit. See {@link #setOverheadBudget setOverheadBudget}.
+     */
+    private double overheadBudget;
+
+    /**
+     * Time spent sampling in earlier sampling periods, for computing
+     * the effective sampling interval.
+     */
+    private long samplingNanos;
+
+    /**
+     * {@code System.nanoTime} when the current sampling period, or
+     * the current window if it started later, started.
+     */
+    private long startNanos;
+
+    /**
+     * Scheduler ticks and missed ticks of the current sampling period
+     * that were attributed to earlier windows.
+     */
+    private long windowTicksBase;
+    private long windowMissedTicksBase;
+
+    /**
+     * Length of a time window, zero if windows are not used.
+     */
+    private long windowNanos;
+
+    /**
+     * Time between heap summaries, zero if the heap is not
+     * summarized.
+     */
+    private long heapSummaryNanos;
+
+    /**
+     * Takes heap summaries on the timer thread, null if the heap is
+     * not summarized.
+     */
+    private HeapMonitor heapMonitor;
+
+    /**
+     * The maximum number of finished windows kept in {@link #windows}.
+     */
+    private int maxWindows;
+
+    /**
+     * Directory that finished windows are written to, or null.
+     */
+    private File windowDirectory;
+
+    /**
+     * The most recent finished windows, oldest first.
+     */
+    private final LinkedList<HprofData> windows = new LinkedList<HprofData>();
+
+    /**
+     * Executor that cuts windows while sampling, created when first
+     * needed.
+     */
+    private ScheduledExecutorService windowExecutor;
+
+    /**
+     * The thread of {@link #windowExecutor}, which is not sampled.
+     */
+    private volatile Thread windowThread;
+
+    /**
+     * Cuts windows periodically while sampling, null when stopped.
+     */
+    private Future<?> windowFuture;
+
     /**
      * The maximum number of {@code StackTraceElements} to retain in
      * each stack.
      */
     private final int depth;
 
+    /**
+     * The number of root frames kept in truncated stacks.
+     */
+    private int rootDepth;
+
+    /**
+     * True if truncated stacks are marked even when no root frames
+     * are kept.
+     */
+    private boolean markTruncation;
+
     /**
      * The {@code ThreadSet} that identifies which threads to sample.
      */
@@ -102,32 +369,258 @@ public final class SamplingProfiler {
 
     /**
      * The threads currently known to the profiler for detecting
-     * thread start and end events.
+     * thread start and end events. Reused as long as it is large
+     * enough, the first {@link #currentThreadCount} elements are
+     * valid and the rest are null.
      */
     private Thread[] currentThreads = new Thread[0];
 
+    private int currentThreadCount;
+
+    /**
+     * What the profiler knows about a thread of {@link
+     * #currentThreads}.
+     */
+    private static final class ThreadEntry {
+
+        final Thread thread;
+
+        /**
+         * The identifier of the thread, or zero if the thread is not
+         * sampled, for example because it belongs to the profiler
+         * itself.
+         */
+        final int threadId;
+
+        /**
+         * True if the thread is a virtual thread sharing the
+         * identifier of its task, which never ends.
+         */
+        final boolean virtual;
+
+        /**
+         * The {@link #threadGeneration} in which the thread was last
+         * seen in the thread set.
+         */
+        long generation;
+
+        /**
+         * CPU time of the thread when it was last sampled, or -1 if
+         * not yet known. Only written by the shard sampling the
+         * thread.
+         */
+        long cpuNanos = -1;
+
+        /**
+         * Bytes allocated by the thread when it was last sampled, or
+         * -1 if not yet known. Only written by the shard sampling the
+         * thread.
+         */
+        long allocatedBytes = -1;
+
+        /**
+         * Total time in milliseconds the thread had spent blocked or
+         * waiting when it was last sampled, or -1 if not yet known.
+         * Only written by the shard sampling the thread.
+         */
+        long waitMillis = -1;
+
+        /**
+         * The slot holding the labels of the thread, or null if the
+         * thread had not set labels when there were {@link
+         * #labelSlotCount} slots. Only written by the shard sampling
+         * the thread.
+         */
+        Labels.Slot labelSlot;
+        int labelSlotCount = -1;
+
+        ThreadEntry(Thread thread, int threadId, boolean virtual) {
+            this.thread = thread;
+            this.threadId = threadId;
+            this.virtual = virtual;
+        }
+    }
+
     /**
-     * Map of currently active threads to their identifiers. When
-     * threads disappear they are removed and only referenced by their
+     * Map of currently active threads to their entries, keyed by
+     * identity since threads do not override equals. When threads
+     * disappear they are removed and only referenced by their
      * identifiers to prevent retaining garbage threads.
      */
-    private final Map<Thread, Integer> threadIds = new HashMap<Thread, Integer>();
+    private final Map<Thread, ThreadEntry> threadEntries
+            = new IdentityHashMap<Thread, ThreadEntry>();
+
+    /**
+     * Incremented each time the thread set changes, so that threads
+     * that were not seen again can be recognized by the stale
+     * generation of their entry without comparing thread sets.
+     */
+    private long threadGeneration;
+
+    /**
+     * Map of virtual thread tasks to their identifiers. All virtual
+     * threads of a task share the task's identifier, which is never
+     * ended, so that short lived virtual threads do not each add to
+     * the thread history.
+     */
+    private final Map<String, Integer> taskThreadIds = new HashMap<String, Integer>();
+
+    /**
+     * Thread entries parallel to {@link #currentThreads}.
+     */
+    private ThreadEntry[] currentEntries = new ThreadEntry[0];
+
+    /**
+     * Sampled threads that may own a lock, keyed by their {@code
+     * Thread.getId}, for finding lock owners when sampling
+     * contention. Rebuilt by the timer thread before a tick when the
+     * current threads changed, and only read by capture workers.
+     */
+    private final Map<Long, ThreadEntry> entriesById = new HashMap<Long, ThreadEntry>();
+
+    /**
+     * True if {@link #entriesById} does not reflect {@link
+     * #currentEntries}. Only accessed by the timer thread.
+     */
+    private boolean entriesByIdStale = true;
+
+    /**
+     * Scratch array the next {@link #currentEntries} are built in,
+     * swapped with it when the thread set changes.
+     */
+    private ThreadEntry[] nextEntries = new ThreadEntry[0];
+
+    /**
+     * Shards that samples are aggregated into, one per capture
+     * worker. Each shard is only written by its own worker during a
+     * sample tick and is merged into {@link #hprofData} by {@link
+     * #collect collect}.
+     */
+    private Shard[] shards;
+
+    /**
+     * The call tree that merged samples are aggregated into when
+     * using {@link Aggregation#CALL_TREE}, otherwise null and samples
+     * are aggregated directly into {@link #stackTraces}. Like {@link
+     * #topStacks} it is guarded by its own lock.
+     */
+    private CallTree callTree;
+
+    /**
+     * The bounded store that merged samples are aggregated into when
+     * using {@link Aggregation#TOP_STACKS}, otherwise null. Since the
+     * timer thread also drains full shards into it, it is guarded by
+     * its own lock rather than the profiler's.
+     */
+    private TopStacks topStacks;
+
+    private Aggregation aggregation = Aggregation.STACKS;
+
+    private SamplingMode samplingMode = SamplingMode.WALL_CLOCK;
+
+    /**
+     * Whether the time threads spend blocked or waiting is measured
+     * when sampling contention.
+     */
+    private boolean contentionTiming;
+
+    /**
+     * Whether a timeline of the samples of each thread is kept.
+     */
+    private boolean timeline;
+
+    /**
+     * The time in microseconds since the epoch of the last tick
+     * recorded in a timeline, so that tick times never go backwards
+     * even if the wall clock does between sampling periods. Only
+     * accessed by the timer thread.
+     */
+    private long lastTickMicros;
+
+    /**
+     * Source of per-thread CPU time when samples are weighted by
+     * {@link HprofData.CountUnit#CPU_NANOS CPU time}, otherwise null.
+     */
+    private ThreadCpuClock threadCpuClock;
+
+    /**
+     * Source of per-thread allocated bytes when allocations are
+     * sampled, otherwise null.
+     */
+    private ThreadAllocationCounter threadAllocationCounter;
+
+    /**
+     * Bytes between sampled allocations, zero if allocations are not
+     * sampled.
+     */
+    private long allocIntervalBytes;
+
+    /**
+     * The maximum number of stacks retained by {@link
+     * Aggregation#TOP_STACKS}.
+     */
+    private int maxStacks = DEFAULT_MAX_STACKS;
+
+    /**
+     * Default for {@link #setMaxStacks setMaxStacks}.
+     */
+    public static final int DEFAULT_MAX_STACKS = 10000;
+
+    /**
+     * Thread events recorded by the timer thread that have not yet
+     * been handed off to {@link #hprofData}.
+     */
+    private List<HprofData.ThreadEvent> threadEvents = new ArrayList<HprofData.ThreadEvent>();
+
+    /**
+     * Thread events handed off by the timer thread, waiting to be
+     * merged. Swapped with {@link #threadEvents} by {@link
+     * #swapBuffers swapBuffers}.
+     */
+    private List<HprofData.ThreadEvent> retiredThreadEvents
+            = new ArrayList<HprofData.ThreadEvent>();
 
     /**
-     * Mutable {@code StackTrace} that is used for probing the {@link
-     * #stackTraces stackTraces} map without allocating a {@code
-     * StackTrace}. If {@link #addStackTrace addStackTrace} needs to
-     * be thread safe, have a single mutable instance would need to be
-     * reconsidered.
+     * Heap summaries taken by the timer thread, double buffered like
+     * {@link #threadEvents}.
+     */
+    private List<HprofData.HeapSummary> heapSummaries = new ArrayList<HprofData.HeapSummary>();
+    private List<HprofData.HeapSummary> retiredHeapSummaries
+            = new ArrayList<HprofData.HeapSummary>();
+
+    /**
+     * Executor running capture workers beyond the first. The first
+     * shard is always captured on the timer thread itself. Null
+     * when there is only a single capture worker.
+     */
+    private ExecutorService captureExecutor;
+
+    /**
+     * Statistics of the profiler's own behavior accumulated by the
+     * timer thread. Guarded by its own lock rather than the
+     * profiler's since it is updated on every tick.
+     */
+    private final ProfilerStats stats = new ProfilerStats();
+
+    /*
+     * Rough sizes in bytes of the objects making up the sample store
+     * on a 64-bit VM, for estimating its retained size.
      */
-    private final HprofData.StackTrace mutableStackTrace = new HprofData.StackTrace();
+    private static final int OBJECT_BYTES = 16;
+    private static final int REFERENCE_BYTES = 8;
+    private static final int MAP_ENTRY_BYTES = 48;
+    private static final int FRAME_BYTES = 48;
+    private static final int COUNT_CELL_BYTES = 24;
+    private static final int ALLOC_CELL_BYTES = 32;
+    private static final int STACK_BYTES = 48;
+    private static final int NODE_BYTES = 80;
+    private static final int COUNTER_BYTES = 40;
 
     /**
-     * The {@code ThreadSampler} is used to produce a {@code
-     * StackTraceElement} array for a given thread. The array is
-     * expected to be {@link #depth depth} or less in length.
+     * Threads created for {@link #captureExecutor}. These are
+     * excluded from sampling just like the timer thread.
      */
-    private final ThreadSampler threadSampler;
+    private final Set<Thread> captureThreads = new HashSet<Thread>();
 
     /**
      * Create a sampling profiler that collects stacks with the
@@ -155,178 +648,2077 @@ public final class SamplingProfiler {
     public SamplingProfiler(int depth, ThreadSet threadSet) {
         this.depth = depth;
         this.threadSet = threadSet;
-        this.threadSampler = findDefaultThreadSampler();
-        threadSampler.setDepth(depth);
+        this.shards = newShards(1);
         hprofData.setFlags(BinaryHprof.ControlSettings.CPU_SAMPLING.bitmask);
         hprofData.setDepth(depth);
     }
 
+    /**
+     * The system property that selects the thread sampler. If its
+     * value is {@link #JFR_THREAD_SAMPLER} and the VM supports JFR
+     * recording streams, stacks are sampled by JFR instead of by
+     * walking them from the profiler, see {@link JfrThreadSampler}.
+     * Otherwise the default sampler is used.
+     */
+    public static final String THREAD_SAMPLER_PROPERTY = "dalvik.profiler.threadSampler";
+
+    public static final String JFR_THREAD_SAMPLER = "jfr";
+
+    /**
+     * Returns the JFR based sampler if selected by {@link
+     * #THREAD_SAMPLER_PROPERTY} and available. Otherwise returns the
+     * VM specific ThreadSampler on Dalvik, and elsewhere a batch
+     * sampler based on {@code ThreadMXBean} if {@code
+     * java.lang.management} is available, since it only walks stacks
+     * to the requested depth, falling back to the {@link
+     * PortableThreadSampler}.
+     */
     private static ThreadSampler findDefaultThreadSampler() {
-        if ("Dalvik Core Library".equals(System.getProperty("java.specification.name"))) {
-            String className = "dalvik.system.profiler.DalvikThreadSampler";
+        if (JFR_THREAD_SAMPLER.equals(System.getProperty(THREAD_SAMPLER_PROPERTY))) {
             try {
-                return (ThreadSampler) Class.forName(className).newInstance();
-            } catch (Exception e) {
-                System.out.println("Problem creating " + className + ": " + e);
+                return new JfrThreadSampler();
+            } catch (UnsupportedOperationException e) {
+                System.out.println("Problem creating JFR thread sampler: " + e.getMessage());
             }
         }
+        String className;
+        if ("Dalvik Core Library".equals(System.getProperty("java.specification.name"))) {
+            className = "dalvik.system.profiler.DalvikThreadSampler";
+        } else {
+            className = "dalvik.profiler.ThreadMXBeanThreadSampler";
+        }
+        try {
+            return (ThreadSampler) Class.forName(className).newInstance();
+        } catch (Exception e) {
+            System.out.println("Problem creating " + className + ": " + e);
+        } catch (LinkageError e) {
+            System.out.println("Problem creating " + className + ": " + e);
+        }
         return new PortableThreadSampler();
     }
 
     /**
-     * A ThreadSet specifies the set of threads to sample.
+     * Sets the number of capture workers used to collect stacks on
+     * each sample tick. The threads to be sampled are split into
+     * contiguous ranges, one per worker, and each worker aggregates
+     * into its own shard so that no locking is needed while
+     * sampling. The default of one captures all stacks serially on
+     * the profiler's timer thread. May only be called while the
+     * profiler is stopped.
+     *
+     * @param workers The number of capture workers, typically no
+     * more than the number of available processors.
      */
-    public static interface ThreadSet {
-        /**
-         * Returns an array containing the threads to be sampled. The
-         * array may be longer than the number of threads to be
-         * sampled, in which case the extra elements must be null.
-         */
-        public Thread[] threads();
+    public synchronized void setCaptureWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers < 1");
+        }
+        if (sampler != null) {
+            throw new IllegalStateException("cannot change capture workers while sampling");
+        }
+        if (workers == shards.length) {
+            return;
+        }
+        collect();
+        shutdownCaptureExecutor();
+        closeThreadSamplers();
+        shards = newShards(workers);
+        if (workers > 1) {
+            captureExecutor = Executors.newFixedThreadPool(workers - 1, new ThreadFactory() {
+                private int nextWorker = 1;
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SamplingProfiler-" + nextWorker++);
+                    thread.setDaemon(true);
+                    synchronized (captureThreads) {
+                        captureThreads.add(thread);
+                    }
+                    return thread;
+                }
+            });
+        }
     }
 
     /**
-     * Returns a ThreadSet for a fixed set of threads that will not
-     * vary at runtime. This has less overhead than a dynamically
-     * calculated set, such as {@link #newThreadGroupTheadSet}, which has
-     * to enumerate the threads each time profiler wants to collect
-     * samples.
+     * Returns the number of capture workers used on each sample tick.
      */
-    public static ThreadSet newArrayThreadSet(Thread... threads) {
-        return new ArrayThreadSet(threads);
+    public synchronized int getCaptureWorkers() {
+        return shards.length;
     }
 
     /**
-     * An ArrayThreadSet samples a fixed set of threads that does not
-     * vary over the life of the profiler.
+     * Specifies how samples are aggregated once they are merged from
+     * the capture workers.
      */
-    private static class ArrayThreadSet implements ThreadSet {
-        private final Thread[] threads;
-        public ArrayThreadSet(Thread... threads) {
-            if (threads == null) {
-                throw new NullPointerException("threads == null");
-            }
-            this.threads = threads;
+    public static enum Aggregation {
+        /**
+         * Each distinct stack is stored in full with its count.
+         */
+        STACKS,
+
+        /**
+         * Samples are aggregated into a call tree per thread keyed by
+         * frame, keeping self and inclusive counts at each node.
+         * Stacks sharing callers share storage for them. The tree is
+         * exported as stack traces each time {@link #getHprofData} or
+         * {@link #snapshot} is called. Like for {@link #TOP_STACKS},
+         * the capture workers' shards are drained into the tree
+         * whenever one of them grows beyond {@link #setMaxStacks
+         * maxStacks}, so the stacks are not also kept in full until
+         * the next merge.
+         */
+        CALL_TREE,
+
+        /**
+         * Only the most frequent stacks are kept, up to {@link
+         * #setMaxStacks maxStacks} of them, using the Space-Saving
+         * heavy hitter algorithm. Memory use is bounded no matter how
+         * long the profiler runs. Samples of stacks that are evicted
+         * are counted in a synthetic "other" stack per thread, and
+         * the {@code HprofData} records the error bound of the counts
+         * as {@link HprofData#getMaxCountError maxCountError}. The
+         * capture workers' shards are drained into the bounded store
+         * whenever one of them grows beyond {@code maxStacks}.
+         */
+        TOP_STACKS
+    }
+
+    /**
+     * Sets how samples are aggregated. The default is {@link
+     * Aggregation#STACKS}. May only be called before any samples
+     * have been collected.
+     */
+    public synchronized void setAggregation(Aggregation aggregation) {
+        if (aggregation == null) {
+            throw new NullPointerException("aggregation == null");
         }
-        public Thread[] threads() {
-            return threads;
+        if (sampler != null) {
+            throw new IllegalStateException("cannot change aggregation while sampling");
         }
+        checkNoSamples("aggregation");
+        if (timeline && aggregation != Aggregation.STACKS) {
+            throw new IllegalStateException("cannot keep a timeline with " + aggregation);
+        }
+        this.aggregation = aggregation;
+        callTree = (aggregation == Aggregation.CALL_TREE) ? new CallTree() : null;
+        topStacks = (aggregation == Aggregation.TOP_STACKS)
+                ? new TopStacks(maxStacks, nextStackTraceId)
+                : null;
     }
 
     /**
-     * Returns a ThreadSet that is dynamically computed based on the
-     * threads found in the specified ThreadGroup and that
-     * ThreadGroup's children.
+     * Returns how samples are aggregated.
      */
-    public static ThreadSet newThreadGroupTheadSet(ThreadGroup threadGroup) {
-        return new ThreadGroupThreadSet(threadGroup);
+    public synchronized Aggregation getAggregation() {
+        return aggregation;
     }
 
     /**
-     * An ThreadGroupThreadSet sample the threads from the specified
-     * ThreadGroup and the ThreadGroup's children
+     * Sets the maximum number of stacks retained when using {@link
+     * Aggregation#TOP_STACKS}, which is also the number of stacks a
+     * capture worker may hold before it is drained when using {@link
+     * Aggregation#CALL_TREE}. The default is {@link
+     * #DEFAULT_MAX_STACKS}. May only be called before any samples
+     * have been collected.
      */
-    private static class ThreadGroupThreadSet implements ThreadSet {
-        private final ThreadGroup threadGroup;
-        private Thread[] threads;
-        private int lastThread;
-
-        public ThreadGroupThreadSet(ThreadGroup threadGroup) {
-            if (threadGroup == null) {
-                throw new NullPointerException("threadGroup == null");
-            }
-            this.threadGroup = threadGroup;
-            resize();
+    public synchronized void setMaxStacks(int maxStacks) {
+        if (maxStacks < 1) {
+            throw new IllegalArgumentException("maxStacks < 1");
         }
-
-        private void resize() {
-            int count = threadGroup.activeCount();
-            // we can only tell if we had enough room for all active
-            // threads if we actually are larger than the the number of
-            // active threads. making it larger also leaves us room to
-            // tolerate additional threads without resizing.
-            threads = new Thread[count*2];
-            lastThread = 0;
+        if (sampler != null) {
+            throw new IllegalStateException("cannot change max stacks while sampling");
         }
+        checkNoSamples("max stacks");
+        this.maxStacks = maxStacks;
+        if (topStacks != null) {
+            topStacks = new TopStacks(maxStacks, nextStackTraceId);
+        }
+    }
 
-        public Thread[] threads() {
-            int threadCount;
-            while (true) {
-                threadCount = threadGroup.enumerate(threads);
-                if (threadCount == threads.length) {
-                    resize();
+    /**
+     * Returns the maximum number of stacks retained when using {@link
+     * Aggregation#TOP_STACKS}, see {@link #setMaxStacks setMaxStacks}.
+     */
+    public synchronized int getMaxStacks() {
+        return maxStacks;
+    }
+
+    /**
+     * Specifies which threads are recorded on each sample tick.
+     */
+    public static enum SamplingMode {
+        /**
+         * Every thread in the thread set is recorded whatever its
+         * state, so samples show where threads spend wall clock time,
+         * including time spent blocked, waiting or sleeping.
+         */
+        WALL_CLOCK,
+
+        /**
+         * Only threads in the {@code RUNNABLE} state are recorded,
+         * approximating where CPU time is spent. Note that the VM
+         * also reports threads executing native code as runnable,
+         * even when they are blocked in I/O.
+         */
+        ON_CPU,
+
+        /**
+         * Only threads contending for a lock are recorded: threads
+         * blocked entering a monitor, and threads waiting for a
+         * {@code java.util.concurrent} lock that another thread owns.
+         * Each sample is also recorded as a {@link HprofData.LockSite
+         * lock site}. The stack of a lock's owner is only known if the
+         * owner is in the thread set. Virtual threads are never
+         * found contending. Counts are always samples.
+         */
+        CONTENTION
+    }
+
+    /**
+     * Sets which threads are recorded on each sample tick. The
+     * default is {@link SamplingMode#WALL_CLOCK}. May only be called
+     * while the profiler is stopped.
+     *
+     * @throws UnsupportedOperationException if the VM cannot report
+     * lock contention.
+     */
+    public synchronized void setSamplingMode(SamplingMode samplingMode) {
+        if (samplingMode == null) {
+            throw new NullPointerException("samplingMode == null");
+        }
+        if (sampler != null) {
+            throw new IllegalStateException("cannot change sampling mode while sampling");
+        }
+        if (samplingMode == SamplingMode.CONTENTION) {
+            if (threadCpuClock != null) {
+                throw new IllegalStateException("cannot sample contention in CPU time");
+            }
+            try {
+                new ContentionSampler(false);
+            } catch (LinkageError e) {
+                throw new UnsupportedOperationException("lock contention not supported", e);
+            }
+        }
+        this.samplingMode = samplingMode;
+    }
+
+    /**
+     * Returns which threads are recorded on each sample tick.
+     */
+    public synchronized SamplingMode getSamplingMode() {
+        return samplingMode;
+    }
+
+    /**
+     * Sets the unit of sample counts. With {@link
+     * HprofData.CountUnit#CPU_NANOS} each sample is weighted by the
+     * CPU time its thread consumed since it was previously sampled,
+     * attributing that time to the sampled stack. The default is
+     * {@link HprofData.CountUnit#SAMPLES}. May only be called before
+     * any samples have been collected.
+     *
+     * @throws UnsupportedOperationException if the VM cannot measure
+     * the CPU time of threads.
+     */
+    public synchronized void setCountUnit(HprofData.CountUnit countUnit) {
+        if (countUnit == null) {
+            throw new NullPointerException("countUnit == null");
+        }
+        if (sampler != null) {
+            throw new IllegalStateException("cannot change count unit while sampling");
+        }
+        checkNoSamples("count unit");
+        ThreadCpuClock clock = null;
+        if (countUnit == HprofData.CountUnit.CPU_NANOS) {
+            if (samplingMode == SamplingMode.CONTENTION) {
+                throw new IllegalStateException("cannot sample contention in CPU time");
+            }
+            try {
+                clock = new ThreadCpuClock();
+            } catch (LinkageError e) {
+                throw new UnsupportedOperationException("thread CPU time not supported", e);
+            }
+        }
+        threadCpuClock = clock;
+        hprofData.setCountUnit(countUnit);
+    }
+
+    /**
+     * Sets whether the time threads spend blocked or waiting is
+     * measured when sampling {@link SamplingMode#CONTENTION
+     * contention}. The time a thread spent since the previous tick is
+     * attributed to the lock site it is found waiting on, see {@link
+     * HprofData.LockSite#waitMillis}. The default is false, since
+     * the VM then needs to time every lock a thread waits for, not
+     * only those that are sampled. Has no effect if the VM cannot
+     * measure the time. May only be called while the profiler is
+     * stopped.
+     */
+    public synchronized void setContentionTiming(boolean contentionTiming) {
+        if (sampler != null) {
+            throw new IllegalStateException("cannot change contention timing while sampling");
+        }
+        this.contentionTiming = contentionTiming;
+        for (Shard shard : shards) {
+            shard.contentionSampler = null;
+        }
+    }
+
+    /**
+     * Returns whether the time threads spend blocked or waiting is
+     * measured.
+     */
+    public synchronized boolean getContentionTiming() {
+        return contentionTiming;
+    }
+
+    /**
+     * Sets whether a timeline of the samples of each thread is kept
+     * in addition to their counts, see {@link
+     * HprofData#getTimelines}. Each sample is recorded with the time
+     * of its tick, so memory use grows with the number of samples
+     * rather than the number of distinct stacks, although usually by
+     * only a few bytes per sample. Timelines require {@link
+     * Aggregation#STACKS} since the stack traces they refer to must
+     * be kept in full. The default is false. May only be called
+     * before any samples have been collected.
+     */
+    public synchronized void setTimeline(boolean timeline) {
+        if (sampler != null) {
+            throw new IllegalStateException("cannot change timeline while sampling");
+        }
+        checkNoSamples("timeline");
+        if (timeline && aggregation != Aggregation.STACKS) {
+            throw new IllegalStateException("cannot keep a timeline with " + aggregation);
+        }
+        this.timeline = timeline;
+    }
+
+    /**
+     * Returns whether a timeline of the samples of each thread is
+     * kept.
+     */
+    public synchronized boolean getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Returns the unit of sample counts.
+     */
+    public synchronized HprofData.CountUnit getCountUnit() {
+        return hprofData.getCountUnit();
+    }
+
+    /**
+     * Sets the number of bytes a thread allocates between sampled
+     * allocations, or zero to not sample allocations, which is the
+     * default. Allocations are attributed to the stack captured on
+     * the tick where a thread's allocated bytes cross a multiple of
+     * the interval, so the interval should be large compared to the
+     * bytes a thread allocates per tick for the stacks to be
+     * representative. May only be called before any samples have
+     * been collected.
+     *
+     * @throws UnsupportedOperationException if the VM cannot measure
+     * the bytes allocated by threads.
+     */
+    public synchronized void setAllocationSampling(long intervalBytes) {
+        if (intervalBytes < 0) {
+            throw new IllegalArgumentException("intervalBytes < 0");
+        }
+        if (sampler != null) {
+            throw new IllegalStateException("cannot change allocation sampling while sampling");
+        }
+        checkNoSamples("allocation sampling");
+        ThreadAllocationCounter counter = null;
+        if (intervalBytes != 0) {
+            try {
+                counter = new ThreadAllocationCounter();
+            } catch (LinkageError e) {
+                throw new UnsupportedOperationException("thread allocated bytes not supported",
+                                                        e);
+            }
+        }
+        threadAllocationCounter = counter;
+        allocIntervalBytes = intervalBytes;
+        int flags = hprofData.getFlags();
+        if (intervalBytes != 0) {
+            flags |= BinaryHprof.ControlSettings.ALLOC_TRACES.bitmask;
+        } else {
+            flags &= ~BinaryHprof.ControlSettings.ALLOC_TRACES.bitmask;
+        }
+        hprofData.setFlags(flags);
+        hprofData.setAllocIntervalBytes(intervalBytes);
+    }
+
+    /**
+     * Returns the number of bytes between sampled allocations, zero
+     * if allocations are not sampled.
+     */
+    public synchronized long getAllocationSampling() {
+        return allocIntervalBytes;
+    }
+
+    /**
+     * Sets whether stacks deeper than the profiler's depth are
+     * marked as truncated. A marked stack ends with the synthetic
+     * {@link HprofData#TRUNCATED_FRAME truncated frame} in place of
+     * the frames that were dropped, see {@link
+     * HprofData.StackTrace#isTruncated}. The default is false, in
+     * which case there is no way to tell if a stack has been
+     * truncated. Marking requires the stack to be walked one frame
+     * deeper. May only be called before any samples have been
+     * collected.
+     */
+    public synchronized void setMarkTruncation(boolean markTruncation) {
+        if (sampler != null) {
+            throw new IllegalStateException("cannot change truncation while sampling");
+        }
+        checkNoSamples("truncation");
+        this.markTruncation = markTruncation;
+        updateDepth();
+    }
+
+    /**
+     * Returns whether truncated stacks are marked, which is always
+     * the case when root frames are kept.
+     */
+    public synchronized boolean getMarkTruncation() {
+        return markTruncation || rootDepth != 0;
+    }
+
+    /**
+     * Sets the number of frames to keep from the root of stacks that
+     * are deeper than the profiler's depth, in addition to the leaf
+     * frames kept up to the depth. The dropped frames in between are
+     * replaced by the synthetic {@link HprofData#TRUNCATED_FRAME
+     * truncated frame}, so a stack keeps both the entry point of the
+     * thread and the code it is running. The default is zero, which
+     * keeps leaf frames only. Keeping root frames requires every
+     * stack to be walked in full. May only be called before any
+     * samples have been collected.
+     */
+    public synchronized void setRootDepth(int rootDepth) {
+        if (rootDepth < 0) {
+            throw new IllegalArgumentException("rootDepth < 0");
+        }
+        if (sampler != null) {
+            throw new IllegalStateException("cannot change truncation while sampling");
+        }
+        checkNoSamples("truncation");
+        this.rootDepth = rootDepth;
+        updateDepth();
+    }
+
+    /**
+     * Returns the number of root frames kept in truncated stacks.
+     */
+    public synchronized int getRootDepth() {
+        return rootDepth;
+    }
+
+    /**
+     * Returns the depth to request from thread samplers, which need
+     * to walk beyond the profiler's depth to find root frames or
+     * to tell that a stack was truncated.
+     */
+    private int samplerDepth() {
+        if (rootDepth != 0) {
+            return Integer.MAX_VALUE;
+        }
+        return markTruncation ? depth + 1 : depth;
+    }
+
+    /**
+     * Propagates a change of the truncation policy to the thread
+     * samplers and to the maximum stack depth of {@link #hprofData}.
+     */
+    private void updateDepth() {
+        for (Shard shard : shards) {
+            shard.threadSampler.setDepth(samplerDepth());
+        }
+        boolean marked = markTruncation || rootDepth != 0;
+        hprofData.setDepth(depth + rootDepth + (marked ? 1 : 0));
+    }
+
+    private void checkNoSamples(String what) {
+        collect();
+        if (!stackTraces.isEmpty()
+                || (callTree != null && !callTreeIsEmpty())
+                || (topStacks != null && topStacks.size() != 0)
+                || !hprofData.getAllocSites().isEmpty()) {
+            throw new IllegalStateException("cannot change " + what + " after sampling");
+        }
+    }
+
+    private Shard[] newShards(int workers) {
+        Shard[] result = new Shard[workers];
+        for (int i = 0; i < workers; i++) {
+            ThreadSampler threadSampler = findDefaultThreadSampler();
+            threadSampler.setDepth(samplerDepth());
+            result[i] = new Shard(threadSampler);
+        }
+        return result;
+    }
+
+    /**
+     * Releases the resources of thread samplers that hold any, such
+     * as the recording of a {@link JfrThreadSampler}.
+     */
+    private void closeThreadSamplers() {
+        for (Shard shard : shards) {
+            if (shard.threadSampler instanceof JfrThreadSampler) {
+                ((JfrThreadSampler) shard.threadSampler).close();
+            }
+        }
+    }
+
+    private void shutdownCaptureExecutor() {
+        if (captureExecutor == null) {
+            return;
+        }
+        captureExecutor.shutdown();
+        captureExecutor = null;
+        synchronized (captureThreads) {
+            captureThreads.clear();
+        }
+    }
+
+    /**
+     * A ThreadSet specifies the set of threads to sample.
+     */
+    public static interface ThreadSet {
+        /**
+         * Returns an array containing the threads to be sampled. The
+         * array may be longer than the number of threads to be
+         * sampled, in which case the extra elements must be null.
+         */
+        public Thread[] threads();
+    }
+
+    /**
+     * Returns a ThreadSet for a fixed set of threads that will not
+     * vary at runtime. This has less overhead than a dynamically
+     * calculated set, such as {@link #newThreadGroupTheadSet}, which has
+     * to check for new and ended threads each time profiler wants to
+     * collect samples.
+     */
+    public static ThreadSet newArrayThreadSet(Thread... threads) {
+        return new ArrayThreadSet(threads);
+    }
+
+    /**
+     * An ArrayThreadSet samples a fixed set of threads that does not
+     * vary over the life of the profiler.
+     */
+    private static class ArrayThreadSet implements ThreadSet {
+        private final Thread[] threads;
+        public ArrayThreadSet(Thread... threads) {
+            if (threads == null) {
+                throw new NullPointerException("threads == null");
+            }
+            this.threads = threads;
+        }
+        public Thread[] threads() {
+            return threads;
+        }
+    }
+
+    /**
+     * Returns a ThreadSet that is dynamically computed based on the
+     * threads found in the specified ThreadGroup and that
+     * ThreadGroup's children.
+     */
+    public static ThreadSet newThreadGroupTheadSet(ThreadGroup threadGroup) {
+        return new ThreadGroupThreadSet(threadGroup, null);
+    }
+
+    /**
+     * A ThreadFilter selects the threads of a ThreadSet to sample.
+     */
+    public static interface ThreadFilter {
+        /**
+         * Returns true if the thread should be sampled. Called only
+         * when the membership of the ThreadSet is recomputed, so the
+         * result should not depend on anything that changes over the
+         * life of the thread other than its being alive.
+         */
+        public boolean accept(Thread thread);
+    }
+
+    /**
+     * Returns a ThreadSet of the threads in the specified
+     * ThreadGroup and its children that are accepted by the filter.
+     * Like {@link #newThreadGroupTheadSet newThreadGroupTheadSet} the
+     * membership is cached: the filter is consulted for every thread
+     * only when threads come and go, and otherwise every 64 ticks.
+     */
+    public static ThreadSet newFilteredThreadSet(ThreadGroup threadGroup,
+                                                 ThreadFilter filter) {
+        if (filter == null) {
+            throw new NullPointerException("filter == null");
+        }
+        return new ThreadGroupThreadSet(threadGroup, filter);
+    }
+
+    /**
+     * Returns a ThreadSet of the threads in the specified
+     * ThreadGroup and its children whose names entirely match the
+     * pattern, for example {@code http-nio-.*}. Threads can be
+     * excluded with a negative lookahead such as {@code
+     * (?!Finalizer|Reference Handler).*}. Names are matched whenever
+     * the membership is recomputed, see {@link #newFilteredThreadSet
+     * newFilteredThreadSet}, so a renamed thread joins or leaves the
+     * set within 64 ticks, and is recorded as a new thread each time
+     * it joins again.
+     */
+    public static ThreadSet newThreadNameThreadSet(ThreadGroup threadGroup,
+                                                   final Pattern namePattern) {
+        if (namePattern == null) {
+            throw new NullPointerException("namePattern == null");
+        }
+        return new ThreadGroupThreadSet(threadGroup, new ThreadFilter() {
+            public boolean accept(Thread thread) {
+                return namePattern.matcher(thread.getName()).matches();
+            }
+        });
+    }
+
+    /**
+     * An ThreadGroupThreadSet sample the threads from the specified
+     * ThreadGroup and the ThreadGroup's children, optionally
+     * filtered. Enumerating a ThreadGroup copies every thread in it
+     * under the group's lock, so membership is cached and only
+     * recomputed when the group's active count changes or a member
+     * has ended. Since a thread ending and another starting between
+     * two ticks leaves the count unchanged, membership is also
+     * recomputed every {@link #MAX_CACHED_CALLS} calls.
+     */
+    private static class ThreadGroupThreadSet implements ThreadSet {
+
+        private static final int MAX_CACHED_CALLS = 64;
+
+        private final ThreadGroup threadGroup;
+
+        /**
+         * The filter of threads to sample, or null to sample all.
+         */
+        private final ThreadFilter filter;
+
+        /**
+         * Scratch array for ThreadGroup.enumerate.
+         */
+        private Thread[] enumerated = new Thread[0];
+
+        private Thread[] threads = new Thread[0];
+        private int lastThread;
+        private int lastActiveCount = -1;
+        private int cachedCalls;
+
+        public ThreadGroupThreadSet(ThreadGroup threadGroup, ThreadFilter filter) {
+            if (threadGroup == null) {
+                throw new NullPointerException("threadGroup == null");
+            }
+            this.threadGroup = threadGroup;
+            this.filter = filter;
+        }
+
+        public Thread[] threads() {
+            int activeCount = threadGroup.activeCount();
+            if (activeCount == lastActiveCount
+                    && cachedCalls < MAX_CACHED_CALLS
+                    && allAlive()) {
+                cachedCalls++;
+                return threads;
+            }
+            enumerate(activeCount);
+            lastActiveCount = activeCount;
+            cachedCalls = 0;
+            return threads;
+        }
+
+        private boolean allAlive() {
+            for (int i = 0; i < lastThread; i++) {
+                if (!threads[i].isAlive()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void enumerate(int activeCount) {
+            // we can only tell if we had enough room for all active
+            // threads if we actually are larger than the the number of
+            // active threads. making it larger also leaves us room to
+            // tolerate additional threads without resizing.
+            if (enumerated.length <= activeCount) {
+                enumerated = new Thread[activeCount * 2 + 1];
+            }
+            int count;
+            while (true) {
+                count = threadGroup.enumerate(enumerated);
+                if (count == enumerated.length) {
+                    enumerated = new Thread[enumerated.length * 2];
                 } else {
                     break;
                 }
             }
-            if (threadCount < lastThread) {
-                // avoid retaining pointers to threads that have ended
-                Arrays.fill(threads, threadCount, lastThread, null);
+            if (threads.length < enumerated.length) {
+                threads = new Thread[enumerated.length];
+            }
+            int threadCount = 0;
+            for (int i = 0; i < count; i++) {
+                Thread thread = enumerated[i];
+                enumerated[i] = null;
+                if (filter == null || filter.accept(thread)) {
+                    threads[threadCount++] = thread;
+                }
+            }
+            if (threadCount < lastThread) {
+                // avoid retaining pointers to threads that have ended
+                Arrays.fill(threads, threadCount, lastThread, null);
+            }
+            lastThread = threadCount;
+        }
+    }
+
+    /**
+     * Sets the fraction of the sampling interval, between 0 and 1,
+     * over which each sample tick is randomly displaced around its
+     * nominal time. Jitter avoids aliasing with workloads that are
+     * themselves periodic without changing the average sampling
+     * rate. The default is 0, meaning no jitter. Takes effect the
+     * next time sampling is started.
+     */
+    public void setJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter out of range [0, 1]: " + jitter);
+        }
+        this.jitter = jitter;
+    }
+
+    /**
+     * Sets the fraction of one core, between 0 and 1, that sampling
+     * may use. When set, the interval passed to {@link #start(long,
+     * TimeUnit) start} is the shortest interval used: the profiler
+     * measures the cost of each tick and lengthens the interval as
+     * needed to keep the average cost within the budget, for example
+     * 0.01 for 1% of one core. The interval actually achieved is
+     * recorded as the {@link HprofData#getEffectiveIntervalMicros
+     * effective interval}. The default is 0, meaning the interval is
+     * fixed. May only be called while the profiler is stopped.
+     */
+    public synchronized void setOverheadBudget(double overheadBudget) {
+        if (overheadBudget < 0 || overheadBudget > 1) {
+            throw new IllegalArgumentException("overheadBudget out of range [0, 1]: "
+                                               + overheadBudget);
+        }
+        if (sampler != null) {
+            throw new IllegalStateException("cannot change overhead budget while sampling");
+        }
+        this.overheadBudget = overheadBudget;
+    }
+
+    /**
+     * Returns the fraction of one core that sampling may use, zero if
+     * the sampling interval is fixed.
+     */
+    public synchronized double getOverheadBudget() {
+        return overheadBudget;
+    }
+
+    /**
+     * Starts profiler sampling at the specified rate.
+     *
+     * @param interval The number of milliseconds between samples
+     */
+    public void start(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval < 1");
+        }
+        start(interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts profiler sampling at the specified rate. Sample ticks are
+     * paced with {@code System.nanoTime}, so intervals down to one
+     * microsecond are supported, although short intervals are only
+     * achievable if a tick completes within the interval. Ticks that
+     * cannot be taken because a previous tick overran are skipped
+     * and recorded in the {@code HprofData} as missed ticks rather
+     * than run late in a burst.
+     *
+     * @param interval The time between samples in the specified unit
+     * @param unit The unit of the interval
+     */
+    public synchronized void start(long interval, TimeUnit unit) {
+        long intervalMicros = unit.toMicros(interval);
+        if (intervalMicros < 1) {
+            throw new IllegalArgumentException("interval < 1 microsecond");
+        }
+        if (sampler != null) {
+            throw new IllegalStateException("profiling already started");
+        }
+        long intervalNanos = unit.toNanos(interval);
+        sampler = new Sampler((overheadBudget == 0)
+                              ? null
+                              : new RateController(intervalNanos, overheadBudget));
+        // CPU time used, bytes allocated and time waited while
+        // stopped are not attributed to any sample
+        for (int i = 0; i < currentThreadCount; i++) {
+            currentEntries[i].cpuNanos = -1;
+            currentEntries[i].allocatedBytes = -1;
+            currentEntries[i].waitMillis = -1;
+        }
+        hprofData.setStartMillis(System.currentTimeMillis());
+        hprofData.setIntervalMicros(intervalMicros);
+        for (Shard shard : shards) {
+            if (shard.threadSampler instanceof JfrThreadSampler) {
+                ((JfrThreadSampler) shard.threadSampler).setPeriod(intervalNanos);
+            }
+        }
+        startNanos = System.nanoTime();
+        scheduler.schedule(sampler, intervalNanos, jitter);
+        if (windowNanos != 0) {
+            scheduleWindows();
+        }
+    }
+
+    /**
+     * Stops profiler sampling. It can be restarted with {@link
+     * #start(int)} to continue sampling.
+     */
+    public synchronized void stop() {
+        if (sampler == null) {
+            return;
+        }
+        if (windowFuture != null) {
+            windowFuture.cancel(false);
+            windowFuture = null;
+        }
+        scheduler.unschedule();
+        stats.missedTicks += scheduler.getMissedTicks();
+        stats.lateTicks += scheduler.getLateTicks();
+        stats.failedTicks += scheduler.getFailedTicks();
+        if (stats.failure == null) {
+            stats.failure = scheduler.getFailure();
+        }
+        long nowNanos = System.nanoTime();
+        addCurrentPeriod(hprofData, nowNanos);
+        samplingNanos += nowNanos - startNanos;
+        windowTicksBase = 0;
+        windowMissedTicksBase = 0;
+        sampler = null;
+    }
+
+    /**
+     * Adds the ticks of the current sampling period that belong to
+     * the current window to the specified data, and updates its
+     * effective interval to include the period up to {@code nowNanos}.
+     */
+    private void addCurrentPeriod(HprofData data, long nowNanos) {
+        data.setTicks(data.getTicks() + scheduler.getTicks() - windowTicksBase);
+        data.setMissedTicks(data.getMissedTicks()
+                            + scheduler.getMissedTicks() - windowMissedTicksBase);
+        long nanos = samplingNanos + (nowNanos - startNanos);
+        data.setEffectiveIntervalMicros(effectiveIntervalMicros(data.getTicks(), nanos));
+    }
+
+    /**
+     * Returns the average time between ticks in microseconds, zero if
+     * no ticks were taken.
+     */
+    private static long effectiveIntervalMicros(long ticks, long nanos) {
+        if (ticks == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMicros(nanos / ticks);
+    }
+
+    /**
+     * Shuts down profiling after which it can not be restarted. It is
+     * important to shut down profiling when done to free resources
+     * used by the profiler. Shutting down the profiler also stops the
+     * profiling if that has not already been done.
+     */
+    public synchronized void shutdown() {
+        stop();
+        scheduler.cancel();
+        shutdownCaptureExecutor();
+        closeThreadSamplers();
+        if (windowExecutor != null) {
+            windowExecutor.shutdown();
+            windowExecutor = null;
+        }
+    }
+
+    /**
+     * Cuts the collected data into consecutive windows of the
+     * specified length while sampling. Each finished window is an
+     * {@code HprofData} of its own whose start time is the start of
+     * the window, and the {@code maxWindows} most recent ones are
+     * kept, see {@link #getWindows}. The data of the current window
+     * remains available through {@link #snapshot} and {@link
+     * #getHprofData}. A window length of zero, the default, disables
+     * windows. May only be called while the profiler is stopped.
+     *
+     * @param windowLength The length of each window in the
+     * specified unit, or zero.
+     * @param unit The unit of the window length
+     * @param maxWindows The number of finished windows to keep in
+     * memory, which may be zero if they are only written to the
+     * {@link #setWindowDirectory window directory}.
+     */
+    public synchronized void setWindows(long windowLength, TimeUnit unit, int maxWindows) {
+        if (windowLength < 0) {
+            throw new IllegalArgumentException("windowLength < 0");
+        }
+        if (maxWindows < 0) {
+            throw new IllegalArgumentException("maxWindows < 0");
+        }
+        if (sampler != null) {
+            throw new IllegalStateException("cannot change windows while sampling");
+        }
+        this.windowNanos = unit.toNanos(windowLength);
+        this.maxWindows = maxWindows;
+        trimWindows();
+    }
+
+    /**
+     * Takes a summary of the heap every {@code interval} while
+     * sampling, starting with the first tick, see {@link
+     * HprofData#getHeapSummaries}. Summaries are taken by the timer
+     * thread at the first tick after each interval has passed, so
+     * the interval is effectively rounded up to the sampling
+     * interval. An interval of zero, the default, disables heap
+     * summaries. May only be called while the profiler is stopped.
+     *
+     * @param interval The time between summaries in the specified
+     * unit, or zero.
+     * @param unit The unit of the interval
+     */
+    public synchronized void setHeapSummaryInterval(long interval, TimeUnit unit) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("interval < 0");
+        }
+        if (sampler != null) {
+            throw new IllegalStateException("cannot change heap summaries while sampling");
+        }
+        heapSummaryNanos = unit.toNanos(interval);
+        if (heapSummaryNanos == 0) {
+            heapMonitor = null;
+        } else if (heapMonitor == null) {
+            heapMonitor = new HeapMonitor();
+        }
+    }
+
+    /**
+     * Sets the directory each finished window is written to as a
+     * binary hprof file named after the start time of the window, or
+     * null, the default, to keep windows in memory only.
+     */
+    public synchronized void setWindowDirectory(File windowDirectory) {
+        this.windowDirectory = windowDirectory;
+    }
+
+    /**
+     * Returns the most recent finished windows, oldest first.
+     */
+    public synchronized List<HprofData> getWindows() {
+        return new ArrayList<HprofData>(windows);
+    }
+
+    /**
+     * Finishes the current window and starts a new one, whether or
+     * not the profiler is sampling. The finished window is added to
+     * the {@link #getWindows windows}, written to the {@link
+     * #setWindowDirectory window directory} if there is one, and
+     * returned. Writing happens after the profiler is unlocked.
+     *
+     * @throws IOException if the window could not be written. The
+     * window is kept in memory regardless.
+     */
+    public HprofData rotateWindow() throws IOException {
+        HprofData window;
+        File directory;
+        synchronized (this) {
+            window = cutWindow();
+            directory = windowDirectory;
+        }
+        if (directory != null) {
+            writeWindow(window, directory);
+        }
+        return window;
+    }
+
+    /**
+     * Writes a finished window to a new file in the directory.
+     */
+    private static void writeWindow(HprofData window, File directory) throws IOException {
+        File file = new File(directory, "window-" + window.getStartMillis() + ".hprof");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            BinaryHprofWriter.write(window, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Moves everything collected in the current window into a new
+     * {@code HprofData}, leaving {@link #hprofData} with only the
+     * start events of live threads.
+     */
+    private HprofData cutWindow() {
+        collect();
+        HprofData window = hprofData.copy();
+        if (callTree != null) {
+            // the timer thread may drain into callTree at any time,
+            // so export and clear it atomically
+            synchronized (callTree) {
+                nextStackTraceId = callTree.exportTo(window, nextStackTraceId);
+                callTree.clear();
+            }
+        }
+        if (topStacks != null) {
+            // the timer thread may drain into topStacks at any time,
+            // so export and clear it atomically
+            synchronized (topStacks) {
+                topStacks.exportTo(window);
+                topStacks.clear();
+            }
+        }
+        long nowNanos = System.nanoTime();
+        if (sampler != null) {
+            addCurrentPeriod(window, nowNanos);
+            windowTicksBase = scheduler.getTicks();
+            windowMissedTicksBase = scheduler.getMissedTicks();
+            startNanos = nowNanos;
+        } else {
+            window.setEffectiveIntervalMicros(effectiveIntervalMicros(window.getTicks(),
+                                                                      samplingNanos));
+        }
+        samplingNanos = 0;
+
+        hprofData.startWindow(System.currentTimeMillis());
+        for (Shard shard : shards) {
+            shard.mergedCountCells.clear();
+            shard.mergedAllocCells.clear();
+            shard.mergedLockCells.clear();
+        }
+
+        windows.add(window);
+        trimWindows();
+        return window;
+    }
+
+    private void trimWindows() {
+        while (windows.size() > maxWindows) {
+            windows.removeFirst();
+        }
+    }
+
+    /**
+     * Starts cutting windows periodically on the window thread.
+     */
+    private void scheduleWindows() {
+        if (windowExecutor == null) {
+            windowExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SamplingProfiler-windows");
+                    thread.setDaemon(true);
+                    windowThread = thread;
+                    return thread;
+                }
+            });
+        }
+        final Sampler currentSampler = sampler;
+        windowFuture = windowExecutor.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                HprofData window;
+                File directory;
+                synchronized (SamplingProfiler.this) {
+                    // a rotation queued behind stop() must not cut a
+                    // window of a later sampling period
+                    if (sampler != currentSampler) {
+                        return;
+                    }
+                    window = cutWindow();
+                    directory = windowDirectory;
+                }
+                if (directory != null) {
+                    try {
+                        writeWindow(window, directory);
+                    } catch (IOException e) {
+                        System.out.println("Problem writing window: " + e);
+                    }
+                }
+            }
+        }, windowNanos, windowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the hprof data accumulated by the profiler since it was
+     * created. The profiler needs to be stopped, but not necessarily
+     * shut down, in order to access the data. If the profiler is
+     * restarted, there is no thread safe way to access the data. Use
+     * {@link #snapshot} to access the data while sampling.
+     */
+    public synchronized HprofData getHprofData() {
+        if (sampler != null) {
+            throw new IllegalStateException("cannot access hprof data while sampling");
+        }
+        collect();
+        if (aggregation != Aggregation.STACKS) {
+            return export(hprofData.copy());
+        }
+        return hprofData;
+    }
+
+    /**
+     * Returns a copy of the hprof data accumulated by the profiler
+     * since it was created. Unlike {@link #getHprofData} this may be
+     * called at any time, including from another thread while the
+     * profiler is sampling. Sampling is not paused: the caller waits
+     * for at most the tick in progress to finish and swaps the
+     * buffers of the timer thread, which is a constant time
+     * operation, and merging and copying then happen on the calling
+     * thread.
+     * The result is not affected by further sampling.
+     */
+    public synchronized HprofData snapshot() {
+        collect();
+        HprofData snapshot = hprofData.copy();
+        if (aggregation != Aggregation.STACKS) {
+            export(snapshot);
+        }
+        if (sampler != null) {
+            addCurrentPeriod(snapshot, System.nanoTime());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns statistics of the profiler's own behavior. Tick
+     * statistics cover every tick since the profiler was created,
+     * store statistics describe the samples currently retained,
+     * which are first brought up to date like for {@link #snapshot}.
+     * May be called at any time.
+     */
+    public synchronized ProfilerStats getStats() {
+        collect();
+        ProfilerStats result;
+        synchronized (stats) {
+            result = stats.copy();
+        }
+        if (sampler != null) {
+            result.missedTicks += scheduler.getMissedTicks();
+            result.lateTicks += scheduler.getLateTicks();
+            result.failedTicks += scheduler.getFailedTicks();
+            if (result.failure == null) {
+                result.failure = scheduler.getFailure();
+            }
+        }
+        long bytes = 0;
+        int frames = 0;
+        for (Shard shard : shards) {
+            // the dictionary size as of the hand off is visible to
+            // this thread, a later one is merely more recent
+            int size = shard.frameDictionary.size();
+            frames += size;
+            bytes += (long) size * (FRAME_BYTES + MAP_ENTRY_BYTES + OBJECT_BYTES
+                                    + REFERENCE_BYTES);
+            for (FrameDictionary.Stack stack : shard.mergedCountCells.keySet()) {
+                bytes += MAP_ENTRY_BYTES + STACK_BYTES + OBJECT_BYTES + 4 * stack.length;
+            }
+            for (FrameDictionary.Stack stack : shard.mergedAllocCells.keySet()) {
+                bytes += 2 * MAP_ENTRY_BYTES + STACK_BYTES + OBJECT_BYTES + 4 * stack.length
+                        + ALLOC_CELL_BYTES + stackTraceBytes(stack.length);
+            }
+        }
+        result.distinctFrames = frames;
+        for (Timeline timeline : hprofData.getTimelines().values()) {
+            bytes += MAP_ENTRY_BYTES + OBJECT_BYTES + timeline.byteCount();
+        }
+        if (callTree != null) {
+            synchronized (callTree) {
+                result.distinctStacks = callTree.getStackCount();
+                bytes += (long) callTree.getNodeCount() * NODE_BYTES;
+            }
+        } else if (topStacks != null) {
+            synchronized (topStacks) {
+                result.distinctStacks = topStacks.size();
+            }
+            bytes += (long) result.distinctStacks
+                    * (COUNTER_BYTES + MAP_ENTRY_BYTES + stackTraceBytes(depth));
+        } else {
+            result.distinctStacks = stackTraces.size();
+            for (HprofData.StackTrace stackTrace : stackTraces.keySet()) {
+                bytes += MAP_ENTRY_BYTES + COUNT_CELL_BYTES
+                        + stackTraceBytes(stackTrace.stackFrames.length);
+            }
+        }
+        result.retainedBytes = bytes;
+        return result;
+    }
+
+    /**
+     * Returns the estimated size of a stack trace with the specified
+     * number of frames, not counting the frames themselves.
+     */
+    private static long stackTraceBytes(int frames) {
+        return 2 * OBJECT_BYTES + REFERENCE_BYTES * 3 + (long) REFERENCE_BYTES * frames;
+    }
+
+    /**
+     * Adds the stack traces of the {@link #callTree} or {@link
+     * #topStacks} to the specified copy of {@link #hprofData}.
+     */
+    private HprofData export(HprofData data) {
+        if (callTree != null) {
+            synchronized (callTree) {
+                nextStackTraceId = callTree.exportTo(data, nextStackTraceId);
+            }
+        }
+        if (topStacks != null) {
+            synchronized (topStacks) {
+                topStacks.exportTo(data);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Brings {@link #hprofData} up to date with everything sampled so
+     * far. While sampling, the buffers are swapped between ticks,
+     * otherwise directly.
+     */
+    private void collect() {
+        if (sampler != null) {
+            sampler.handoff();
+        } else {
+            swapBuffers();
+        }
+        mergeRetired();
+    }
+
+    /**
+     * Retires the buffers written by the timer thread and capture
+     * workers, replacing them with the empty retired ones. Only
+     * called between ticks or when not sampling.
+     */
+    private void swapBuffers() {
+        for (Shard shard : shards) {
+            shard.swap();
+        }
+        List<HprofData.ThreadEvent> events = threadEvents;
+        threadEvents = retiredThreadEvents;
+        retiredThreadEvents = events;
+        List<HprofData.HeapSummary> summaries = heapSummaries;
+        heapSummaries = retiredHeapSummaries;
+        retiredHeapSummaries = summaries;
+    }
+
+    /**
+     * Merges the retired thread events and samples into {@link
+     * #hprofData}, assigning stack trace identifiers to stacks seen
+     * for the first time. Retired buffers are empty afterwards.
+     */
+    private void mergeRetired() {
+        // thread events first so stack traces only refer to known threads
+        for (HprofData.ThreadEvent event : retiredThreadEvents) {
+            hprofData.addThreadEvent(event);
+        }
+        retiredThreadEvents.clear();
+        for (HprofData.HeapSummary heapSummary : retiredHeapSummaries) {
+            hprofData.addHeapSummary(heapSummary);
+        }
+        retiredHeapSummaries.clear();
+
+        mergeRetiredAllocations();
+        mergeRetiredContention();
+
+        if (callTree != null) {
+            synchronized (callTree) {
+                for (Shard shard : shards) {
+                    shard.drainTo(callTree, shard.retired);
+                }
+            }
+            return;
+        }
+        if (topStacks != null) {
+            synchronized (topStacks) {
+                for (Shard shard : shards) {
+                    shard.drainTo(topStacks, shard.retired);
+                }
+            }
+            return;
+        }
+
+        HprofData.StackTrace mutableStackTrace = new HprofData.StackTrace();
+        for (Shard shard : shards) {
+            if (timeline && shard.retiredStackTraceIds.length < shard.retired.size()) {
+                shard.retiredStackTraceIds = new int[shard.retired.size()];
+                shard.retiredThreadIds = new int[shard.retired.size()];
+            }
+            for (Map.Entry<FrameDictionary.Stack, long[]> e : shard.retired.entrySet()) {
+                FrameDictionary.Stack stack = e.getKey();
+                long[] shardCell = e.getValue();
+                long count = shardCell[0];
+                long[] countCell = shard.mergedCountCells.get(stack);
+                if (countCell == null) {
+                    // first time this shard merges the stack, decode
+                    // it and look for it in case another shard has
+                    // already merged it.
+                    StackTraceElement[] stackFrames = shard.frameDictionary.decode(stack);
+                    mutableStackTrace.threadId = stack.threadId;
+                    mutableStackTrace.threadState = stack.threadState;
+                    mutableStackTrace.labels = stack.labels;
+                    mutableStackTrace.stackFrames = stackFrames;
+                    countCell = stackTraces.get(mutableStackTrace);
+                    if (countCell == null) {
+                        // with a timeline the cell also holds the
+                        // stack trace id the timeline refers to
+                        countCell = new long[timeline ? 2 : 1];
+                        HprofData.StackTrace stackTrace
+                                = new HprofData.StackTrace(nextStackTraceId++,
+                                                           stack.threadId,
+                                                           stack.threadState,
+                                                           stack.labels,
+                                                           stackFrames);
+                        hprofData.addStackTrace(stackTrace, countCell);
+                        if (timeline) {
+                            countCell[1] = stackTrace.stackTraceId;
+                        }
+                    }
+                    shard.mergedCountCells.put(stack, countCell);
+                }
+                countCell[0] += count;
+                if (timeline) {
+                    int ordinal = (int) shardCell[1];
+                    shard.retiredStackTraceIds[ordinal] = (int) countCell[1];
+                    shard.retiredThreadIds[ordinal] = stack.threadId;
+                }
+            }
+            shard.retired.clear();
+        }
+        if (timeline) {
+            mergeRetiredTimelines();
+        }
+    }
+
+    /**
+     * Merges the retired timelines of the shards into the timelines
+     * of {@link #hprofData}, translating the ordinals of the shards'
+     * stacks into stack trace ids. A thread may be sampled by
+     * different shards over time, so the samples of all shards are
+     * merged in time order.
+     */
+    private void mergeRetiredTimelines() {
+        Timeline.Cursor[] cursors = new Timeline.Cursor[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            Timeline.Cursor cursor = shards[i].retiredTimeline.cursor();
+            cursors[i] = cursor.next() ? cursor : null;
+        }
+        while (true) {
+            int next = -1;
+            for (int i = 0; i < cursors.length; i++) {
+                if (cursors[i] != null
+                        && (next == -1
+                            || cursors[i].getTimeMicros() < cursors[next].getTimeMicros())) {
+                    next = i;
+                }
+            }
+            if (next == -1) {
+                break;
+            }
+            Shard shard = shards[next];
+            Timeline.Cursor cursor = cursors[next];
+            int ordinal = cursor.getStackTraceId();
+            hprofData.addTimelineSample(shard.retiredThreadIds[ordinal],
+                                        cursor.getTimeMicros(),
+                                        shard.retiredStackTraceIds[ordinal]);
+            if (!cursor.next()) {
+                cursors[next] = null;
+            }
+        }
+        for (Shard shard : shards) {
+            shard.retiredTimeline.clear();
+        }
+    }
+
+    /**
+     * Merges the retired allocations of each shard into the
+     * allocation sites of {@link #hprofData}. Allocation sites are
+     * kept as full stacks whatever the aggregation.
+     */
+    private void mergeRetiredAllocations() {
+        HprofData.StackTrace mutableStackTrace = new HprofData.StackTrace();
+        for (Shard shard : shards) {
+            for (Map.Entry<FrameDictionary.Stack, long[]> e : shard.retiredAllocations.entrySet()) {
+                FrameDictionary.Stack stack = e.getKey();
+                long[] allocations = e.getValue();
+                long[] allocCell = shard.mergedAllocCells.get(stack);
+                if (allocCell == null) {
+                    StackTraceElement[] stackFrames = shard.frameDictionary.decode(stack);
+                    mutableStackTrace.threadId = stack.threadId;
+                    mutableStackTrace.threadState = stack.threadState;
+                    mutableStackTrace.labels = stack.labels;
+                    mutableStackTrace.stackFrames = stackFrames;
+                    allocCell = hprofData.getAllocCell(mutableStackTrace, null);
+                    if (allocCell == null) {
+                        allocCell = new long[2];
+                        HprofData.StackTrace stackTrace
+                                = new HprofData.StackTrace(nextStackTraceId++,
+                                                           stack.threadId,
+                                                           stack.threadState,
+                                                           stack.labels,
+                                                           stackFrames);
+                        hprofData.addAllocSite(stackTrace, null, allocCell);
+                    }
+                    shard.mergedAllocCells.put(stack, allocCell);
+                }
+                allocCell[0] += allocations[0];
+                allocCell[1] += allocations[1];
+            }
+            shard.retiredAllocations.clear();
+        }
+    }
+
+    /**
+     * Merges the retired contention of each shard into the lock
+     * sites of {@link #hprofData}. Lock sites are kept as full stacks
+     * whatever the aggregation.
+     */
+    private void mergeRetiredContention() {
+        for (Shard shard : shards) {
+            for (Map.Entry<ContentionKey, long[]> e : shard.retiredContention.entrySet()) {
+                ContentionKey key = e.getKey();
+                long[] contention = e.getValue();
+                long[] lockCell = shard.mergedLockCells.get(key);
+                if (lockCell == null) {
+                    // probe with unnumbered stack traces first
+                    HprofData.StackTrace waiter = shard.decodeStackTrace(key.waiter, 0);
+                    HprofData.StackTrace owner
+                            = (key.owner == null) ? null : shard.decodeStackTrace(key.owner, 0);
+                    lockCell = hprofData.getLockCell(key.lockName, waiter, owner);
+                    if (lockCell == null) {
+                        lockCell = new long[2];
+                        waiter = shard.decodeStackTrace(key.waiter, nextStackTraceId++);
+                        if (owner != null) {
+                            owner = shard.decodeStackTrace(key.owner, nextStackTraceId++);
+                        }
+                        hprofData.addLockSite(key.lockName, waiter, owner, lockCell);
+                    }
+                    shard.mergedLockCells.put(key, lockCell);
+                }
+                lockCell[0] += contention[0];
+                lockCell[1] += contention[1];
+            }
+            shard.retiredContention.clear();
+        }
+    }
+
+    private boolean callTreeIsEmpty() {
+        synchronized (callTree) {
+            return callTree.isEmpty();
+        }
+    }
+
+    /**
+     * Key of the contention recorded by a shard, the lock and the
+     * encoded stacks of the waiting thread and of the lock owner,
+     * which is null if unknown. Mutable like {@code Stack} so that
+     * contention can be looked up without allocating.
+     */
+    private static final class ContentionKey {
+        String lockClassName;
+        int lockIdentityHashCode;
+        FrameDictionary.Stack waiter;
+        FrameDictionary.Stack owner;
+
+        /**
+         * The name of the lock, only set on copies.
+         */
+        String lockName;
+
+        ContentionKey() {
+        }
+
+        /**
+         * Copies a key, including its waiter stack, which is
+         * typically a reused mutable stack. Owner stacks are never
+         * mutated once encoded, so they are shared.
+         */
+        ContentionKey(ContentionKey key) {
+            this.lockClassName = key.lockClassName;
+            this.lockIdentityHashCode = key.lockIdentityHashCode;
+            this.waiter = new FrameDictionary.Stack(key.waiter);
+            this.owner = key.owner;
+            this.lockName = lockClassName + '@' + Integer.toHexString(lockIdentityHashCode);
+        }
+
+        void set(String lockClassName, int lockIdentityHashCode,
+                 FrameDictionary.Stack waiter, FrameDictionary.Stack owner) {
+            this.lockClassName = lockClassName;
+            this.lockIdentityHashCode = lockIdentityHashCode;
+            this.waiter = waiter;
+            this.owner = owner;
+        }
+
+        @Override public int hashCode() {
+            int result = lockClassName.hashCode();
+            result = 31 * result + lockIdentityHashCode;
+            result = 31 * result + waiter.hashCode();
+            result = 31 * result + (owner == null ? 0 : owner.hashCode());
+            return result;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof ContentionKey)) {
+                return false;
+            }
+            ContentionKey k = (ContentionKey) o;
+            return lockIdentityHashCode == k.lockIdentityHashCode
+                    && lockClassName.equals(k.lockClassName)
+                    && waiter.equals(k.waiter)
+                    && (owner == null ? k.owner == null : owner.equals(k.owner));
+        }
+    }
+
+    /**
+     * A Shard aggregates the samples captured by a single capture
+     * worker. During a sample tick it samples the threads in the
+     * range [{@code from}, {@code to}) of {@link #currentThreads}.
+     */
+    private final class Shard implements Callable<Void> {
+
+        /**
+         * Assigns ids to the frames seen by this shard, so stacks
+         * can be stored and hashed as {@code int[]}.
+         */
+        private final FrameDictionary frameDictionary = new FrameDictionary();
+
+        /**
+         * Map of encoded stacks to a mutable sample count. Stacks in
+         * a shard do not yet have a stack trace identifier, one is
+         * assigned when the shard is merged.
+         */
+        private Map<FrameDictionary.Stack, long[]> stackTraces
+                = new HashMap<FrameDictionary.Stack, long[]>();
+
+        /**
+         * Samples handed off for merging, swapped with {@link
+         * #stackTraces stackTraces}.
+         */
+        private Map<FrameDictionary.Stack, long[]> retired
+                = new HashMap<FrameDictionary.Stack, long[]>();
+
+        /**
+         * The samples of this shard in time order when keeping a
+         * {@link SamplingProfiler#timeline timeline}, double buffered
+         * like {@link #stackTraces stackTraces}. In place of a stack
+         * trace id each sample holds the ordinal of its stack, the
+         * number of stacks that preceded it in {@code stackTraces},
+         * which is kept in the second element of its count cell.
+         */
+        private Timeline timelineSamples = new Timeline();
+        private Timeline retiredTimeline = new Timeline();
+
+        /**
+         * Reusable maps from the ordinal of a retired stack to its
+         * stack trace id and thread id, filled while merging.
+         */
+        private int[] retiredStackTraceIds = new int[0];
+        private int[] retiredThreadIds = new int[0];
+
+        /**
+         * The time of the current tick in microseconds since the
+         * epoch, when keeping a timeline.
+         */
+        private long tickMicros;
+
+        /**
+         * Map of stacks previously merged from this shard to their
+         * count cell in {@link SamplingProfiler#stackTraces}, so that
+         * merging a known stack does not need to decode it. Only
+         * accessed while merging.
+         */
+        private final Map<FrameDictionary.Stack, long[]> mergedCountCells
+                = new HashMap<FrameDictionary.Stack, long[]>();
+
+        /**
+         * Map of encoded stacks to the bytes and number of sampled
+         * allocations attributed to them, double buffered like
+         * {@link #stackTraces stackTraces}.
+         */
+        private Map<FrameDictionary.Stack, long[]> allocations
+                = new HashMap<FrameDictionary.Stack, long[]>();
+        private Map<FrameDictionary.Stack, long[]> retiredAllocations
+                = new HashMap<FrameDictionary.Stack, long[]>();
+
+        /**
+         * Map of stacks previously merged from {@link #allocations
+         * allocations} to their cell in the allocation sites of
+         * {@link SamplingProfiler#hprofData}. Only accessed while
+         * merging.
+         */
+        private final Map<FrameDictionary.Stack, long[]> mergedAllocCells
+                = new HashMap<FrameDictionary.Stack, long[]>();
+
+        /**
+         * Map of contention to the samples and wait time attributed
+         * to it, double buffered like {@link #stackTraces
+         * stackTraces}.
+         */
+        private Map<ContentionKey, long[]> contention = new HashMap<ContentionKey, long[]>();
+        private Map<ContentionKey, long[]> retiredContention
+                = new HashMap<ContentionKey, long[]>();
+
+        /**
+         * Map of contention previously merged from this shard to its
+         * cell in the lock sites of {@link SamplingProfiler#hprofData}.
+         * Only accessed while merging.
+         */
+        private final Map<ContentionKey, long[]> mergedLockCells
+                = new HashMap<ContentionKey, long[]>();
+
+        /**
+         * Samples contention, created on first use. Replaced when
+         * contention timing changes.
+         */
+        private ContentionSampler contentionSampler;
+
+        /**
+         * Mutable {@code ContentionKey} for probing the {@link
+         * #contention contention} map without allocating.
+         */
+        private final ContentionKey mutableContentionKey = new ContentionKey();
+
+        /**
+         * The encoded stacks of the lock owners seen in the current
+         * tick keyed by {@code Thread.getId}, null if unknown, so that
+         * all waiters of an owner share one stack captured once.
+         */
+        private final Map<Long, FrameDictionary.Stack> ownerStacks
+                = new HashMap<Long, FrameDictionary.Stack>();
+
+        /**
+         * Mutable {@code Stack} that is used for probing the {@link
+         * #stackTraces stackTraces} map without allocating. Safe
+         * because a shard is only written by one worker at a time.
+         */
+        private final FrameDictionary.Stack mutableStack = new FrameDictionary.Stack();
+
+        /**
+         * Reusable buffer of frames for draining into a call tree.
+         * Only used with the lock of the call tree held.
+         */
+        private StackTraceElement[] stackFrames = new StackTraceElement[0];
+
+        /**
+         * Reusable buffer of frame ids for the stack being recorded.
+         */
+        private int[] frameIds = new int[0];
+
+        /**
+         * Reusable result array for a {@link BatchThreadSampler},
+         * indexed like {@link #currentThreads}.
+         */
+        private StackTraceElement[][] batch = new StackTraceElement[0][];
+
+        /**
+         * Reusable thread states for a {@link BatchThreadSampler},
+         * parallel to {@link #batch}.
+         */
+        private Thread.State[] batchStates = new Thread.State[0];
+
+        /**
+         * The {@code ThreadSampler} is used to produce a {@code
+         * StackTraceElement} array for a given thread. Each shard has
+         * its own since a {@code ThreadSampler} may reuse its result
+         * array.
+         */
+        private final ThreadSampler threadSampler;
+
+        private int from;
+        private int to;
+
+        /*
+         * Statistics of the current tick, folded into the
+         * profiler's stats by the timer thread at its end.
+         */
+        private final ProfilerStats.Histogram threadNanos = new ProfilerStats.Histogram();
+        private int capturedThreads;
+
+        private Shard(ThreadSampler threadSampler) {
+            this.threadSampler = threadSampler;
+        }
+
+        /**
+         * Adds the samples in the specified map of this shard to
+         * {@code topStacks}, then clears the map.
+         */
+        private void drainTo(TopStacks topStacks, Map<FrameDictionary.Stack, long[]> samples) {
+            for (Map.Entry<FrameDictionary.Stack, long[]> e : samples.entrySet()) {
+                FrameDictionary.Stack stack = e.getKey();
+                topStacks.add(stack.threadId, stack.threadState, stack.labels,
+                              frameDictionary.decode(stack), e.getValue()[0]);
+            }
+            samples.clear();
+        }
+
+        /**
+         * Adds the samples in the specified map of this shard to
+         * {@code callTree}, then clears the map.
+         */
+        private void drainTo(CallTree callTree, Map<FrameDictionary.Stack, long[]> samples) {
+            for (Map.Entry<FrameDictionary.Stack, long[]> e : samples.entrySet()) {
+                FrameDictionary.Stack stack = e.getKey();
+                if (stackFrames.length < stack.length) {
+                    stackFrames = new StackTraceElement[stack.length];
+                }
+                for (int i = 0; i < stack.length; i++) {
+                    stackFrames[i] = frameDictionary.getFrame(stack.frameIds[i]);
+                }
+                callTree.add(stack.threadId, stack.threadState, stack.labels,
+                             stackFrames, stack.length, e.getValue()[0]);
+            }
+            samples.clear();
+        }
+
+        private void swap() {
+            Map<FrameDictionary.Stack, long[]> filled = stackTraces;
+            stackTraces = retired;
+            retired = filled;
+            filled = allocations;
+            allocations = retiredAllocations;
+            retiredAllocations = filled;
+            Map<ContentionKey, long[]> filledContention = contention;
+            contention = retiredContention;
+            retiredContention = filledContention;
+            Timeline filledTimeline = timelineSamples;
+            timelineSamples = retiredTimeline;
+            retiredTimeline = filledTimeline;
+        }
+
+        /**
+         * Decodes an encoded stack of this shard into a stack trace
+         * with the specified identifier.
+         */
+        private HprofData.StackTrace decodeStackTrace(FrameDictionary.Stack stack,
+                                                      int stackTraceId) {
+            return new HprofData.StackTrace(stackTraceId, stack.threadId, stack.threadState,
+                                            stack.labels, frameDictionary.decode(stack));
+        }
+
+        public Void call() {
+            if (samplingMode == SamplingMode.CONTENTION) {
+                callContention();
+                return null;
             }
-            lastThread = threadCount;
-            return threads;
+            if (threadSampler instanceof BatchThreadSampler) {
+                callBatch((BatchThreadSampler) threadSampler);
+                return null;
+            }
+            Thread[] threads = currentThreads;
+            ThreadEntry[] entries = currentEntries;
+            boolean onCpu = (samplingMode == SamplingMode.ON_CPU);
+            for (int i = from; i < to; i++) {
+                ThreadEntry entry = entries[i];
+                int threadId = entry.threadId;
+                if (threadId == 0) {
+                    continue;
+                }
+                Thread thread = threads[i];
+                Thread.State threadState = thread.getState();
+                // skip the stack walk entirely for idle threads
+                if (onCpu && threadState != Thread.State.RUNNABLE) {
+                    continue;
+                }
+                long weight = 1;
+                if (threadCpuClock != null) {
+                    weight = cpuNanosSinceLastSample(entry);
+                    if (weight <= 0) {
+                        continue;
+                    }
+                }
+                long startNanos = System.nanoTime();
+                StackTraceElement[] stackFrames = threadSampler.getStackTrace(thread);
+                threadNanos.record(System.nanoTime() - startNanos);
+                if (stackFrames == null) {
+                    continue;
+                }
+                recordStackTrace(entry, threadState, stackFrames, weight);
+            }
+            return null;
         }
-    }
 
-    /**
-     * Starts profiler sampling at the specified rate.
-     *
-     * @param interval The number of milliseconds between samples
-     */
-    public void start(int interval) {
-        if (interval < 1) {
-            throw new IllegalArgumentException("interval < 1");
+        /**
+         * Samples all threads of this shard's range with a single
+         * batch request.
+         */
+        private void callBatch(BatchThreadSampler batchThreadSampler) {
+            if (from == to) {
+                return;
+            }
+            Thread[] threads = currentThreads;
+            ThreadEntry[] entries = currentEntries;
+            if (batch.length < threads.length) {
+                batch = new StackTraceElement[threads.length][];
+                batchStates = new Thread.State[threads.length];
+            }
+            long startNanos = System.nanoTime();
+            batchThreadSampler.getStackTraces(threads, from, to, batch, batchStates);
+            threadNanos.record((System.nanoTime() - startNanos) / (to - from), to - from);
+            boolean onCpu = (samplingMode == SamplingMode.ON_CPU);
+            for (int i = from; i < to; i++) {
+                StackTraceElement[] stackFrames = batch[i];
+                Thread.State threadState = batchStates[i];
+                batch[i] = null;
+                batchStates[i] = null;
+                ThreadEntry entry = entries[i];
+                if (entry.threadId == 0 || stackFrames == null) {
+                    continue;
+                }
+                if (onCpu && threadState != Thread.State.RUNNABLE) {
+                    continue;
+                }
+                long weight = 1;
+                if (threadCpuClock != null) {
+                    weight = cpuNanosSinceLastSample(entry);
+                    if (weight <= 0) {
+                        continue;
+                    }
+                }
+                recordStackTrace(entry, threadState, stackFrames, weight);
+            }
         }
-        if (sampler != null) {
-            throw new IllegalStateException("profiling already started");
+
+        /**
+         * Samples the threads of this shard's range that are
+         * contending for a lock, recording the lock site of each as
+         * well as its stack.
+         */
+        private void callContention() {
+            if (from == to) {
+                return;
+            }
+            if (contentionSampler == null) {
+                contentionSampler = new ContentionSampler(contentionTiming);
+            }
+            contentionSampler.setDepth(samplerDepth());
+            Thread[] threads = currentThreads;
+            ThreadEntry[] entries = currentEntries;
+            long startNanos = System.nanoTime();
+            contentionSampler.sample(threads, from, to);
+            threadNanos.record((System.nanoTime() - startNanos) / (to - from), to - from);
+            for (int i = from; i < to; i++) {
+                ThreadEntry entry = entries[i];
+                if (entry.threadId == 0) {
+                    continue;
+                }
+                long waitMillis = waitMillisSinceLastSample(entry,
+                                                            contentionSampler.getWaitMillis(i));
+                if (!contentionSampler.isContending(i)) {
+                    continue;
+                }
+                StackTraceElement[] stackFrames = contentionSampler.getStackTrace(i);
+                if (stackFrames == null) {
+                    continue;
+                }
+                // the owner first, since encoding it reuses mutableStack
+                FrameDictionary.Stack owner = ownerStack(contentionSampler.getLockOwnerId(i));
+                recordStackTrace(entry, contentionSampler.getThreadState(i), stackFrames, 1);
+
+                ContentionKey key = mutableContentionKey;
+                key.set(contentionSampler.getLockClassName(i),
+                        contentionSampler.getLockIdentityHashCode(i),
+                        mutableStack, owner);
+                long[] contentionCell = contention.get(key);
+                if (contentionCell == null) {
+                    contentionCell = new long[2];
+                    // copied because mutableStack is reused for the next sample
+                    contention.put(new ContentionKey(key), contentionCell);
+                }
+                contentionCell[0]++;
+                contentionCell[1] += waitMillis;
+            }
+            contentionSampler.clear();
+            ownerStacks.clear();
         }
-        sampler = new Sampler();
-        hprofData.setStartMillis(System.currentTimeMillis());
-        timer.scheduleAtFixedRate(sampler, 0, interval);
-    }
 
-    /**
-     * Stops profiler sampling. It can be restarted with {@link
-     * #start(int)} to continue sampling.
-     */
-    public void stop() {
-        if (sampler == null) {
-            return;
+        /**
+         * Returns the encoded stack of the sampled thread with the
+         * specified {@code Thread.getId} owning a lock, or null if
+         * unknown. Each owner is only captured once per tick.
+         */
+        private FrameDictionary.Stack ownerStack(long ownerId) {
+            if (ownerId == -1) {
+                return null;
+            }
+            FrameDictionary.Stack owner = ownerStacks.get(ownerId);
+            if (owner != null || ownerStacks.containsKey(ownerId)) {
+                return owner;
+            }
+            ThreadEntry ownerEntry = entriesById.get(ownerId);
+            StackTraceElement[] ownerFrames = (ownerEntry == null)
+                    ? null
+                    : contentionSampler.getOwnerStackTrace(ownerId);
+            if (ownerFrames != null) {
+                int length = encode(ownerFrames);
+                mutableStack.set(ownerEntry.threadId, null, null, frameIds, length);
+                owner = new FrameDictionary.Stack(mutableStack);
+            }
+            ownerStacks.put(ownerId, owner);
+            return owner;
+        }
+
+        /**
+         * Returns the time the thread of the entry spent blocked or
+         * waiting since it was last sampled, or zero if unknown.
+         */
+        private long waitMillisSinceLastSample(ThreadEntry entry, long now) {
+            long last = entry.waitMillis;
+            entry.waitMillis = now;
+            if (last < 0 || now < 0) {
+                return 0;
+            }
+            return Math.max(0, now - last);
         }
-        synchronized(sampler) {
-            sampler.stop = true;
-            while (!sampler.stopped) {
-                try {
-                    sampler.wait();
-                } catch (InterruptedException ignored) {
+
+        /**
+         * Returns the current labels of the thread of the entry, or
+         * null if none. Once a thread is found to have set labels its
+         * slot is kept in the entry, so reading them needs no lock.
+         * Threads without labels are only looked up again after some
+         * thread has set labels for the first time.
+         */
+        private Labels labelsOf(ThreadEntry entry) {
+            Labels.Slot slot = entry.labelSlot;
+            if (slot == null) {
+                int slotCount = Labels.slotCount();
+                if (slotCount == entry.labelSlotCount) {
+                    return null;
+                }
+                entry.labelSlotCount = slotCount;
+                slot = Labels.slotOf(entry.thread);
+                if (slot == null) {
+                    return null;
                 }
+                entry.labelSlot = slot;
             }
+            return slot.labels;
         }
-        sampler = null;
-    }
 
-    /**
-     * Shuts down profiling after which it can not be restarted. It is
-     * important to shut down profiling when done to free resources
-     * used by the profiler. Shutting down the profiler also stops the
-     * profiling if that has not already been done.
-     */
-    public void shutdown() {
-        stop();
-        timer.cancel();
-    }
+        /**
+         * Returns the CPU time the thread of the entry consumed since
+         * it was last sampled, or zero if unknown.
+         */
+        private long cpuNanosSinceLastSample(ThreadEntry entry) {
+            long now = threadCpuClock.getCpuNanos(entry.thread);
+            long last = entry.cpuNanos;
+            entry.cpuNanos = now;
+            if (last < 0 || now < 0) {
+                return 0;
+            }
+            return now - last;
+        }
 
-    /**
-     * Returns the hprof data accumulated by the profiler since it was
-     * created. The profiler needs to be stopped, but not necessarily
-     * shut down, in order to access the data. If the profiler is
-     * restarted, there is no thread safe way to access the data.
-     */
-    public HprofData getHprofData() {
-        if (sampler != null) {
-            throw new IllegalStateException("cannot access hprof data while sampling");
+        /**
+         * Returns the number of allocation sampling intervals the
+         * thread of the entry crossed since it was last sampled, or
+         * zero if unknown.
+         */
+        private long allocationsSinceLastSample(ThreadEntry entry) {
+            long now = threadAllocationCounter.getAllocatedBytes(entry.thread);
+            long last = entry.allocatedBytes;
+            entry.allocatedBytes = now;
+            if (last < 0 || now < 0) {
+                return 0;
+            }
+            return now / allocIntervalBytes - last / allocIntervalBytes;
+        }
+
+        /**
+         * Record a new stack trace for a thread previously registered
+         * with addStartThread, and the allocations of the thread if
+         * they are sampled.
+         */
+        private void recordStackTrace(ThreadEntry entry, Thread.State threadState,
+                                      StackTraceElement[] stackFrames, long weight) {
+            int threadId = entry.threadId;
+            int length = encode(stackFrames);
+            mutableStack.set(threadId, threadState, labelsOf(entry), frameIds, length);
+            capturedThreads++;
+
+            long[] countCell = stackTraces.get(mutableStack);
+            if (countCell == null) {
+                if (timeline) {
+                    countCell = new long[] { 0, stackTraces.size() };
+                } else {
+                    countCell = new long[1];
+                }
+                // copied because frameIds is reused for the next sample
+                stackTraces.put(new FrameDictionary.Stack(mutableStack), countCell);
+            }
+            countCell[0] += weight;
+            if (timeline) {
+                timelineSamples.add(tickMicros, (int) countCell[1]);
+            }
+
+            if (threadAllocationCounter != null) {
+                long sampled = allocationsSinceLastSample(entry);
+                if (sampled > 0) {
+                    long[] allocCell = allocations.get(mutableStack);
+                    if (allocCell == null) {
+                        allocCell = new long[2];
+                        allocations.put(new FrameDictionary.Stack(mutableStack), allocCell);
+                    }
+                    allocCell[0] += sampled * allocIntervalBytes;
+                    allocCell[1] += sampled;
+                }
+            }
+        }
+
+        /**
+         * Encodes a stack into {@link #frameIds}, truncating it if it
+         * is too deep, and returns the number of frame ids.
+         */
+        private int encode(StackTraceElement[] stackFrames) {
+            int length = stackFrames.length;
+            boolean marked = markTruncation || rootDepth != 0;
+            if (marked && length > depth + rootDepth) {
+                return truncate(stackFrames);
+            }
+            if (frameIds.length < length) {
+                frameIds = new int[length];
+            }
+            for (int i = 0; i < length; i++) {
+                frameIds[i] = frameDictionary.intern(stackFrames[i]);
+            }
+            return length;
+        }
+
+        /**
+         * Encodes the leaf frames up to the depth, the truncated
+         * frame and the root frames of a stack that is too deep into
+         * {@link #frameIds}, returning the number of frame ids.
+         */
+        private int truncate(StackTraceElement[] stackFrames) {
+            int length = depth + 1 + rootDepth;
+            if (frameIds.length < length) {
+                frameIds = new int[length];
+            }
+            for (int i = 0; i < depth; i++) {
+                frameIds[i] = frameDictionary.intern(stackFrames[i]);
+            }
+            frameIds[depth] = frameDictionary.intern(HprofData.TRUNCATED_FRAME);
+            int roots = stackFrames.length - rootDepth;
+            for (int i = 0; i < rootDepth; i++) {
+                frameIds[depth + 1 + i] = frameDictionary.intern(stackFrames[roots + i]);
+            }
+            return length;
         }
-        return hprofData;
     }
 
     /**
@@ -339,24 +2731,47 @@ public final class SamplingProfiler {
      *
      * For each thread to be sampled, a stack is collected and used to
      * update the set of collected samples. Stacks are truncated to a
-     * maximum depth. There is no way to tell if a stack has been truncated.
+     * maximum depth, optionally keeping root frames and marking the
+     * truncation, see {@link #setRootDepth setRootDepth}.
      */
-    private class Sampler extends TimerTask {
-
-        private boolean stop;
-        private boolean stopped;
+    private class Sampler implements Runnable {
 
         private Thread timerThread;
 
-        public void run() {
-            synchronized(this) {
-                if (stop) {
-                    cancel();
-                    stopped = true;
-                    notifyAll();
-                    return;
-                }
-            }
+        /**
+         * Adjusts the sampling interval to the overhead budget, or
+         * null if the interval is fixed.
+         */
+        private final RateController rateController;
+
+        /**
+         * The time at or after which the next heap summary is due.
+         */
+        private long nextHeapSummaryNanos = System.nanoTime();
+
+        /**
+         * The wall clock and {@code System.nanoTime} at the start of
+         * sampling, from which tick times are derived.
+         */
+        private final long originMicros = System.currentTimeMillis() * 1000;
+        private final long originNanos = System.nanoTime();
+
+        private Sampler(RateController rateController) {
+            this.rateController = rateController;
+        }
+
+        /**
+         * Swaps buffers between ticks so that the retired buffers may
+         * be merged. Each tick runs holding this lock, so this waits
+         * for at most the tick in progress, and never depends on the
+         * timer thread being scheduled or still alive.
+         */
+        private synchronized void handoff() {
+            swapBuffers();
+        }
+
+        public synchronized void run() {
+            long tickStartNanos = System.nanoTime();
 
             if (timerThread == null) {
                 timerThread = Thread.currentThread();
@@ -366,98 +2781,264 @@ public final class SamplingProfiler {
             // assign thread ids to any new threads before allocating
             // new stacks for them
             Thread[] newThreads = threadSet.threads();
-            if (!Arrays.equals(currentThreads, newThreads)) {
-                updateThreadHistory(currentThreads, newThreads);
-                currentThreads = newThreads.clone();
+            int newThreadCount = 0;
+            while (newThreadCount < newThreads.length && newThreads[newThreadCount] != null) {
+                newThreadCount++;
+            }
+            if (!sameThreads(newThreads, newThreadCount)) {
+                updateThreadHistory(newThreads, newThreadCount);
+            }
+            if (samplingMode == SamplingMode.CONTENTION && entriesByIdStale) {
+                updateEntriesById();
             }
 
-            for (Thread thread : currentThreads) {
-                if (thread == null) {
-                    break;
-                }
-                if (thread == timerThread) {
-                    continue;
+            if (timeline) {
+                long tickMicros = originMicros + (tickStartNanos - originNanos) / 1000;
+                tickMicros = Math.max(tickMicros, lastTickMicros);
+                lastTickMicros = tickMicros;
+                for (Shard shard : shards) {
+                    shard.tickMicros = tickMicros;
                 }
+            }
 
-                StackTraceElement[] stackFrames = threadSampler.getStackTrace(thread);
-                if (stackFrames == null) {
-                    continue;
-                }
-                recordStackTrace(thread, stackFrames);
+            int threadCount = currentThreadCount;
+            if (shards.length == 1) {
+                shards[0].from = 0;
+                shards[0].to = threadCount;
+                shards[0].call();
+            } else {
+                captureSharded(threadCount);
+            }
+            if (topStacks != null || callTree != null) {
+                drainFullShards();
+            }
+            if (heapMonitor != null && tickStartNanos - nextHeapSummaryNanos >= 0) {
+                heapSummaries.add(heapMonitor.summarize(System.currentTimeMillis()));
+                nextHeapSummaryNanos = tickStartNanos + heapSummaryNanos;
+            }
+            long tickNanos = System.nanoTime() - tickStartNanos;
+            recordTick(tickNanos);
+            if (rateController != null) {
+                // capture workers run in parallel, so count each as
+                // busy for the whole tick
+                scheduler.setInterval(rateController.tick(tickNanos * shards.length));
             }
         }
 
         /**
-         * Record a new stack trace. The thread should have been
-         * previously registered with addStartThread.
+         * Folds the statistics of the tick into {@link #stats}
+         * without allocating.
          */
-        private void recordStackTrace(Thread thread, StackTraceElement[] stackFrames) {
-            Integer threadId = threadIds.get(thread);
-            if (threadId == null) {
-                throw new IllegalArgumentException("Unknown thread " + thread);
+        private void recordTick(long tickNanos) {
+            synchronized (stats) {
+                stats.tickNanos.record(tickNanos);
+                int capturedThreads = 0;
+                for (Shard shard : shards) {
+                    stats.maxPendingStacks = Math.max(stats.maxPendingStacks,
+                                                      shard.stackTraces.size());
+                    capturedThreads += shard.capturedThreads;
+                    shard.capturedThreads = 0;
+                    stats.threadNanos.add(shard.threadNanos);
+                    shard.threadNanos.clear();
+                }
+                stats.threadsPerTick.record(capturedThreads);
             }
-            mutableStackTrace.threadId = threadId;
-            mutableStackTrace.stackFrames = stackFrames;
+        }
 
-            int[] countCell = stackTraces.get(mutableStackTrace);
-            if (countCell == null) {
-                countCell = new int[1];
-                // cloned because the ThreadSampler may reuse the array
-                StackTraceElement[] stackFramesCopy = stackFrames.clone();
-                HprofData.StackTrace stackTrace
-                        = new HprofData.StackTrace(nextStackTraceId++, threadId, stackFramesCopy);
-                hprofData.addStackTrace(stackTrace, countCell);
+        /**
+         * Keeps memory bounded when using {@link
+         * Aggregation#TOP_STACKS} or {@link Aggregation#CALL_TREE} by
+         * draining the shards into {@link #topStacks} or {@link
+         * #callTree} once any of them holds more than {@link
+         * #maxStacks} stacks, without waiting for a merge.
+         */
+        private void drainFullShards() {
+            boolean full = false;
+            for (Shard shard : shards) {
+                full |= shard.stackTraces.size() > maxStacks;
+            }
+            if (!full) {
+                return;
+            }
+            if (topStacks != null) {
+                synchronized (topStacks) {
+                    for (Shard shard : shards) {
+                        shard.drainTo(topStacks, shard.stackTraces);
+                    }
+                }
+                return;
+            }
+            synchronized (callTree) {
+                for (Shard shard : shards) {
+                    shard.drainTo(callTree, shard.stackTraces);
+                }
             }
-            countCell[0]++;
         }
 
-        private void updateThreadHistory(Thread[] oldThreads, Thread[] newThreads) {
-            // thread start/stop shouldn't happen too often and
-            // these aren't too big, so hopefully this approach
-            // won't be too slow...
-            Set<Thread> n = new HashSet<Thread>(Arrays.asList(newThreads));
-            Set<Thread> o = new HashSet<Thread>(Arrays.asList(oldThreads));
+        /**
+         * Splits the threads to be sampled into one contiguous range
+         * per shard. The first range is captured on the timer thread
+         * while the others run on the {@link #captureExecutor}.
+         */
+        private void captureSharded(int threadCount) {
+            int perShard = (threadCount + shards.length - 1) / shards.length;
+            for (int i = 0; i < shards.length; i++) {
+                shards[i].from = Math.min(i * perShard, threadCount);
+                shards[i].to = Math.min((i + 1) * perShard, threadCount);
+            }
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(shards.length - 1);
+            for (int i = 1; i < shards.length; i++) {
+                if (shards[i].from < shards[i].to) {
+                    futures.add(captureExecutor.submit(shards[i]));
+                }
+            }
+            shards[0].call();
+            for (Future<Void> future : futures) {
+                awaitCapture(future);
+            }
+        }
 
-            // added = new-old
-            Set<Thread> added = new HashSet<Thread>(n);
-            added.removeAll(o);
+        /**
+         * Waits for a capture worker to finish its shard. Waiting is
+         * uninterruptible because the next tick must not start while
+         * a worker could still be writing to its shard.
+         */
+        private void awaitCapture(Future<Void> future) {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        future.get();
+                        return;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof RuntimeException) {
+                            throw (RuntimeException) cause;
+                        }
+                        throw new RuntimeException(cause);
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
 
-            // removed = old-new
-            Set<Thread> removed = new HashSet<Thread>(o);
-            removed.removeAll(n);
+        /**
+         * Returns true for threads that belong to the profiler
+         * itself and therefore should not be sampled.
+         */
+        private boolean isProfilerThread(Thread thread) {
+            if (thread == timerThread || thread == windowThread) {
+                return true;
+            }
+            synchronized (captureThreads) {
+                return captureThreads.contains(thread);
+            }
+        }
 
-            for (Thread thread : added) {
-                if (thread == null) {
-                    continue;
+        /**
+         * Returns true if the first {@code count} threads are the
+         * current threads in the same order.
+         */
+        private boolean sameThreads(Thread[] threads, int count) {
+            if (count != currentThreadCount) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if (threads[i] != currentThreads[i]) {
+                    return false;
                 }
-                if (thread == timerThread) {
-                    continue;
+            }
+            return true;
+        }
+
+        /**
+         * Makes the first {@code count} threads the current threads,
+         * recording start events for threads seen for the first time
+         * and end events for threads no longer present. Threads are
+         * looked up by identity and stamped with a new generation, so
+         * the ended ones are exactly the previous threads with a
+         * stale stamp. Allocation only happens for new threads and
+         * when the thread arrays need to grow.
+         */
+        private void updateThreadHistory(Thread[] threads, int count) {
+            long generation = ++threadGeneration;
+            if (nextEntries.length < count) {
+                nextEntries = new ThreadEntry[Math.max(count, nextEntries.length * 2)];
+            }
+            for (int i = 0; i < count; i++) {
+                Thread thread = threads[i];
+                ThreadEntry entry = threadEntries.get(thread);
+                if (entry == null) {
+                    entry = isProfilerThread(thread)
+                            ? new ThreadEntry(thread, 0, false)
+                            : addStartThread(thread);
+                    threadEntries.put(thread, entry);
                 }
-                addStartThread(thread);
+                entry.generation = generation;
+                nextEntries[i] = entry;
             }
-            for (Thread thread : removed) {
-                if (thread == null) {
-                    continue;
+            for (int i = 0; i < currentThreadCount; i++) {
+                ThreadEntry entry = currentEntries[i];
+                if (entry.generation != generation) {
+                    // stamp it so a duplicate in the old set is only ended once
+                    entry.generation = generation;
+                    threadEntries.remove(entry.thread);
+                    addEndThread(entry);
                 }
-                if (thread == timerThread) {
-                    continue;
+            }
+
+            ThreadEntry[] entries = currentEntries;
+            currentEntries = nextEntries;
+            nextEntries = entries;
+            if (nextEntries.length < currentEntries.length) {
+                nextEntries = new ThreadEntry[currentEntries.length];
+            }
+            if (currentThreads.length < count) {
+                currentThreads = new Thread[currentEntries.length];
+            }
+            System.arraycopy(threads, 0, currentThreads, 0, count);
+            if (count < currentThreadCount) {
+                // avoid retaining pointers to threads that have ended
+                Arrays.fill(currentThreads, count, currentThreadCount, null);
+            }
+            // the scratch array is kept empty, so the tail of the new
+            // entries past count is already null
+            Arrays.fill(nextEntries, 0, currentThreadCount, null);
+            currentThreadCount = count;
+            entriesByIdStale = true;
+        }
+
+        /**
+         * Rebuilds {@link #entriesById} from the current threads.
+         */
+        private void updateEntriesById() {
+            entriesById.clear();
+            ThreadEntry[] entries = currentEntries;
+            for (int i = 0; i < currentThreadCount; i++) {
+                ThreadEntry entry = entries[i];
+                if (entry.threadId != 0 && !entry.virtual) {
+                    entriesById.put(entry.thread.getId(), entry);
                 }
-                addEndThread(thread);
             }
+            entriesByIdStale = false;
         }
 
         /**
-         * Record that a newly noticed thread.
+         * Record that a newly noticed thread, returning its entry.
          */
-        private void addStartThread(Thread thread) {
+        private ThreadEntry addStartThread(Thread thread) {
             if (thread == null) {
                 throw new NullPointerException("thread == null");
             }
-            int threadId = nextThreadId++;
-            Integer old = threadIds.put(thread, threadId);
-            if (old != null) {
-                throw new IllegalArgumentException("Thread already registered as " + old);
+            if (VirtualThreadSet.isVirtual(thread)) {
+                return addStartVirtualThread(thread);
             }
+            int threadId = nextThreadId++;
 
             String threadName = thread.getName();
             // group will become null when thread is terminated
@@ -469,22 +3050,40 @@ public final class SamplingProfiler {
             HprofData.ThreadEvent event
                     = HprofData.ThreadEvent.start(nextObjectId++, threadId,
                                                   threadName, groupName, parentGroupName);
-            hprofData.addThreadEvent(event);
+            threadEvents.add(event);
+            return new ThreadEntry(thread, threadId, false);
         }
 
         /**
-         * Record that a thread has disappeared.
+         * Record a newly noticed virtual thread under the identifier
+         * of its task, starting the task if it is new.
          */
-        private void addEndThread(Thread thread) {
-            if (thread == null) {
-                throw new NullPointerException("thread == null");
-            }
-            Integer threadId = threadIds.remove(thread);
+        private ThreadEntry addStartVirtualThread(Thread thread) {
+            String task = (threadSet instanceof VirtualThreadSet)
+                    ? ((VirtualThreadSet) threadSet).getTask(thread)
+                    : VirtualThreadSet.DEFAULT_TASK;
+            Integer threadId = taskThreadIds.get(task);
             if (threadId == null) {
-                throw new IllegalArgumentException("Unknown thread " + thread);
+                threadId = nextThreadId++;
+                taskThreadIds.put(task, threadId);
+                HprofData.ThreadEvent event
+                        = HprofData.ThreadEvent.start(nextObjectId++, threadId,
+                                                      task, VirtualThreadSet.DEFAULT_TASK, null);
+                threadEvents.add(event);
             }
-            HprofData.ThreadEvent event = HprofData.ThreadEvent.end(threadId);
-            hprofData.addThreadEvent(event);
+            return new ThreadEntry(thread, threadId, true);
+        }
+
+        /**
+         * Record that a thread has disappeared. Threads that are not
+         * sampled and the tasks of virtual threads never end.
+         */
+        private void addEndThread(ThreadEntry entry) {
+            if (entry.threadId == 0 || entry.virtual) {
+                return;
+            }
+            HprofData.ThreadEvent event = HprofData.ThreadEvent.end(entry.threadId);
+            threadEvents.add(event);
         }
     }
 }
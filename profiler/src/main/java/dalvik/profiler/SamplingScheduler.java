@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * SamplingScheduler runs a single periodic task on a dedicated
+ * daemon thread. Unlike {@code java.util.Timer} it paces ticks with
+ * {@code System.nanoTime}, supports sub-millisecond intervals and
+ * never bunches up executions: if a tick overruns one or more
+ * following deadlines, those ticks are skipped and counted as
+ * missed. Optionally each tick can be randomly displaced from its
+ * nominal deadline to avoid aliasing with periodic workloads. The
+ * displacement never accumulates, so the average rate is exact.
+ * A tick that throws a {@code RuntimeException} is counted as failed
+ * and the task keeps running at its next deadline.
+ */
+final class SamplingScheduler {
+
+    /**
+     * Remaining time under which the scheduler thread yields instead
+     * of parking, since parking is not precise enough for the last
+     * few microseconds before a deadline.
+     */
+    private static final long SPIN_NANOS = 50 * 1000;
+
+    private final Thread thread;
+
+    private final Random random = new Random();
+
+    /**
+     * The scheduled task, or null if none. Guarded by this, but
+     * volatile so that the scheduler thread can notice changes
+     * while waiting for a deadline without locking.
+     */
+    private volatile Runnable task;
+
+    /**
+     * Incremented every time a task is scheduled so the scheduler
+     * thread can tell a rescheduled task apart from the current one.
+     */
+    private volatile int generation;
+
+    private long intervalNanos;
+    private double jitter;
+    private boolean cancelled;
+
+    /**
+     * True while the scheduler thread is executing the task.
+     */
+    private boolean running;
+
+    /*
+     * Statistics for the current task, written only by the
+     * scheduler thread.
+     */
+    private volatile long ticks;
+    private volatile long missedTicks;
+    private volatile long lateTicks;
+    private volatile long failedTicks;
+
+    /**
+     * The exception thrown by the first failed tick of the current or
+     * last task, or null if none failed.
+     */
+    private volatile RuntimeException failure;
+
+    public SamplingScheduler(String name) {
+        thread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts running the task every {@code intervalNanos}
+     * nanoseconds, with the first execution as soon as possible.
+     *
+     * @param jitter The fraction of the interval, between 0 and 1,
+     * over which each tick is randomly displaced around its nominal
+     * deadline. Zero means no jitter.
+     */
+    public synchronized void schedule(Runnable task, long intervalNanos, double jitter) {
+        if (task == null) {
+            throw new NullPointerException("task == null");
+        }
+        if (intervalNanos < 1) {
+            throw new IllegalArgumentException("intervalNanos < 1");
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter out of range [0, 1]: " + jitter);
+        }
+        if (cancelled) {
+            throw new IllegalStateException("scheduler already cancelled");
+        }
+        if (this.task != null) {
+            throw new IllegalStateException("task already scheduled");
+        }
+        this.intervalNanos = intervalNanos;
+        this.jitter = jitter;
+        this.ticks = 0;
+        this.missedTicks = 0;
+        this.lateTicks = 0;
+        this.failedTicks = 0;
+        this.failure = null;
+        this.generation++;
+        this.task = task;
+        notifyAll();
+    }
+
+    /**
+     * Stops running the current task. Returns only once the task is
+     * not executing, so the caller may safely access state the task
+     * modifies.
+     */
+    public synchronized void unschedule() {
+        task = null;
+        LockSupport.unpark(thread);
+        boolean interrupted = false;
+        while (running) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Changes the interval of the current task, taking effect from
+     * its next deadline. May be called by the task itself.
+     */
+    public synchronized void setInterval(long intervalNanos) {
+        if (intervalNanos < 1) {
+            throw new IllegalArgumentException("intervalNanos < 1");
+        }
+        this.intervalNanos = intervalNanos;
+    }
+
+    /**
+     * Unschedules any task and terminates the scheduler thread after
+     * which no further task may be scheduled.
+     */
+    public synchronized void cancel() {
+        unschedule();
+        cancelled = true;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of times the current or last task has run.
+     */
+    public long getTicks() {
+        return ticks;
+    }
+
+    /**
+     * Returns the number of ticks of the current or last task that
+     * were skipped because a previous tick overran their deadline.
+     */
+    public long getMissedTicks() {
+        return missedTicks;
+    }
+
+    /**
+     * Returns the number of ticks of the current or last task that
+     * started more than a quarter of the interval after the time
+     * they were due.
+     */
+    public long getLateTicks() {
+        return lateTicks;
+    }
+
+    /**
+     * Returns the number of ticks of the current or last task that
+     * threw an exception.
+     */
+    public long getFailedTicks() {
+        return failedTicks;
+    }
+
+    /**
+     * Returns the exception thrown by the first failed tick of the
+     * current or last task, or null if no tick failed.
+     */
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns true if the specified task is scheduled and the
+     * scheduler thread is still alive to run it.
+     */
+    public boolean isScheduled(Runnable task) {
+        return task != null && this.task == task && thread.isAlive();
+    }
+
+    private void loop() {
+        while (true) {
+            Runnable current;
+            int currentGeneration;
+            long interval;
+            double currentJitter;
+            synchronized (this) {
+                while (task == null && !cancelled) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                if (cancelled) {
+                    return;
+                }
+                current = task;
+                currentGeneration = generation;
+                interval = intervalNanos;
+                currentJitter = jitter;
+            }
+            runTask(current, currentGeneration, interval, currentJitter);
+        }
+    }
+
+    /**
+     * Runs the task at a fixed rate until it is unscheduled. The rate
+     * only changes if the interval is changed with {@link
+     * #setInterval setInterval}.
+     */
+    private void runTask(Runnable current, int currentGeneration,
+                         long interval, double currentJitter) {
+        long deadline = System.nanoTime();
+        while (true) {
+            long fireAt = deadline;
+            if (currentJitter != 0) {
+                fireAt += (long) ((random.nextDouble() - 0.5) * currentJitter * interval);
+            }
+            if (!sleepUntil(fireAt, currentGeneration)) {
+                return;
+            }
+            if (System.nanoTime() - fireAt > interval / 4) {
+                lateTicks++;
+            }
+            synchronized (this) {
+                if (task == null || generation != currentGeneration) {
+                    return;
+                }
+                running = true;
+            }
+            boolean completed = false;
+            try {
+                try {
+                    current.run();
+                    ticks++;
+                } catch (RuntimeException e) {
+                    if (failedTicks++ == 0) {
+                        failure = e;
+                        System.out.println("Problem running sampling tick: " + e);
+                    }
+                }
+                completed = true;
+            } finally {
+                synchronized (this) {
+                    running = false;
+                    if (!completed) {
+                        // an Error kills the scheduler thread, so no
+                        // later tick will run the task
+                        task = null;
+                    }
+                    interval = intervalNanos;
+                    notifyAll();
+                }
+            }
+
+            deadline += interval;
+            long overrun = System.nanoTime() - deadline;
+            if (overrun >= 0) {
+                long skipped = overrun / interval + 1;
+                missedTicks += skipped;
+                deadline += skipped * interval;
+            }
+        }
+    }
+
+    /**
+     * Waits until the deadline is reached. Returns false early if the
+     * task is unscheduled or replaced in the meantime.
+     */
+    private boolean sleepUntil(long deadline, int currentGeneration) {
+        while (true) {
+            if (task == null || generation != currentGeneration) {
+                return false;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return true;
+            }
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(this, remaining - SPIN_NANOS);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+}
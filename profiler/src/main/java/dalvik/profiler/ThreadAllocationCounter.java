@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * ThreadAllocationCounter reads the number of bytes allocated by
+ * other threads using {@code
+ * com.sun.management.ThreadMXBean.getThreadAllocatedBytes}. It is a
+ * separate class so that the {@code com.sun.management} extension is
+ * only needed when allocations are sampled.
+ */
+final class ThreadAllocationCounter {
+
+    private final com.sun.management.ThreadMXBean threadMXBean;
+
+    /**
+     * @throws UnsupportedOperationException if the VM cannot measure
+     * the bytes allocated by other threads.
+     */
+    public ThreadAllocationCounter() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            throw new UnsupportedOperationException("thread allocated bytes not supported");
+        }
+        threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        if (!threadMXBean.isThreadAllocatedMemorySupported()) {
+            throw new UnsupportedOperationException("thread allocated bytes not supported");
+        }
+        if (!threadMXBean.isThreadAllocatedMemoryEnabled()) {
+            threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    /**
+     * Returns the number of bytes allocated by the specified thread
+     * since it started, or -1 if the thread is not alive.
+     */
+    public long getAllocatedBytes(Thread thread) {
+        return threadMXBean.getThreadAllocatedBytes(thread.getId());
+    }
+
+    /**
+     * Returns the ids of all live threads.
+     */
+    public long[] getAllThreadIds() {
+        return threadMXBean.getAllThreadIds();
+    }
+
+    /**
+     * Returns the number of bytes allocated by each of the specified
+     * threads since it started, or -1 for threads that are not alive.
+     */
+    public long[] getAllocatedBytes(long[] threadIds) {
+        return threadMXBean.getThreadAllocatedBytes(threadIds);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * ThreadCpuClock reads the CPU time consumed by other threads using
+ * {@code ThreadMXBean.getThreadCpuTime}. It is a separate class so
+ * that {@code java.lang.management} is only needed when samples are
+ * weighted by CPU time.
+ */
+final class ThreadCpuClock {
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    /**
+     * @throws UnsupportedOperationException if the VM cannot measure
+     * the CPU time of other threads.
+     */
+    public ThreadCpuClock() {
+        if (!threadMXBean.isThreadCpuTimeSupported()) {
+            throw new UnsupportedOperationException("thread CPU time not supported");
+        }
+        if (!threadMXBean.isThreadCpuTimeEnabled()) {
+            threadMXBean.setThreadCpuTimeEnabled(true);
+        }
+    }
+
+    /**
+     * Returns the CPU time in nanoseconds consumed by the specified
+     * thread, or -1 if the thread is not alive.
+     */
+    public long getCpuNanos(Thread thread) {
+        return threadMXBean.getThreadCpuTime(thread.getId());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * BatchThreadSampler implementation based on {@code
+ * ThreadMXBean.getThreadInfo(long[], int)}. Unlike {@code
+ * Thread.getStackTrace} the VM only walks each stack to the requested
+ * depth, and a batch of threads is sampled in one operation. The
+ * thread state reported for each thread is the one it was in when
+ * its stack was captured.
+ * <p>
+ * {@code ThreadMXBean} does not report on virtual threads, so those
+ * fall back to {@code Thread.getStackTrace} like the {@link
+ * PortableThreadSampler}.
+ */
+class ThreadMXBeanThreadSampler implements BatchThreadSampler {
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private int depth;
+
+    /**
+     * Reusable buffer of thread ids for batch requests.
+     */
+    private long[] threadIds = new long[0];
+
+    /**
+     * Sampler for live threads unknown to {@code ThreadMXBean}.
+     */
+    private final PortableThreadSampler fallback = new PortableThreadSampler();
+
+    @Override public void setDepth(int depth) {
+        this.depth = depth;
+        fallback.setDepth(depth);
+    }
+
+    @Override public StackTraceElement[] getStackTrace(Thread thread) {
+        ThreadInfo threadInfo = threadMXBean.getThreadInfo(thread.getId(), depth);
+        if (threadInfo == null && thread.isAlive()) {
+            return fallback.getStackTrace(thread);
+        }
+        return stackTrace(threadInfo);
+    }
+
+    @Override public void getStackTraces(Thread[] threads, int from, int to,
+                                         StackTraceElement[][] stackTraces,
+                                         Thread.State[] threadStates) {
+        int count = to - from;
+        if (threadIds.length != count) {
+            threadIds = new long[count];
+        }
+        for (int i = 0; i < count; i++) {
+            threadIds[i] = threads[from + i].getId();
+        }
+        ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(threadIds, depth);
+        for (int i = 0; i < count; i++) {
+            ThreadInfo threadInfo = threadInfos[i];
+            if (threadInfo == null && threads[from + i].isAlive()) {
+                Thread thread = threads[from + i];
+                threadStates[from + i] = thread.getState();
+                stackTraces[from + i] = fallback.getStackTrace(thread);
+                continue;
+            }
+            stackTraces[from + i] = stackTrace(threadInfo);
+            threadStates[from + i] = (threadInfo == null) ? null : threadInfo.getThreadState();
+        }
+    }
+
+    private static StackTraceElement[] stackTrace(ThreadInfo threadInfo) {
+        // null if the thread is no longer alive
+        if (threadInfo == null) {
+            return null;
+        }
+        StackTraceElement[] stackFrames = threadInfo.getStackTrace();
+        if (stackFrames.length == 0) {
+            return null;
+        }
+        return stackFrames;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+import java.util.Arrays;
+
+/**
+ * A Timeline is a sequence of samples in time order, each a time in
+ * microseconds and a stack trace id. Samples are not kept as objects
+ * but delta encoded into a byte array: the time since the previous
+ * sample as an unsigned variable length integer, followed by the
+ * difference from the previous stack trace id as a zig-zag encoded
+ * variable length integer. A sample taken on the same tick as its
+ * predecessor with the same stack therefore takes only two bytes.
+ * The first sample is encoded relative to time zero and id zero.
+ * <p>
+ * The same encoding is used for the samples of {@code TIMELINE}
+ * records, see {@link BinaryHprof.Tag#TIMELINE}.
+ */
+public final class Timeline {
+
+    private byte[] bytes;
+    private int byteCount;
+    private int size;
+    private long lastMicros;
+    private int lastStackTraceId;
+
+    Timeline() {
+        this.bytes = new byte[16];
+    }
+
+    /**
+     * Creates a timeline of {@code size} samples encoded in {@code
+     * bytes}, which are not copied.
+     *
+     * @throws IllegalArgumentException if the bytes are not exactly
+     * {@code size} encoded samples.
+     */
+    Timeline(byte[] bytes, int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size < 0");
+        }
+        this.bytes = bytes;
+        this.byteCount = bytes.length;
+        Cursor cursor = new Cursor();
+        for (int i = 0; i < size; i++) {
+            if (!cursor.next()) {
+                throw new IllegalArgumentException("expected " + size
+                                                   + " samples but found " + i);
+            }
+        }
+        if (cursor.offset != byteCount) {
+            throw new IllegalArgumentException("found " + (byteCount - cursor.offset)
+                                               + " bytes after " + size + " samples");
+        }
+        this.size = size;
+        this.lastMicros = cursor.timeMicros;
+        this.lastStackTraceId = cursor.stackTraceId;
+    }
+
+    /**
+     * Returns a copy of this timeline that is unaffected by later
+     * changes to this one.
+     */
+    Timeline copy() {
+        Timeline copy = new Timeline();
+        copy.bytes = Arrays.copyOf(bytes, Math.max(byteCount, 16));
+        copy.byteCount = byteCount;
+        copy.size = size;
+        copy.lastMicros = lastMicros;
+        copy.lastStackTraceId = lastStackTraceId;
+        return copy;
+    }
+
+    /**
+     * Appends a sample, which must not have been taken before the
+     * last sample appended.
+     */
+    void add(long timeMicros, int stackTraceId) {
+        long deltaMicros = timeMicros - lastMicros;
+        if (deltaMicros < 0) {
+            throw new IllegalArgumentException("sample at " + timeMicros
+                                               + " before last sample at " + lastMicros);
+        }
+        // at most 10 bytes of time delta and 5 bytes of id delta
+        if (byteCount + 15 > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(byteCount + 15, bytes.length * 2));
+        }
+        writeVarLong(deltaMicros);
+        int deltaId = stackTraceId - lastStackTraceId;
+        writeVarLong(((deltaId << 1) ^ (deltaId >> 31)) & 0xffffffffL);
+        lastMicros = timeMicros;
+        lastStackTraceId = stackTraceId;
+        size++;
+    }
+
+    private void writeVarLong(long value) {
+        while ((value & ~0x7fL) != 0) {
+            bytes[byteCount++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[byteCount++] = (byte) value;
+    }
+
+    /**
+     * Removes all samples.
+     */
+    void clear() {
+        byteCount = 0;
+        size = 0;
+        lastMicros = 0;
+        lastStackTraceId = 0;
+    }
+
+    /**
+     * Returns the number of samples.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if there are no samples.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the time of the last sample, or zero if there are no
+     * samples.
+     */
+    public long getLastMicros() {
+        return lastMicros;
+    }
+
+    /**
+     * Returns the number of bytes used to encode the samples.
+     */
+    int byteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Returns the encoded samples. The array may be longer than
+     * {@link #byteCount}.
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns a cursor positioned before the first sample.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * A Cursor decodes the samples of a timeline in order. It must
+     * not be used once samples have been added to the timeline.
+     * <pre>   {@code
+     * Timeline.Cursor cursor = timeline.cursor();
+     * while (cursor.next()) {
+     *     cursor.getTimeMicros();
+     *     cursor.getStackTraceId();
+     * }
+     * }</pre>
+     */
+    public final class Cursor {
+
+        private int offset;
+        private long timeMicros;
+        private int stackTraceId;
+
+        private Cursor() {
+        }
+
+        /**
+         * Advances to the next sample. Returns false if there are no
+         * more samples.
+         */
+        public boolean next() {
+            if (offset == byteCount) {
+                return false;
+            }
+            timeMicros += readVarLong();
+            long zigZag = readVarLong();
+            if ((zigZag & ~0xffffffffL) != 0) {
+                throw new IllegalArgumentException("stack trace id delta out of range at "
+                                                   + offset);
+            }
+            int deltaId = (int) zigZag;
+            stackTraceId += (deltaId >>> 1) ^ -(deltaId & 1);
+            return true;
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (offset == byteCount) {
+                    throw new IllegalArgumentException("truncated sample at " + offset);
+                }
+                byte b = bytes[offset++];
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("variable length integer too long at "
+                                               + offset);
+        }
+
+        /**
+         * Returns the time of the current sample in microseconds.
+         */
+        public long getTimeMicros() {
+            return timeMicros;
+        }
+
+        /**
+         * Returns the stack trace id of the current sample.
+         */
+        public int getStackTraceId() {
+            return stackTraceId;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * TopStacks keeps the most frequent stacks within a fixed number of
+ * counters using the Space-Saving algorithm of Metwally, Agrawal and
+ * El Abbadi. When a new stack arrives and all counters are in use,
+ * the counter with the smallest count is reassigned to the new stack,
+ * which inherits that count as its error. The true count of a tracked
+ * stack therefore lies between {@code count - error} and {@code
+ * count}, and any stack whose true count exceeds {@code total /
+ * capacity} is guaranteed to be tracked.
+ * <p>
+ * When exported, each tracked stack is reported with its guaranteed
+ * count, {@code count - error}. Samples of evicted stacks are folded
+ * into one {@link #OTHER_FRAME other} stack per thread, so the total
+ * number of samples per thread is preserved exactly.
+ */
+final class TopStacks {
+
+    /**
+     * The single frame of the synthetic stack that holds the samples
+     * of evicted stacks.
+     */
+    public static final StackTraceElement OTHER_FRAME
+            = new StackTraceElement("<profiler>", "other", null, -1);
+
+    private static final class Counter {
+        HprofData.StackTrace stackTrace;
+        long count;
+        long error;
+        int heapIndex;
+    }
+
+    private static final class Other {
+        HprofData.StackTrace stackTrace;
+        long count;
+    }
+
+    private final int capacity;
+
+    private final Map<HprofData.StackTrace, Counter> counters
+            = new HashMap<HprofData.StackTrace, Counter>();
+
+    /**
+     * Counters ordered as a binary min-heap on count.
+     */
+    private final Counter[] heap;
+
+    private int size;
+
+    /**
+     * Per thread samples of evicted stacks, keyed by thread id.
+     */
+    private final Map<Integer, Other> others = new HashMap<Integer, Other>();
+
+    private int nextStackTraceId;
+
+    /**
+     * @param capacity The maximum number of stacks tracked.
+     * @param firstStackTraceId The stack trace id to assign to the
+     * first stack tracked.
+     */
+    public TopStacks(int capacity, int firstStackTraceId) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity < 1");
+        }
+        this.capacity = capacity;
+        this.heap = new Counter[capacity];
+        this.nextStackTraceId = firstStackTraceId;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the next stack trace id that will be assigned.
+     */
+    public int getNextStackTraceId() {
+        return nextStackTraceId;
+    }
+
+    /**
+     * Adds {@code count} samples of the specified stack frames for the
+     * specified thread in the specified state with the specified
+     * labels, which may be null if unknown or none. The frames are
+     * retained and must not be modified by the caller.
+     */
+    public void add(int threadId, Thread.State threadState, Labels labels,
+                    StackTraceElement[] stackFrames, long count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count < 1: " + count);
+        }
+        HprofData.StackTrace key
+                = new HprofData.StackTrace(0, threadId, threadState, labels, stackFrames);
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            counter.count += count;
+            siftDown(counter.heapIndex);
+            return;
+        }
+        if (size < capacity) {
+            counter = new Counter();
+            counter.count = count;
+            counter.heapIndex = size;
+            heap[size++] = counter;
+            siftUp(counter.heapIndex);
+        } else {
+            // reassign the minimum counter to the new stack
+            counter = heap[0];
+            counters.remove(counter.stackTrace);
+            fold(counter);
+            counter.error = counter.count;
+            counter.count += count;
+            siftDown(0);
+        }
+        counter.stackTrace = new HprofData.StackTrace(nextStackTraceId++, threadId,
+                                                      threadState, labels, stackFrames);
+        counters.put(counter.stackTrace, counter);
+    }
+
+    /**
+     * Moves the guaranteed samples of an evicted counter into the
+     * other stack of its thread. The inherited error was already
+     * folded when the counter was previously reassigned.
+     */
+    private void fold(Counter counter) {
+        int threadId = counter.stackTrace.getThreadId();
+        Other other = others.get(threadId);
+        if (other == null) {
+            other = new Other();
+            other.stackTrace = new HprofData.StackTrace(nextStackTraceId++, threadId,
+                                                        new StackTraceElement[] { OTHER_FRAME });
+            others.put(threadId, other);
+        }
+        other.count += counter.count - counter.error;
+    }
+
+    /**
+     * Removes all tracked stacks and other stacks. Stack trace ids
+     * continue from where they were.
+     */
+    public void clear() {
+        counters.clear();
+        Arrays.fill(heap, 0, size, null);
+        size = 0;
+        others.clear();
+    }
+
+    /**
+     * Returns the number of stacks currently tracked.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns an upper bound on the number of samples of any tracked
+     * stack that are not included in its exported count, zero if no
+     * stack has ever been evicted.
+     */
+    public long getMaxError() {
+        long maxError = 0;
+        for (int i = 0; i < size; i++) {
+            maxError = Math.max(maxError, heap[i].error);
+        }
+        return maxError;
+    }
+
+    /**
+     * Adds the tracked stacks with their guaranteed counts and the
+     * per thread other stacks to {@code hprofData}, and records the
+     * error bound in it.
+     */
+    public void exportTo(HprofData hprofData) {
+        for (int i = 0; i < size; i++) {
+            Counter counter = heap[i];
+            long guaranteed = counter.count - counter.error;
+            if (guaranteed > 0) {
+                hprofData.addStackTrace(counter.stackTrace, new long[] { guaranteed });
+            }
+        }
+        for (Other other : others.values()) {
+            if (other.count > 0) {
+                hprofData.addStackTrace(other.stackTrace, new long[] { other.count });
+            }
+        }
+        hprofData.setMaxCountError(getMaxError());
+    }
+
+    private void siftUp(int index) {
+        Counter counter = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (heap[parent].count <= counter.count) {
+                break;
+            }
+            heap[index] = heap[parent];
+            heap[index].heapIndex = index;
+            index = parent;
+        }
+        heap[index] = counter;
+        counter.heapIndex = index;
+    }
+
+    private void siftDown(int index) {
+        Counter counter = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+                child++;
+            }
+            if (counter.count <= heap[child].count) {
+                break;
+            }
+            heap[index] = heap[child];
+            heap[index].heapIndex = index;
+            index = child;
+        }
+        heap[index] = counter;
+        counter.heapIndex = index;
+    }
+}
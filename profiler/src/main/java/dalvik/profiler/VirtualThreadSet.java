@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.profiler;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A ThreadSet for programs that run tasks on virtual threads.
+ * Virtual threads do not belong to any enumerable {@code
+ * ThreadGroup}, so they have to be registered to be sampled, which
+ * is most easily done by creating them with a factory returned by
+ * {@link #wrap(ThreadFactory, String) wrap}. The set contains the
+ * platform threads of another ThreadSet, which should include the
+ * carrier threads, plus the registered virtual threads that are
+ * currently runnable, that is mounted or about to be. Parked virtual
+ * threads are left out since they are not running any code.
+ * <p>
+ * Each virtual thread is registered with the name of the logical
+ * task it performs. The {@link SamplingProfiler} aggregates the
+ * samples of all virtual threads of a task as a single thread named
+ * after the task, so the thread history does not grow with every
+ * short lived virtual thread.
+ * <p>
+ * Virtual threads are detected with reflection so that this class
+ * also loads on VMs without them, where no thread can be registered.
+ */
+public final class VirtualThreadSet implements SamplingProfiler.ThreadSet {
+
+    /**
+     * The task of virtual threads not registered with this set.
+     */
+    public static final String DEFAULT_TASK = "virtual";
+
+    private static final Method IS_VIRTUAL = findMethod(Thread.class, "isVirtual");
+
+    private final SamplingProfiler.ThreadSet platformThreads;
+
+    /**
+     * Registered virtual threads and their task names.
+     */
+    private final Map<Thread, String> tasks = new ConcurrentHashMap<Thread, String>();
+
+    private Thread[] threads = new Thread[0];
+    private int lastThread;
+
+    /**
+     * @param platformThreads The platform threads to sample, which
+     * should include the carrier threads of the virtual threads.
+     */
+    public VirtualThreadSet(SamplingProfiler.ThreadSet platformThreads) {
+        if (platformThreads == null) {
+            throw new NullPointerException("platformThreads == null");
+        }
+        this.platformThreads = platformThreads;
+    }
+
+    /**
+     * Returns true if the VM supports virtual threads.
+     */
+    public static boolean isSupported() {
+        return IS_VIRTUAL != null;
+    }
+
+    /**
+     * Returns true if the thread is a virtual thread.
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns a factory creating unstarted virtual threads, like
+     * {@code Thread.ofVirtual().factory()}.
+     *
+     * @throws UnsupportedOperationException if the VM does not
+     * support virtual threads.
+     */
+    public static ThreadFactory newVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            // the builder's class is internal, so call through its interface
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("virtual threads not supported", e);
+        }
+    }
+
+    /**
+     * Registers a virtual thread performing the specified task.
+     */
+    public void register(Thread thread, String task) {
+        if (thread == null) {
+            throw new NullPointerException("thread == null");
+        }
+        if (task == null) {
+            throw new NullPointerException("task == null");
+        }
+        if (!isVirtual(thread)) {
+            throw new IllegalArgumentException("not a virtual thread: " + thread);
+        }
+        tasks.put(thread, task);
+    }
+
+    /**
+     * Unregisters a virtual thread.
+     */
+    public void unregister(Thread thread) {
+        tasks.remove(thread);
+    }
+
+    /**
+     * Returns the task a virtual thread was registered with, or
+     * {@link #DEFAULT_TASK} if it is not registered.
+     */
+    public String getTask(Thread thread) {
+        String task = tasks.get(thread);
+        return (task == null) ? DEFAULT_TASK : task;
+    }
+
+    /**
+     * Returns a runnable that registers the virtual thread running
+     * it for the duration of {@code runnable}.
+     */
+    public Runnable wrap(final Runnable runnable, final String task) {
+        if (runnable == null) {
+            throw new NullPointerException("runnable == null");
+        }
+        if (task == null) {
+            throw new NullPointerException("task == null");
+        }
+        return new Runnable() {
+            public void run() {
+                Thread thread = Thread.currentThread();
+                register(thread, task);
+                try {
+                    runnable.run();
+                } finally {
+                    unregister(thread);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a factory creating threads with the specified factory
+     * that are registered while they run, for example to pass to
+     * {@code Executors.newThreadPerTaskExecutor}.
+     */
+    public ThreadFactory wrap(final ThreadFactory threadFactory, final String task) {
+        if (threadFactory == null) {
+            throw new NullPointerException("threadFactory == null");
+        }
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                return threadFactory.newThread(wrap(runnable, task));
+            }
+        };
+    }
+
+    public Thread[] threads() {
+        Thread[] platform = platformThreads.threads();
+        int platformCount = 0;
+        while (platformCount < platform.length && platform[platformCount] != null) {
+            platformCount++;
+        }
+        // leave room for threads registered while copying
+        int capacity = platformCount + tasks.size() + 1;
+        if (threads.length < capacity) {
+            threads = new Thread[capacity * 2];
+            lastThread = 0;
+        }
+        System.arraycopy(platform, 0, threads, 0, platformCount);
+        int threadCount = platformCount;
+        for (Thread thread : tasks.keySet()) {
+            if (threadCount == threads.length - 1) {
+                break;
+            }
+            if (thread.getState() == Thread.State.RUNNABLE) {
+                threads[threadCount++] = thread;
+            }
+        }
+        if (threadCount < lastThread) {
+            // avoid retaining pointers to threads that have ended
+            Arrays.fill(threads, threadCount, lastThread, null);
+        }
+        lastThread = threadCount;
+        return threads;
+    }
+
+    private static Method findMethod(Class<?> c, String name) {
+        try {
+            return c.getMethod(name);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -23,22 +23,32 @@ import dalvik.profiler.HprofData.Sample;
 import dalvik.profiler.HprofData.StackTrace;
 import dalvik.profiler.HprofData.ThreadEvent;
 import dalvik.profiler.HprofData;
+import dalvik.profiler.HprofDiff;
+import dalvik.profiler.Labels;
 import dalvik.profiler.SamplingProfiler.ThreadSet;
+import dalvik.profiler.Timeline;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.security.KeyPairGenerator;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 import javax.crypto.spec.DHParameterSpec;
 import junit.framework.TestCase;
 
@@ -58,6 +68,179 @@ public class SamplingProfilerTest extends TestCase {
         test_HprofData(profiler.getHprofData(), true);
     }
 
+    /**
+     * Run the SamplingProfiler with several capture workers over a
+     * dynamic thread set, then assert that the merged shards look
+     * correct and that the profiler did not sample its own threads.
+     */
+    public void test_SamplingProfiler_captureWorkers() throws Exception {
+        ThreadGroup threadGroup = Thread.currentThread().getThreadGroup();
+        ThreadSet threadSet = SamplingProfiler.newThreadGroupTheadSet(threadGroup);
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        profiler.setCaptureWorkers(3);
+        assertEquals(3, profiler.getCaptureWorkers());
+        profiler.start(10);
+        try {
+            profiler.setCaptureWorkers(2);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        toBeMeasured();
+        profiler.stop();
+        profiler.shutdown();
+        HprofData hprofData = profiler.getHprofData();
+        assertFalse(hprofData.getSamples().isEmpty());
+        for (ThreadEvent event : hprofData.getThreadHistory()) {
+            if (event.threadName != null) {
+                assertFalse(event.threadName, event.threadName.startsWith("SamplingProfiler"));
+            }
+        }
+        test_HprofData(hprofData, true);
+    }
+
+    /**
+     * Sample at a sub-millisecond interval with jitter and make sure
+     * the tick accounting is recorded.
+     */
+    public void test_SamplingProfiler_microsecondInterval() throws Exception {
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(Thread.currentThread());
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        profiler.setJitter(0.5);
+        long startNanos = System.nanoTime();
+        profiler.start(500, TimeUnit.MICROSECONDS);
+        toBeMeasured();
+        profiler.stop();
+        long elapsedNanos = System.nanoTime() - startNanos;
+        profiler.shutdown();
+        HprofData hprofData = profiler.getHprofData();
+        assertEquals(500, hprofData.getIntervalMicros());
+        assertTrue(hprofData.getTicks() > 0);
+        // taken and missed ticks together account for every deadline
+        // that passed, since jitter never accumulates
+        long deadlines = elapsedNanos / TimeUnit.MICROSECONDS.toNanos(500);
+        long accounted = hprofData.getTicks() + hprofData.getMissedTicks();
+        assertTrue(accounted + " of " + deadlines, accounted <= deadlines + 2);
+        assertTrue(accounted + " of " + deadlines, accounted >= deadlines / 2);
+        test_HprofData(hprofData, true);
+        try {
+            profiler.start(100);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void test_SamplingProfiler_failedTick() throws Exception {
+        final Thread[] threads = new Thread[] { Thread.currentThread() };
+        ThreadSet threadSet = new ThreadSet() {
+            private boolean failed;
+            public Thread[] threads() {
+                if (!failed) {
+                    failed = true;
+                    throw new IllegalStateException("failing once");
+                }
+                return threads;
+            }
+        };
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        profiler.start(1, TimeUnit.MILLISECONDS);
+        long deadline = System.currentTimeMillis() + 10000;
+        HprofData snapshot = profiler.snapshot();
+        while (snapshot.getSamples().isEmpty() && System.currentTimeMillis() < deadline) {
+            toBeMeasured();
+            snapshot = profiler.snapshot();
+        }
+        assertFalse(snapshot.getSamples().isEmpty());
+        ProfilerStats stats = profiler.getStats();
+        assertEquals(1, stats.getFailedTicks());
+        assertEquals("failing once", stats.getFailure().getMessage());
+        assertTrue(stats.getTicks() > 0);
+        profiler.stop();
+        assertEquals(1, profiler.getStats().getFailedTicks());
+        profiler.shutdown();
+    }
+
+    public void test_SamplingProfiler_badInterval() throws Exception {
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(Thread.currentThread());
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        try {
+            profiler.start(999, TimeUnit.NANOSECONDS);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            profiler.setJitter(1.5);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        profiler.shutdown();
+    }
+
+    /**
+     * Take snapshots while sampling and make sure they are consistent
+     * and not affected by further sampling.
+     */
+    public void test_SamplingProfiler_snapshot() throws Exception {
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(Thread.currentThread());
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        profiler.start(1);
+        long deadline = System.currentTimeMillis() + 10000;
+        HprofData first;
+        do {
+            toBeMeasured();
+            first = profiler.snapshot();
+        } while (first.getSamples().isEmpty() && System.currentTimeMillis() < deadline);
+        Set<Sample> firstSamples = first.getSamples();
+        assertFalse(firstSamples.isEmpty());
+        test_HprofData(first, true);
+        try {
+            profiler.getHprofData();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        HprofData second;
+        do {
+            toBeMeasured();
+            second = profiler.snapshot();
+        } while (totalCount(second) == totalCount(first)
+                 && System.currentTimeMillis() < deadline);
+        assertEquals(firstSamples, first.getSamples());
+        assertTrue(totalCount(second) > totalCount(first));
+        test_HprofData(second, true);
+
+        profiler.stop();
+        profiler.shutdown();
+        HprofData last = profiler.getHprofData();
+        assertTrue(totalCount(last) >= totalCount(second));
+        assertEquals(totalCount(last), totalCount(profiler.snapshot()));
+        test_HprofData(last, true);
+    }
+
+    public void test_SamplingProfiler_snapshotSlowInterval() throws Exception {
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(Thread.currentThread());
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        // only the immediate first tick runs during the test
+        profiler.start(60, TimeUnit.SECONDS);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (profiler.getStats().getTicks() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        long startMillis = System.currentTimeMillis();
+        HprofData snapshot = profiler.snapshot();
+        assertTrue(System.currentTimeMillis() - startMillis < 10000);
+        assertEquals(1, totalCount(snapshot));
+        profiler.stop();
+        profiler.shutdown();
+    }
+
+    private static long totalCount(HprofData hprofData) {
+        long total = 0;
+        for (Sample sample : hprofData.getSamples()) {
+            total += sample.count;
+        }
+        return total;
+    }
+
     private static final String P_STR =
             "9494fec095f3b85ee286542b3836fc81a5dd0a0349b4c239dd38744d488cf8e3"
             + "1db8bcb7d33b41abb9e5a33cca9144b1cef332c94bf0573bf047a3aca98cdf3b";
@@ -80,6 +263,1576 @@ public class SamplingProfilerTest extends TestCase {
         long end = System.currentTimeMillis();
     }
 
+    public void test_FrameDictionary() throws Exception {
+        FrameDictionary frameDictionary = new FrameDictionary();
+        StackTraceElement[] stackFrames = new Throwable().getStackTrace();
+        int[] frameIds = new int[stackFrames.length];
+        for (int i = 0; i < stackFrames.length; i++) {
+            frameIds[i] = frameDictionary.intern(stackFrames[i]);
+            assertSame(stackFrames[i], frameDictionary.getFrame(frameIds[i]));
+        }
+        // equal frames from a new stack map to the same ids
+        StackTraceElement[] again = new Throwable().getStackTrace();
+        for (int i = 1; i < again.length; i++) {
+            assertEquals(frameIds[i], frameDictionary.intern(again[i]));
+        }
+        assertEquals(stackFrames.length, frameDictionary.size());
+
+        FrameDictionary.Stack stack = new FrameDictionary.Stack();
+        stack.set(7, null, null, frameIds, frameIds.length);
+        FrameDictionary.Stack copy = new FrameDictionary.Stack(stack);
+        assertEquals(stack, copy);
+        assertEquals(stack.hashCode(), copy.hashCode());
+        assertTrue(Arrays.equals(stackFrames, frameDictionary.decode(copy)));
+
+        FrameDictionary.Stack otherThread = new FrameDictionary.Stack();
+        otherThread.set(8, null, null, frameIds, frameIds.length);
+        assertFalse(stack.equals(otherThread));
+        FrameDictionary.Stack shorter = new FrameDictionary.Stack();
+        shorter.set(7, null, null, frameIds, frameIds.length - 1);
+        assertFalse(stack.equals(shorter));
+        FrameDictionary.Stack waiting = new FrameDictionary.Stack();
+        waiting.set(7, Thread.State.WAITING, null, frameIds, frameIds.length);
+        assertFalse(stack.equals(waiting));
+    }
+
+    public void test_CallTree() throws Exception {
+        StackTraceElement root = new StackTraceElement("Main", "main", "Main.java", 1);
+        StackTraceElement a = new StackTraceElement("A", "a", "A.java", 2);
+        StackTraceElement b = new StackTraceElement("B", "b", "B.java", 3);
+        StackTraceElement c = new StackTraceElement("C", "c", "C.java", 4);
+        CallTree callTree = new CallTree();
+        assertTrue(callTree.isEmpty());
+        callTree.add(1, null, null, new StackTraceElement[] { b, a, root }, 3, 5);
+        callTree.add(1, null, null, new StackTraceElement[] { c, a, root }, 3, 2);
+        callTree.add(1, null, null, new StackTraceElement[] { a, root }, 2, 1);
+        callTree.add(2, null, null, new StackTraceElement[] { root }, 1, 4);
+        assertFalse(callTree.isEmpty());
+        // root, a, b and c for thread 1 share the prefix, root for thread 2
+        assertEquals(5, callTree.getNodeCount());
+
+        CallTree.Node main = callTree.getRoot(1).children()[0];
+        assertEquals(root, main.frame);
+        assertEquals(8, main.inclusiveCount);
+        assertEquals(0, main.selfCount);
+        CallTree.Node nodeA = main.children()[0];
+        assertEquals(8, nodeA.inclusiveCount);
+        assertEquals(1, nodeA.selfCount);
+
+        HprofData hprofData = new HprofData(new HashMap<StackTrace, long[]>());
+        hprofData.addThreadEvent(ThreadEvent.start(1, 1, "one", null, null));
+        hprofData.addThreadEvent(ThreadEvent.start(2, 2, "two", null, null));
+        assertEquals(105, callTree.exportTo(hprofData, 101));
+        Set<Sample> samples = hprofData.getSamples();
+        assertEquals(4, samples.size());
+        long total = 0;
+        for (Sample sample : samples) {
+            total += sample.count;
+            if (sample.count == 5) {
+                assertTrue(Arrays.equals(new StackTraceElement[] { b, a, root },
+                                         sample.stackTrace.getStackFrames()));
+            }
+        }
+        assertEquals(12, total);
+        test_HprofData(hprofData, true);
+
+        // identifiers are stable across exports
+        HprofData again = new HprofData(new HashMap<StackTrace, long[]>());
+        again.addThreadEvent(ThreadEvent.start(1, 1, "one", null, null));
+        again.addThreadEvent(ThreadEvent.start(2, 2, "two", null, null));
+        assertEquals(105, callTree.exportTo(again, 105));
+        assertEquals(samples, again.getSamples());
+    }
+
+    public void test_SamplingProfiler_callTree() throws Exception {
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(Thread.currentThread());
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        profiler.setAggregation(SamplingProfiler.Aggregation.CALL_TREE);
+        assertEquals(SamplingProfiler.Aggregation.CALL_TREE, profiler.getAggregation());
+        profiler.start(1);
+        toBeMeasured();
+        HprofData snapshot = profiler.snapshot();
+        test_HprofData(snapshot, true);
+        profiler.stop();
+        try {
+            profiler.setAggregation(SamplingProfiler.Aggregation.STACKS);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        profiler.shutdown();
+        HprofData hprofData = profiler.getHprofData();
+        assertFalse(hprofData.getSamples().isEmpty());
+        assertTrue(totalCount(hprofData) >= totalCount(snapshot));
+        test_HprofData(hprofData, true);
+    }
+
+    public void test_SamplingProfiler_callTreeMemory() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread[] threads = new Thread[12];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread("waiter-" + i) {
+                @Override public void run() {
+                    try {
+                        done.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            while (thread.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+        }
+        SamplingProfiler profiler
+                = new SamplingProfiler(12, SamplingProfiler.newArrayThreadSet(threads));
+        profiler.setAggregation(SamplingProfiler.Aggregation.CALL_TREE);
+        profiler.setMaxStacks(4);
+        profiler.start(1);
+        ProfilerStats early = awaitTicks(profiler, 100);
+        ProfilerStats late = awaitTicks(profiler, 200);
+        profiler.stop();
+        profiler.shutdown();
+        done.countDown();
+        // each tick samples 12 distinct stacks, which are drained into
+        // the tree rather than kept until the next merge
+        assertTrue(late.toString(), late.getMaxPendingStacks() <= 4);
+        assertEquals(threads.length, late.getDistinctStacks());
+        // the same stacks sampled over and over take no more memory
+        assertTrue(early.getRetainedBytes() > 0);
+        assertEquals(early.getRetainedBytes(), late.getRetainedBytes());
+        assertTrue(totalCount(profiler.getHprofData()) >= late.getTicks() * threads.length);
+    }
+
+    private static ProfilerStats awaitTicks(SamplingProfiler profiler, int ticks)
+            throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        ProfilerStats stats = profiler.getStats();
+        while (stats.getTicks() < ticks && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            stats = profiler.getStats();
+        }
+        assertTrue(stats.getTicks() >= ticks);
+        return stats;
+    }
+
+    public void test_TopStacks() throws Exception {
+        StackTraceElement[] a = { new StackTraceElement("A", "a", "A.java", 1) };
+        StackTraceElement[] b = { new StackTraceElement("B", "b", "B.java", 2) };
+        StackTraceElement[] c = { new StackTraceElement("C", "c", "C.java", 3) };
+        TopStacks topStacks = new TopStacks(2, 301);
+        topStacks.add(1, null, null, a, 5);
+        topStacks.add(1, null, null, b, 3);
+        assertEquals(0, topStacks.getMaxError());
+        // evicts b, the least frequent, and c inherits its count as error
+        topStacks.add(2, null, null, c, 1);
+        assertEquals(2, topStacks.size());
+        assertEquals(3, topStacks.getMaxError());
+        topStacks.add(1, null, null, a, 1);
+
+        HprofData hprofData = new HprofData(new HashMap<StackTrace, long[]>());
+        hprofData.addThreadEvent(ThreadEvent.start(1, 1, "one", null, null));
+        hprofData.addThreadEvent(ThreadEvent.start(2, 2, "two", null, null));
+        topStacks.exportTo(hprofData);
+        assertTrue(hprofData.isApproximate());
+        assertEquals(3, hprofData.getMaxCountError());
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (Sample sample : hprofData.getSamples()) {
+            StackTraceElement frame = sample.stackTrace.getStackFrames()[0];
+            counts.put(sample.stackTrace.getThreadId() + frame.getClassName(), sample.count);
+        }
+        assertEquals(Long.valueOf(6), counts.get("1A"));
+        assertEquals(Long.valueOf(1), counts.get("2C"));
+        assertEquals(Long.valueOf(3), counts.get("1" + TopStacks.OTHER_FRAME.getClassName()));
+        assertEquals(3, counts.size());
+        test_HprofData(hprofData, true);
+    }
+
+    public void test_SamplingProfiler_topStacks() throws Exception {
+        ThreadGroup threadGroup = Thread.currentThread().getThreadGroup();
+        ThreadSet threadSet = SamplingProfiler.newThreadGroupTheadSet(threadGroup);
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        profiler.setAggregation(SamplingProfiler.Aggregation.TOP_STACKS);
+        profiler.setMaxStacks(4);
+        assertEquals(4, profiler.getMaxStacks());
+        profiler.start(1);
+        toBeMeasured();
+        profiler.stop();
+        profiler.shutdown();
+        HprofData hprofData = profiler.getHprofData();
+        assertFalse(hprofData.getSamples().isEmpty());
+        test_HprofData(hprofData, true);
+    }
+
+    public void test_ThreadMXBeanThreadSampler() throws Exception {
+        final Object lock = new Object();
+        Thread waiting = new Thread("waiting") {
+            @Override public void run() {
+                synchronized (lock) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        };
+        Thread notStarted = new Thread("not-started");
+        waiting.start();
+        try {
+            while (waiting.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            ThreadMXBeanThreadSampler threadSampler = new ThreadMXBeanThreadSampler();
+            threadSampler.setDepth(2);
+            StackTraceElement[] stackFrames = threadSampler.getStackTrace(Thread.currentThread());
+            assertNotNull(stackFrames);
+            assertEquals(2, stackFrames.length);
+
+            Thread[] threads = { Thread.currentThread(), waiting, notStarted };
+            StackTraceElement[][] stackTraces = new StackTraceElement[3][];
+            Thread.State[] threadStates = new Thread.State[3];
+            threadSampler.getStackTraces(threads, 1, 3, stackTraces, threadStates);
+            assertNull(stackTraces[0]);
+            assertNotNull(stackTraces[1]);
+            assertEquals(Thread.State.WAITING, threadStates[1]);
+            assertTrue(stackTraces[1].length <= 2);
+            assertNull(stackTraces[2]);
+        } finally {
+            waiting.interrupt();
+            waiting.join();
+        }
+    }
+
+    public void test_JfrThreadSampler() throws Exception {
+        if (!JfrThreadSampler.isAvailable()) {
+            try {
+                new JfrThreadSampler();
+                fail();
+            } catch (UnsupportedOperationException expected) {
+            }
+        } else {
+            JfrThreadSampler threadSampler = new JfrThreadSampler();
+            try {
+                threadSampler.setDepth(2);
+                threadSampler.setPeriod(TimeUnit.MILLISECONDS.toNanos(1));
+                Thread[] threads = { Thread.currentThread() };
+                StackTraceElement[][] stackTraces = new StackTraceElement[1][];
+                Thread.State[] threadStates = new Thread.State[1];
+                long deadline = System.currentTimeMillis() + 10000;
+                while (stackTraces[0] == null && System.currentTimeMillis() < deadline) {
+                    toBeMeasured();
+                    threadSampler.getStackTraces(threads, 0, 1, stackTraces, threadStates);
+                }
+                assertNotNull(stackTraces[0]);
+                assertTrue(stackTraces[0].length <= 2);
+                assertEquals(Thread.State.RUNNABLE, threadStates[0]);
+            } finally {
+                threadSampler.close();
+            }
+            try {
+                threadSampler.getStackTrace(Thread.currentThread());
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+        }
+
+        // falls back to the default sampler where JFR is unavailable
+        System.setProperty(SamplingProfiler.THREAD_SAMPLER_PROPERTY,
+                           SamplingProfiler.JFR_THREAD_SAMPLER);
+        SamplingProfiler profiler;
+        try {
+            ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(Thread.currentThread());
+            profiler = new SamplingProfiler(12, threadSet);
+        } finally {
+            System.clearProperty(SamplingProfiler.THREAD_SAMPLER_PROPERTY);
+        }
+        profiler.start(1);
+        long deadline = System.currentTimeMillis() + 10000;
+        do {
+            toBeMeasured();
+        } while (profiler.snapshot().getSamples().isEmpty()
+                 && System.currentTimeMillis() < deadline);
+        profiler.stop();
+        profiler.shutdown();
+        HprofData hprofData = profiler.getHprofData();
+        assertFalse(hprofData.getSamples().isEmpty());
+        test_HprofData(hprofData, true);
+    }
+
+    public void test_SamplingProfiler_samplingMode() throws Exception {
+        final Object lock = new Object();
+        Thread waiting = new Thread("waiting") {
+            @Override public void run() {
+                synchronized (lock) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        };
+        waiting.start();
+        try {
+            while (waiting.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            ThreadSet threadSet
+                    = SamplingProfiler.newArrayThreadSet(Thread.currentThread(), waiting);
+            SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+            assertEquals(SamplingProfiler.SamplingMode.WALL_CLOCK, profiler.getSamplingMode());
+            profiler.start(1);
+            toBeMeasured();
+            profiler.stop();
+            assertTrue(threadStates(profiler.snapshot()).contains(Thread.State.WAITING));
+
+            profiler.setSamplingMode(SamplingProfiler.SamplingMode.ON_CPU);
+            assertEquals(SamplingProfiler.SamplingMode.ON_CPU, profiler.getSamplingMode());
+            HprofData wallClock = profiler.snapshot();
+            profiler.start(1);
+            try {
+                profiler.setSamplingMode(SamplingProfiler.SamplingMode.WALL_CLOCK);
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+            toBeMeasured();
+            profiler.stop();
+            profiler.shutdown();
+            HprofData hprofData = profiler.getHprofData();
+            // only runnable samples were added while on cpu
+            Map<StackTrace, Long> before = new HashMap<StackTrace, Long>();
+            for (Sample sample : wallClock.getSamples()) {
+                before.put(sample.stackTrace, sample.count);
+            }
+            for (Sample sample : hprofData.getSamples()) {
+                Long count = before.get(sample.stackTrace);
+                if (count == null || count != sample.count) {
+                    assertEquals(Thread.State.RUNNABLE, sample.stackTrace.getThreadState());
+                }
+            }
+            test_HprofData(hprofData, true);
+        } finally {
+            waiting.interrupt();
+            waiting.join();
+        }
+    }
+
+    private static Set<Thread.State> threadStates(HprofData hprofData) {
+        Set<Thread.State> threadStates = new HashSet<Thread.State>();
+        for (Sample sample : hprofData.getSamples()) {
+            assertNotNull(sample.stackTrace.getThreadState());
+            threadStates.add(sample.stackTrace.getThreadState());
+        }
+        return threadStates;
+    }
+
+    public void test_HprofData_threadState() throws Exception {
+        StackTraceElement frame = HprofData.threadStateFrame(Thread.State.BLOCKED);
+        assertEquals(Thread.State.BLOCKED, HprofData.threadStateOf(frame));
+        assertNull(HprofData.threadStateOf(new Throwable().getStackTrace()[0]));
+
+        HprofData hprofData = new HprofData(new HashMap<StackTrace, long[]>());
+        hprofData.addThreadEvent(ThreadEvent.start(1, 1, "one", null, null));
+        StackTraceElement[] stackFrames = new Throwable().getStackTrace();
+        StackTrace blocked = new StackTrace(101, 1, Thread.State.BLOCKED, stackFrames);
+        StackTrace unknown = new StackTrace(102, 1, stackFrames);
+        assertFalse(blocked.equals(unknown));
+        assertEquals(stackFrames.length + 1, blocked.getStackFramesWithThreadState().length);
+        assertEquals(frame, blocked.getStackFramesWithThreadState()[0]);
+        hprofData.addStackTrace(blocked, new long[] { 3 });
+        hprofData.addStackTrace(unknown, new long[] { 1 });
+        test_HprofData(hprofData, true);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsciiHprofWriter.write(hprofData, out);
+        assertTrue(out.toString().contains("\t" + frame + "\n"));
+    }
+
+    public void test_SamplingProfiler_cpuTime() throws Exception {
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(Thread.currentThread());
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        assertEquals(HprofData.CountUnit.SAMPLES, profiler.getCountUnit());
+        profiler.setCountUnit(HprofData.CountUnit.CPU_NANOS);
+        assertEquals(HprofData.CountUnit.CPU_NANOS, profiler.getCountUnit());
+        profiler.start(1);
+        long deadline = System.currentTimeMillis() + 10000;
+        do {
+            toBeMeasured();
+        } while (totalCount(profiler.snapshot()) <= TimeUnit.MILLISECONDS.toNanos(1)
+                 && System.currentTimeMillis() < deadline);
+        profiler.stop();
+        try {
+            profiler.setCountUnit(HprofData.CountUnit.SAMPLES);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        profiler.shutdown();
+        HprofData hprofData = profiler.getHprofData();
+        assertEquals(HprofData.CountUnit.CPU_NANOS, hprofData.getCountUnit());
+        // the measured computation takes far more than a millisecond of CPU
+        assertTrue(totalCount(hprofData) > TimeUnit.MILLISECONDS.toNanos(1));
+        test_HprofData(hprofData, true);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsciiHprofWriter.write(hprofData, out);
+        assertTrue(out.toString().contains("CPU TIME (ms) BEGIN"));
+    }
+
+    public void test_HprofData_wideCounts() throws Exception {
+        HprofData hprofData = new HprofData(new HashMap<StackTrace, long[]>());
+        hprofData.setCountUnit(HprofData.CountUnit.CPU_NANOS);
+        hprofData.addThreadEvent(ThreadEvent.start(1, 1, "one", null, null));
+        StackTraceElement[] stackFrames = new Throwable().getStackTrace();
+        long count = 3L * Integer.MAX_VALUE;
+        hprofData.addStackTrace(new StackTrace(101, 1, stackFrames), new long[] { count });
+        assertEquals(count, hprofData.getSamples().iterator().next().count);
+        test_HprofData(hprofData, true);
+    }
+
+    public void test_HprofData_allocSites() throws Exception {
+        HprofData hprofData = new HprofData(new HashMap<StackTrace, long[]>());
+        hprofData.setAllocIntervalBytes(1024);
+        hprofData.addThreadEvent(ThreadEvent.start(1, 1, "one", null, null));
+        StackTraceElement[] stackFrames = new Throwable().getStackTrace();
+        StackTrace sampled = new StackTrace(101, 1, stackFrames);
+        hprofData.addStackTrace(sampled, new long[] { 5 });
+        // an equal stack trace under another id shares the sample's
+        hprofData.addAllocSite(new StackTrace(102, 1, stackFrames), null,
+                               new long[] { 4096, 4 });
+        // a stack trace with allocations only, colliding with the
+        // sample's id
+        StackTraceElement[] allocFrames = Arrays.copyOfRange(stackFrames, 1,
+                                                             stackFrames.length);
+        hprofData.addAllocSite(new StackTrace(101, 1, allocFrames), "java.lang.String",
+                               new long[] { 2048, 2 });
+        try {
+            hprofData.addAllocSite(new StackTrace(103, 1, allocFrames), "java.lang.String",
+                                   new long[2]);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(1, hprofData.getSamples().size());
+        assertEquals(2, hprofData.getAllocSites().size());
+        test_HprofData(hprofData, true);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsciiHprofWriter.write(hprofData, out);
+        assertTrue(out.toString().contains("SITES BEGIN"));
+        assertTrue(out.toString().contains("java.lang.String"));
+
+        // counts too large for ALLOC_SITES
+        hprofData.addAllocSite(new StackTrace(104, 1, allocFrames), null,
+                               new long[] { 3L * Integer.MAX_VALUE, 1 });
+        test_HprofData(hprofData, true);
+    }
+
+    public void test_SamplingProfiler_allocations() throws Exception {
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(Thread.currentThread());
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        assertEquals(0, profiler.getAllocationSampling());
+        try {
+            profiler.setAllocationSampling(-1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            profiler.setAllocationSampling(64 * 1024);
+        } catch (UnsupportedOperationException e) {
+            profiler.shutdown();
+            return;
+        }
+        assertEquals(64 * 1024, profiler.getAllocationSampling());
+        profiler.start(1);
+        long end = System.currentTimeMillis() + 200;
+        List<byte[]> garbage = new ArrayList<byte[]>();
+        while (System.currentTimeMillis() < end) {
+            garbage.add(new byte[1024]);
+            if (garbage.size() == 1024) {
+                garbage.clear();
+            }
+        }
+        profiler.stop();
+        try {
+            profiler.setAllocationSampling(0);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        profiler.shutdown();
+        HprofData hprofData = profiler.getHprofData();
+        assertEquals(64 * 1024, hprofData.getAllocIntervalBytes());
+        assertTrue((hprofData.getFlags() & BinaryHprof.ControlSettings.ALLOC_TRACES.bitmask) != 0);
+        Set<HprofData.AllocSite> sites = hprofData.getAllocSites();
+        assertFalse(sites.isEmpty());
+        for (HprofData.AllocSite site : sites) {
+            assertEquals(site.instances * 64 * 1024, site.bytes);
+            assertNull(site.className);
+        }
+        test_HprofData(hprofData, true);
+    }
+
+    public void test_HprofData_heapSummaries() throws Exception {
+        HprofData hprofData = new HprofData(new HashMap<StackTrace, long[]>());
+        long startMillis = 1000L * 1000 * 1000 * 1000;
+        hprofData.setStartMillis(startMillis);
+        long minute = TimeUnit.MINUTES.toMillis(1);
+        // before the start time, as after a restart
+        hprofData.addHeapSummary(new HprofData.HeapSummary(startMillis - 120 * minute,
+                                                           1, 0, 1, 0));
+        hprofData.addHeapSummary(new HprofData.HeapSummary(startMillis - 1000, 1, 0, 2, 0));
+        hprofData.addHeapSummary(new HprofData.HeapSummary(startMillis, 1 << 20, 0, 3 << 20, 0));
+        // 32-bit record times wrap around after about 71 minutes
+        for (int i = 1; i <= 5; i++) {
+            hprofData.addHeapSummary(new HprofData.HeapSummary(startMillis + i * 30 * minute,
+                                                               i << 20, 0, (i + 3) << 20, 0));
+        }
+        // too many live bytes for HEAP_SUMMARY
+        hprofData.addHeapSummary(new HprofData.HeapSummary(startMillis + 151 * minute,
+                                                           5L << 32, 1, 6L << 32, 1));
+        // too far apart to extend the 32-bit record times
+        hprofData.addHeapSummary(new HprofData.HeapSummary(startMillis + 211 * minute,
+                                                           1, 1, 7L << 32, 1));
+        hprofData.addHeapSummary(new HprofData.HeapSummary(startMillis + 311 * minute,
+                                                           1, 1, 8L << 32, 1));
+        try {
+            hprofData.addHeapSummary(new HprofData.HeapSummary(startMillis, 0, 0, 0, 0));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(11, hprofData.getHeapSummaries().size());
+        test_HprofData(hprofData, true);
+    }
+
+    public void test_SamplingProfiler_heapSummaries() throws Exception {
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(Thread.currentThread());
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        try {
+            profiler.setHeapSummaryInterval(-1, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        profiler.setHeapSummaryInterval(20, TimeUnit.MILLISECONDS);
+        profiler.start(1);
+        Thread.sleep(100);
+        try {
+            profiler.setHeapSummaryInterval(0, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        profiler.stop();
+        profiler.shutdown();
+        HprofData hprofData = profiler.getHprofData();
+        List<HprofData.HeapSummary> heapSummaries = hprofData.getHeapSummaries();
+        assertTrue(heapSummaries.size() > 1);
+        HprofData.HeapSummary previous = null;
+        for (HprofData.HeapSummary heapSummary : heapSummaries) {
+            assertTrue(heapSummary.liveBytes > 0);
+            if (previous != null) {
+                assertTrue(heapSummary.timeMillis >= previous.timeMillis);
+                assertTrue(heapSummary.allocatedBytes >= previous.allocatedBytes);
+            }
+            previous = heapSummary;
+        }
+        test_HprofData(hprofData, true);
+    }
+
+    public void test_HprofData_lockSites() throws Exception {
+        HprofData hprofData = new HprofData(new HashMap<StackTrace, long[]>());
+        hprofData.addThreadEvent(ThreadEvent.start(1, 1, "waiter", null, null));
+        hprofData.addThreadEvent(ThreadEvent.start(2, 2, "owner", null, null));
+        StackTraceElement[] stackFrames = new Throwable().getStackTrace();
+        StackTrace waiter = new StackTrace(101, 1, Thread.State.BLOCKED, stackFrames);
+        hprofData.addStackTrace(waiter, new long[] { 7 });
+        StackTrace owner = new StackTrace(101, 2, stackFrames);
+        hprofData.addLockSite("java.lang.Object@1", waiter, owner, new long[] { 5, 40 });
+        hprofData.addLockSite("java.lang.Object@1", waiter, null, new long[] { 2, 0 });
+        hprofData.addLockSite("java.lang.Object@2", new StackTrace(0, 1, stackFrames), null,
+                              new long[] { 1, 0 });
+        try {
+            hprofData.addLockSite("java.lang.Object@1", waiter, null, new long[2]);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            hprofData.addLockSite("java.lang.Object@1", waiter,
+                                  new StackTrace(102, 3, stackFrames), new long[2]);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(3, hprofData.getLockSites().size());
+        test_HprofData(hprofData, true);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsciiHprofWriter.write(hprofData, out);
+        String ascii = out.toString();
+        assertTrue(ascii.contains("LOCKS BEGIN (total = 8)"));
+        assertTrue(ascii.indexOf("java.lang.Object@1") < ascii.indexOf("java.lang.Object@2"));
+        // the owner's trace is renumbered since its id is taken
+        assertTrue(ascii.contains("waiter 101 owner 102"));
+    }
+
+    public void test_SamplingProfiler_contention() throws Exception {
+        final Object lock = new Object();
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread owner = new Thread(new Runnable() {
+            public void run() {
+                synchronized (lock) {
+                    locked.countDown();
+                    holdLock(done);
+                }
+            }
+        }, "owner");
+        Runnable waiting = new Runnable() {
+            public void run() {
+                synchronized (lock) {
+                }
+            }
+        };
+        Thread waiter = new Thread(waiting, "waiter");
+        Thread otherWaiter = new Thread(waiting, "other-waiter");
+        owner.start();
+        locked.await();
+        waiter.start();
+        otherWaiter.start();
+
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(owner, waiter, otherWaiter);
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        profiler.setSamplingMode(SamplingProfiler.SamplingMode.CONTENTION);
+        try {
+            profiler.setCountUnit(HprofData.CountUnit.CPU_NANOS);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        profiler.setContentionTiming(true);
+        profiler.start(1);
+        Thread.sleep(100);
+        profiler.stop();
+        done.countDown();
+        owner.join();
+        waiter.join();
+        otherWaiter.join();
+        profiler.shutdown();
+
+        HprofData hprofData = profiler.getHprofData();
+        Set<HprofData.LockSite> lockSites = hprofData.getLockSites();
+        assertFalse(lockSites.isEmpty());
+        // both waiters of the owner share its stack and the lock
+        Set<StackTrace> ownerStackTraces = new HashSet<StackTrace>();
+        Set<String> lockNames = new HashSet<String>();
+        for (HprofData.LockSite site : lockSites) {
+            ownerStackTraces.add(site.ownerStackTrace);
+            lockNames.add(site.lockName);
+            assertEquals(Thread.State.BLOCKED, site.waiterStackTrace.getThreadState());
+            assertTrue(site.lockName.startsWith("java.lang.Object@"));
+            assertNotNull(site.ownerStackTrace);
+            boolean holding = false;
+            for (StackTraceElement frame : site.ownerStackTrace.getStackFrames()) {
+                holding |= frame.getMethodName().equals("holdLock");
+            }
+            assertTrue(holding);
+        }
+        assertEquals(1, ownerStackTraces.size());
+        assertEquals(1, lockNames.size());
+        // only the waiters are contending
+        for (Sample sample : hprofData.getSamples()) {
+            assertEquals(Thread.State.BLOCKED, sample.stackTrace.getThreadState());
+        }
+        test_HprofData(hprofData, true);
+    }
+
+    private static void holdLock(CountDownLatch done) {
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void test_HprofData_timeline() throws Exception {
+        HprofData hprofData = new HprofData(new HashMap<StackTrace, long[]>());
+        hprofData.setStartMillis(1000000);
+        hprofData.addThreadEvent(ThreadEvent.start(1, 1, "main", null, null));
+        hprofData.addThreadEvent(ThreadEvent.start(2, 2, "worker", null, null));
+        StackTraceElement[] stackFrames = new Throwable().getStackTrace();
+        StackTrace first = new StackTrace(101, 1, stackFrames);
+        StackTrace second = new StackTrace(102, 1, Thread.State.BLOCKED, stackFrames);
+        // same id as first, so one of them is renumbered when written
+        StackTrace worker = new StackTrace(101, 2, stackFrames);
+        hprofData.addStackTrace(first, new long[] { 3 });
+        hprofData.addStackTrace(second, new long[] { 1 });
+        hprofData.addStackTrace(worker, new long[] { 1 });
+        long startMicros = hprofData.getStartMillis() * 1000;
+        hprofData.addTimelineSample(1, startMicros, 101);
+        hprofData.addTimelineSample(1, startMicros + 5, 101);
+        hprofData.addTimelineSample(1, startMicros + 5, 102);
+        // in a later record
+        hprofData.addTimelineSample(1, startMicros + 90 * 1000 * 1000, 101);
+        // before the start time
+        hprofData.addTimelineSample(2, startMicros - 7, 101);
+        try {
+            hprofData.addTimelineSample(1, startMicros + 4, 101);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            hprofData.addTimelineSample(3, startMicros, 101);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(2, hprofData.getTimelines().size());
+        Timeline timeline = hprofData.getTimelines().get(1);
+        assertEquals(4, timeline.size());
+        assertEquals(startMicros + 90 * 1000 * 1000, timeline.getLastMicros());
+        Timeline.Cursor cursor = timeline.cursor();
+        assertTrue(cursor.next());
+        assertEquals(startMicros, cursor.getTimeMicros());
+        assertEquals(101, cursor.getStackTraceId());
+        assertTrue(cursor.next());
+        assertTrue(cursor.next());
+        assertEquals(startMicros + 5, cursor.getTimeMicros());
+        assertEquals(102, cursor.getStackTraceId());
+        assertTrue(cursor.next());
+        assertFalse(cursor.next());
+        test_HprofData(hprofData, true);
+
+        // a copy is unaffected by later samples
+        HprofData copy = hprofData.copy();
+        hprofData.addTimelineSample(2, startMicros, 101);
+        assertEquals(1, copy.getTimelines().get(2).size());
+        assertEquals(2, hprofData.getTimelines().get(2).size());
+    }
+
+    public void test_HprofData_timelineGap() throws Exception {
+        HprofData hprofData = new HprofData(new HashMap<StackTrace, long[]>());
+        hprofData.setStartMillis(1000L * 1000 * 1000 * 1000);
+        hprofData.addThreadEvent(ThreadEvent.start(1, 1, "main", null, null));
+        StackTrace stackTrace = new StackTrace(101, 1, new Throwable().getStackTrace());
+        hprofData.addStackTrace(stackTrace, new long[] { 4 });
+        // too far apart to extend the 32-bit record times
+        long startMicros = hprofData.getStartMillis() * 1000;
+        long hourMicros = TimeUnit.HOURS.toMicros(1);
+        hprofData.addTimelineSample(1, startMicros - 2 * hourMicros, 101);
+        hprofData.addTimelineSample(1, startMicros, 101);
+        hprofData.addTimelineSample(1, startMicros + hourMicros, 101);
+        hprofData.addTimelineSample(1, startMicros + 3 * hourMicros, 101);
+        assertEquals(4, hprofData.getTimelines().get(1).size());
+        test_HprofData(hprofData, true);
+    }
+
+    public void test_SamplingProfiler_timeline() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread sleeper = new Thread("sleeper") {
+            @Override public void run() {
+                try {
+                    done.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        sleeper.start();
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(Thread.currentThread(),
+                                                                 sleeper);
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        profiler.setAggregation(SamplingProfiler.Aggregation.CALL_TREE);
+        try {
+            profiler.setTimeline(true);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        profiler.setAggregation(SamplingProfiler.Aggregation.STACKS);
+        profiler.setTimeline(true);
+        assertTrue(profiler.getTimeline());
+        try {
+            profiler.setAggregation(SamplingProfiler.Aggregation.TOP_STACKS);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        profiler.setCaptureWorkers(2);
+        long startMicros = System.currentTimeMillis() * 1000;
+        profiler.start(1);
+        toBeMeasured();
+        profiler.snapshot();
+        toBeMeasured();
+        profiler.stop();
+        done.countDown();
+        sleeper.join();
+        long endMicros = System.currentTimeMillis() * 1000;
+        profiler.shutdown();
+        HprofData hprofData = profiler.getHprofData();
+
+        // every sample is in the timeline of its thread
+        Map<Integer, Timeline> timelines = hprofData.getTimelines();
+        assertEquals(2, timelines.size());
+        Map<Integer, Long> counts = new HashMap<Integer, Long>();
+        for (Sample sample : hprofData.getSamples()) {
+            int threadId = sample.stackTrace.getThreadId();
+            Long count = counts.get(threadId);
+            counts.put(threadId, (count == null ? 0 : count) + sample.count);
+        }
+        for (Map.Entry<Integer, Timeline> e : timelines.entrySet()) {
+            Timeline timeline = e.getValue();
+            assertEquals(counts.get(e.getKey()).longValue(), timeline.size());
+            long previous = startMicros - 1000;
+            Timeline.Cursor cursor = timeline.cursor();
+            while (cursor.next()) {
+                assertTrue(cursor.getTimeMicros() >= previous);
+                assertTrue(cursor.getTimeMicros() <= endMicros + 1000);
+                previous = cursor.getTimeMicros();
+            }
+        }
+        test_HprofData(hprofData, true);
+    }
+
+    /**
+     * Returns the timelines of the data with each sample decoded into
+     * its time and stack trace, since stack trace ids may change when
+     * the data is written.
+     */
+    private static Map<Integer, List<Object>> decodeTimelines(HprofData hprofData) {
+        Map<List<Integer>, StackTrace> idToStackTrace = new HashMap<List<Integer>, StackTrace>();
+        for (Sample sample : hprofData.getSamples()) {
+            StackTrace stackTrace = sample.stackTrace;
+            idToStackTrace.put(Arrays.asList(stackTrace.getThreadId(), stackTrace.stackTraceId),
+                               stackTrace);
+        }
+        Map<Integer, List<Object>> timelines = new HashMap<Integer, List<Object>>();
+        for (Map.Entry<Integer, Timeline> e : hprofData.getTimelines().entrySet()) {
+            List<Object> samples = new ArrayList<Object>();
+            Timeline.Cursor cursor = e.getValue().cursor();
+            while (cursor.next()) {
+                StackTrace stackTrace
+                        = idToStackTrace.get(Arrays.asList(e.getKey(), cursor.getStackTraceId()));
+                assertNotNull(stackTrace);
+                samples.add(cursor.getTimeMicros());
+                samples.add(stackTrace);
+            }
+            timelines.put(e.getKey(), samples);
+        }
+        return timelines;
+    }
+
+    public void test_Labels() throws Exception {
+        assertNull(Labels.of());
+        Labels labels = Labels.of("tenant", "acme", "route", "/checkout");
+        assertEquals(2, labels.size());
+        assertEquals("route", labels.getKey(0));
+        assertEquals("acme", labels.get("tenant"));
+        assertNull(labels.get("job"));
+        assertEquals("route=/checkout,tenant=acme", labels.toString());
+        assertEquals(labels, Labels.of("route", "/checkout", "tenant", "acme"));
+        assertEquals(Labels.of("route", "/checkout"), Labels.with(labels, "tenant", null));
+        assertNull(Labels.with(Labels.of("route", "/checkout"), "route", null));
+        try {
+            Labels.of("route", "/a", "route", "/b");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            Labels.of("route");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+
+        assertNull(Labels.current());
+        Labels.Scope outer = Labels.push("route", "/checkout");
+        Labels.Scope inner = Labels.push("tenant", "acme");
+        assertEquals(labels, Labels.current());
+        Labels.Scope removed = Labels.push("route", null);
+        assertEquals(Labels.of("tenant", "acme"), Labels.current());
+        removed.close();
+        inner.close();
+        assertEquals(Labels.of("route", "/checkout"), Labels.current());
+        outer.close();
+        assertNull(Labels.current());
+    }
+
+    public void test_SamplingProfiler_labels() throws Exception {
+        final CountDownLatch labelled = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread worker = new Thread("worker") {
+            @Override public void run() {
+                Labels.Scope scope = Labels.push("route", "/checkout");
+                try {
+                    labelled.countDown();
+                    done.await();
+                } catch (InterruptedException ignored) {
+                } finally {
+                    scope.close();
+                }
+            }
+        };
+        worker.start();
+        labelled.await();
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(Thread.currentThread(),
+                                                                 worker);
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        profiler.start(1);
+        Labels.Scope scope = Labels.push("route", "/search");
+        try {
+            // until both threads have been sampled with their labels
+            long deadline = System.currentTimeMillis() + 10000;
+            do {
+                toBeMeasured();
+            } while (profiler.snapshot().filterByLabel("route", "/search").getSamples().isEmpty()
+                     && System.currentTimeMillis() < deadline);
+        } finally {
+            scope.close();
+        }
+        profiler.stop();
+        done.countDown();
+        worker.join();
+        profiler.shutdown();
+        HprofData hprofData = profiler.getHprofData();
+
+        Set<Labels> seen = new HashSet<Labels>();
+        for (Sample sample : hprofData.getSamples()) {
+            seen.add(sample.stackTrace.getLabels());
+        }
+        assertTrue(seen.contains(Labels.of("route", "/checkout")));
+        assertTrue(seen.contains(Labels.of("route", "/search")));
+
+        HprofData checkout = hprofData.filterByLabel("route", "/checkout");
+        assertFalse(checkout.getSamples().isEmpty());
+        for (Sample sample : checkout.getSamples()) {
+            assertEquals(Labels.of("route", "/checkout"), sample.stackTrace.getLabels());
+            assertFalse(HprofData.isLabelFrame(sample.stackTrace.getStackFrames()[
+                    sample.stackTrace.getStackFrames().length - 1]));
+        }
+        assertTrue(hprofData.filterByLabel("route", "/none").getSamples().isEmpty());
+        test_HprofData(hprofData, true);
+        test_HprofData(checkout, true);
+    }
+
+    public void test_ProfilerAgent_options() throws Exception {
+        ProfilerAgent.Options options = ProfilerAgent.Options.parse(null);
+        assertEquals(12, options.depth);
+        assertEquals(10000, options.intervalMicros);
+        options = ProfilerAgent.Options.parse("depth=4,interval=500us,threads=http-.*,"
+                                              + "output=out.hprof,signal=USR2,trigger=dump");
+        assertEquals(4, options.depth);
+        assertEquals(500, options.intervalMicros);
+        assertTrue(options.threads.matcher("http-1").matches());
+        assertEquals(new File("out.hprof"), options.output);
+        assertEquals("USR2", options.signal);
+        assertEquals(new File("dump"), options.trigger);
+        assertEquals(2000000, ProfilerAgent.Options.parse("interval=2s").intervalMicros);
+        assertEquals(7000, ProfilerAgent.Options.parse("interval=7").intervalMicros);
+        String[] bad = { "depth=0", "interval=1m", "interval=0ms", "depth", "color=red" };
+        for (String arguments : bad) {
+            try {
+                ProfilerAgent.Options.parse(arguments);
+                fail(arguments);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    public void test_ProfilerAgent() throws Exception {
+        File directory = File.createTempFile("agent", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        File output = new File(directory, "profile.hprof");
+        File trigger = new File(directory, "dump");
+        try {
+            ProfilerAgent agent = ProfilerAgent.start(
+                    "depth=8,interval=1ms,threads=" + Pattern.quote(Thread.currentThread().getName())
+                    + ",output=" + output + ",trigger=" + trigger);
+            toBeMeasured();
+            assertTrue(trigger.createNewFile());
+            long deadline = System.currentTimeMillis() + 10000;
+            while (trigger.exists() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertFalse(trigger.exists());
+            assertTrue(output.exists());
+            HprofData dumped = readHprof(output);
+            assertEquals(8, dumped.getDepth());
+
+            agent.shutdown();
+            HprofData hprofData = readHprof(output);
+            assertFalse(hprofData.getSamples().isEmpty());
+            assertEquals(agent.getProfiler().getHprofData().getSamples(),
+                         hprofData.getSamples());
+            for (Sample sample : hprofData.getSamples()) {
+                assertEquals(hprofData.getThreadHistory().get(0).threadId,
+                             sample.stackTrace.getThreadId());
+            }
+        } finally {
+            output.delete();
+            trigger.delete();
+            directory.delete();
+        }
+    }
+
+    private static HprofData readHprof(File file) throws Exception {
+        InputStream in = new FileInputStream(file);
+        try {
+            BinaryHprofReader reader = new BinaryHprofReader(in);
+            reader.read();
+            return reader.getHprofData();
+        } finally {
+            in.close();
+        }
+    }
+
+    public void test_BurstProfiler() throws Exception {
+        File directory = File.createTempFile("bursts", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(Thread.currentThread());
+        BurstProfiler burstProfiler = new BurstProfiler(12, threadSet);
+        try {
+            burstProfiler.setBurst(200, TimeUnit.MILLISECONDS, 1, TimeUnit.MILLISECONDS);
+            burstProfiler.setLatencyThreshold(100, TimeUnit.MILLISECONDS);
+            burstProfiler.setBurstDirectory(directory);
+            burstProfiler.reportLatency(50, TimeUnit.MILLISECONDS);
+            assertEquals(0, burstProfiler.getTriggerCount());
+            burstProfiler.reportLatency(150, TimeUnit.MILLISECONDS);
+            assertEquals(1, burstProfiler.getTriggerCount());
+            assertTrue(burstProfiler.isBursting());
+            // ignored while bursting
+            assertFalse(burstProfiler.trigger("again"));
+            awaitBursts(burstProfiler, 1);
+            // and while cooling down
+            assertFalse(burstProfiler.trigger("again"));
+            assertEquals(2, burstProfiler.getIgnoredTriggerCount());
+
+            HprofData burst = burstProfiler.getBursts().get(0);
+            assertEquals("latency 150ms >= 100ms", burst.getTriggerReason());
+            assertFalse(burst.getSamples().isEmpty());
+            assertEquals(1000, burst.getIntervalMicros());
+            File[] files = directory.listFiles();
+            assertEquals(1, files.length);
+            HprofData written = readHprof(files[0]);
+            assertEquals(burst.getTriggerReason(), written.getTriggerReason());
+            assertEquals(burst.getSamples(), written.getSamples());
+            test_HprofData(burst, true);
+        } finally {
+            burstProfiler.shutdown();
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+
+        // process CPU threshold, which any busy thread exceeds
+        burstProfiler = new BurstProfiler(12, threadSet);
+        try {
+            try {
+                burstProfiler.setCpuThreshold(0.000001);
+            } catch (UnsupportedOperationException e) {
+                return;
+            }
+            burstProfiler.setBurst(100, TimeUnit.MILLISECONDS, 1, TimeUnit.MILLISECONDS);
+            burstProfiler.setPollInterval(20, TimeUnit.MILLISECONDS);
+            burstProfiler.start();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (burstProfiler.getBursts().isEmpty()
+                   && System.currentTimeMillis() < deadline) {
+                toBeMeasured();
+            }
+            burstProfiler.stop();
+            assertFalse(burstProfiler.getBursts().isEmpty());
+            assertTrue(burstProfiler.getBursts().get(0).getTriggerReason().startsWith("cpu "));
+        } finally {
+            burstProfiler.shutdown();
+        }
+    }
+
+    private static void awaitBursts(BurstProfiler burstProfiler, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (burstProfiler.getBursts().size() < count
+               && System.currentTimeMillis() < deadline) {
+            toBeMeasured();
+        }
+        assertEquals(count, burstProfiler.getBursts().size());
+        assertFalse(burstProfiler.isBursting());
+    }
+
+    public void test_HprofDiff() throws Exception {
+        StackTraceElement run = new StackTraceElement("Main", "run", "Main.java", 10);
+        StackTraceElement[] hot = new StackTraceElement[] {
+            new StackTraceElement("Hot", "loop", "Hot.java", 20), run };
+        StackTraceElement[] cold = new StackTraceElement[] {
+            new StackTraceElement("Cold", "loop", "Cold.java", 30), run };
+
+        HprofData before = new HprofData(new HashMap<StackTrace, long[]>());
+        before.addThreadEvent(ThreadEvent.start(1, 1, "one", null, null));
+        before.addStackTrace(new StackTrace(1, 1, hot), new long[] { 900 });
+        before.addStackTrace(new StackTrace(2, 1, cold), new long[] { 100 });
+
+        // same stacks on different threads with different ids, twice
+        // as many samples in total
+        HprofData after = new HprofData(new HashMap<StackTrace, long[]>());
+        after.addThreadEvent(ThreadEvent.start(5, 5, "five", null, null));
+        after.addThreadEvent(ThreadEvent.start(6, 6, "six", null, null));
+        after.addStackTrace(new StackTrace(7, 5, hot), new long[] { 600 });
+        after.addStackTrace(new StackTrace(8, 6, hot), new long[] { 600 });
+        after.addStackTrace(new StackTrace(9, 6, cold), new long[] { 800 });
+
+        HprofDiff diff = HprofDiff.compare(before, after);
+        assertEquals(1000.0, diff.getBeforeTotal());
+        assertEquals(2000.0, diff.getAfterTotal());
+        assertEquals(2, diff.getStackDeltas().size());
+        List<HprofDiff.Delta> stacks = HprofDiff.largest(diff.getStackDeltas(), 1);
+        assertEquals(1, stacks.size());
+        assertEquals(0.3, Math.abs(stacks.get(0).getDelta()), 1e-9);
+        for (HprofDiff.Delta delta : diff.getStackDeltas()) {
+            boolean isHot = Arrays.equals(hot, delta.stackTrace.stackFrames);
+            assertEquals(isHot ? "Hot.loop" : "Cold.loop", delta.method);
+            assertEquals(isHot ? -0.3 : 0.3, delta.getDelta(), 1e-9);
+            assertEquals(isHot ? 1200.0 : 800.0, delta.afterCount);
+            assertTrue(Math.abs(delta.zScore) > 3);
+        }
+        assertEquals(2, diff.getSelfMethodDeltas().size());
+        for (HprofDiff.Delta delta : diff.getTotalMethodDeltas()) {
+            if (delta.method.equals("Main.run")) {
+                assertEquals(0.0, delta.getDelta(), 1e-9);
+                assertEquals(0.0, delta.zScore, 1e-9);
+            }
+        }
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        diff.writeText(text, 10);
+        assertTrue(text.toString().contains("Cold.loop"));
+        assertTrue(text.toString().contains("+30.00%"));
+
+        // signed parts per million round trip through binary hprof
+        HprofData delta = diff.toHprofData();
+        assertEquals(HprofData.CountUnit.DELTA_PPM, delta.getCountUnit());
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (Sample sample : delta.getSamples()) {
+            counts.put(sample.stackTrace.stackFrames[0].getClassName(), sample.count);
+        }
+        assertEquals(Long.valueOf(-300000), counts.get("Hot"));
+        assertEquals(Long.valueOf(300000), counts.get("Cold"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryHprofWriter.write(delta, out);
+        BinaryHprofReader reader
+                = new BinaryHprofReader(new ByteArrayInputStream(out.toByteArray()));
+        reader.setStrict(true);
+        reader.read();
+        assertEquals(delta.getSamples(), reader.getHprofData().getSamples());
+        assertEquals(HprofData.CountUnit.DELTA_PPM, reader.getHprofData().getCountUnit());
+        ByteArrayOutputStream ascii = new ByteArrayOutputStream();
+        AsciiHprofWriter.write(delta, ascii);
+        assertTrue(ascii.toString().contains("CPU SAMPLES DELTA (ppm) BEGIN"));
+
+        // a profile compared with itself has no changes
+        assertEquals(0, HprofDiff.compare(after, after).toHprofData().getSamples().size());
+
+        HprofData cpuTime = new HprofData(new HashMap<StackTrace, long[]>());
+        cpuTime.setCountUnit(HprofData.CountUnit.CPU_NANOS);
+        try {
+            HprofDiff.compare(before, cpuTime);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void test_RateController() throws Exception {
+        long minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        RateController rateController = new RateController(minIntervalNanos, 0.01);
+        assertEquals(minIntervalNanos, rateController.getIntervalNanos());
+        // cheap ticks stay at the minimum interval
+        assertEquals(minIntervalNanos, rateController.tick(TimeUnit.MICROSECONDS.toNanos(5)));
+        // 100us per tick at 1% needs 10ms between ticks
+        for (int i = 0; i < 100; i++) {
+            rateController.tick(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        long intervalNanos = rateController.getIntervalNanos();
+        assertTrue(intervalNanos > TimeUnit.MILLISECONDS.toNanos(9));
+        assertTrue(intervalNanos <= TimeUnit.MILLISECONDS.toNanos(10));
+        try {
+            new RateController(minIntervalNanos, 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void test_SamplingProfiler_overheadBudget() throws Exception {
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(Thread.currentThread());
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        try {
+            profiler.setOverheadBudget(1.5);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        // a budget so small that even the cheapest tick needs a far
+        // longer interval than requested
+        profiler.setOverheadBudget(0.00001);
+        assertEquals(0.00001, profiler.getOverheadBudget());
+        profiler.start(1);
+        // long enough for the effective interval to exceed its bound
+        // even if only the first tick is taken
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        while (System.nanoTime() < end) {
+            toBeMeasured();
+        }
+        profiler.stop();
+        profiler.shutdown();
+        HprofData hprofData = profiler.getHprofData();
+        assertEquals(1000, hprofData.getIntervalMicros());
+        assertTrue(hprofData.getTicks() > 0);
+        assertTrue(hprofData.getEffectiveIntervalMicros() > 10 * hprofData.getIntervalMicros());
+        test_HprofData(hprofData, true);
+    }
+
+    public void test_SamplingProfiler_windows() throws Exception {
+        File directory = File.createTempFile("windows", null);
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        try {
+            ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(Thread.currentThread());
+            SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+            profiler.setWindows(20, TimeUnit.MILLISECONDS, 2);
+            profiler.setWindowDirectory(directory);
+            profiler.start(1);
+            toBeMeasured();
+            HprofData last = profiler.rotateWindow();
+            profiler.stop();
+            try {
+                profiler.setWindows(1, TimeUnit.SECONDS, 1);
+            } finally {
+                profiler.shutdown();
+            }
+
+            // only the most recent window is kept after shrinking
+            List<HprofData> windows = profiler.getWindows();
+            assertEquals(1, windows.size());
+            assertTrue(windows.get(0).getStartMillis() >= last.getStartMillis());
+            test_HprofData(last, true);
+            test_HprofData(profiler.getHprofData(), true);
+
+            File[] files = directory.listFiles();
+            assertTrue(files.length >= 1);
+            for (File file : files) {
+                InputStream in = new FileInputStream(file);
+                BinaryHprofReader reader = new BinaryHprofReader(in);
+                reader.read();
+                in.close();
+                assertHprofData(reader.getHprofData(), true);
+            }
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    public void test_SamplingProfiler_filteredThreadSets() throws Exception {
+        ThreadGroup threadGroup = new ThreadGroup("filtered");
+        ThreadGroup childGroup = new ThreadGroup(threadGroup, "child");
+        final Object lock = new Object();
+        Runnable waiter = new Runnable() {
+            public void run() {
+                synchronized (lock) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        };
+        Thread worker = new Thread(threadGroup, waiter, "worker-1");
+        Thread other = new Thread(childGroup, waiter, "other");
+        worker.start();
+        other.start();
+        Thread late = new Thread(childGroup, waiter, "worker-2");
+        try {
+            ThreadSet all = SamplingProfiler.newThreadGroupTheadSet(threadGroup);
+            assertEquals(new HashSet<Thread>(Arrays.asList(worker, other)),
+                         nonNullThreads(all.threads()));
+
+            ThreadSet byName = SamplingProfiler.newThreadNameThreadSet(
+                    threadGroup, Pattern.compile("worker-.*"));
+            Thread[] threads = byName.threads();
+            assertEquals(Collections.singleton(worker), nonNullThreads(threads));
+            // membership is cached while no threads come and go
+            assertSame(threads, byName.threads());
+            assertEquals(Collections.singleton(worker), nonNullThreads(byName.threads()));
+
+            late.start();
+            assertEquals(new HashSet<Thread>(Arrays.asList(worker, late)),
+                         nonNullThreads(byName.threads()));
+
+            ThreadSet filtered = SamplingProfiler.newFilteredThreadSet(
+                    childGroup, new SamplingProfiler.ThreadFilter() {
+                        public boolean accept(Thread thread) {
+                            return !thread.getName().startsWith("worker-");
+                        }
+                    });
+            assertEquals(Collections.singleton(other), nonNullThreads(filtered.threads()));
+
+            other.interrupt();
+            other.join();
+            assertEquals(Collections.<Thread>emptySet(), nonNullThreads(filtered.threads()));
+        } finally {
+            worker.interrupt();
+            other.interrupt();
+            late.interrupt();
+            worker.join();
+            other.join();
+            late.join();
+        }
+    }
+
+    public void test_SamplingProfiler_truncation() throws Exception {
+        final Object lock = new Object();
+        Thread deep = new Thread("deep") {
+            @Override public void run() {
+                recurse(20);
+            }
+            private void recurse(int depth) {
+                if (depth > 0) {
+                    recurse(depth - 1);
+                    return;
+                }
+                synchronized (lock) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        };
+        deep.start();
+        try {
+            while (deep.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(deep);
+
+            SamplingProfiler profiler = new SamplingProfiler(4, threadSet);
+            profiler.setRootDepth(2);
+            assertTrue(profiler.getMarkTruncation());
+            profiler.start(1);
+            Thread.sleep(20);
+            profiler.stop();
+            try {
+                profiler.setRootDepth(1);
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+            profiler.shutdown();
+            HprofData hprofData = profiler.getHprofData();
+            assertEquals(7, hprofData.getDepth());
+            assertFalse(hprofData.getSamples().isEmpty());
+            for (Sample sample : hprofData.getSamples()) {
+                StackTraceElement[] frames = sample.stackTrace.getStackFrames();
+                assertTrue(sample.stackTrace.isTruncated());
+                assertEquals(7, frames.length);
+                assertEquals(HprofData.TRUNCATED_FRAME, frames[4]);
+                assertEquals("run", frames[6].getMethodName());
+                assertEquals("recurse", frames[5].getMethodName());
+            }
+            // the marker, and with it the flag, survives a round trip
+            test_HprofData(hprofData, true);
+
+            profiler = new SamplingProfiler(4, threadSet);
+            profiler.setMarkTruncation(true);
+            profiler.start(1);
+            Thread.sleep(20);
+            profiler.stop();
+            profiler.shutdown();
+            hprofData = profiler.getHprofData();
+            assertEquals(5, hprofData.getDepth());
+            for (Sample sample : hprofData.getSamples()) {
+                StackTraceElement[] frames = sample.stackTrace.getStackFrames();
+                assertEquals(5, frames.length);
+                assertEquals(HprofData.TRUNCATED_FRAME, frames[4]);
+            }
+            test_HprofData(hprofData, true);
+        } finally {
+            deep.interrupt();
+            deep.join();
+        }
+    }
+
+    /**
+     * Sample a thread set that changes on every tick, growing,
+     * shrinking and reordering, and check that each thread id is
+     * started exactly once and ended at most once, after its start.
+     */
+    public void test_SamplingProfiler_threadChurn() throws Exception {
+        final Thread[] pool = new Thread[10];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = new Thread("churn-" + i);
+        }
+        final Thread[][] configurations = {
+            pool,
+            { pool[0], null, null },
+            { pool[1], pool[0] },
+            {},
+            { pool[0], pool[2], pool[4], pool[6], pool[8] },
+            { pool[8], pool[6], pool[4], pool[2], pool[0], pool[1] },
+            { pool[3], pool[3] },
+        };
+        ThreadSet threadSet = new ThreadSet() {
+            private int calls;
+            public Thread[] threads() {
+                return configurations[calls++ % configurations.length];
+            }
+        };
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        profiler.start(1, TimeUnit.MILLISECONDS);
+        while (profiler.getStats().getTicks() < 3 * configurations.length) {
+            Thread.sleep(1);
+        }
+        profiler.stop();
+        profiler.shutdown();
+        HprofData hprofData = profiler.getHprofData();
+        Map<Integer, ThreadEvent> started = new HashMap<Integer, ThreadEvent>();
+        Set<Integer> ended = new HashSet<Integer>();
+        for (ThreadEvent event : hprofData.getThreadHistory()) {
+            switch (event.type) {
+                case START:
+                    assertNull(started.put(event.threadId, event));
+                    break;
+                case END:
+                    assertTrue(started.containsKey(event.threadId));
+                    assertTrue(ended.add(event.threadId));
+                    break;
+            }
+        }
+        // a thread leaving and rejoining the set is restarted
+        assertTrue(started.size() > pool.length);
+        test_HprofData(hprofData, true);
+    }
+
+    /**
+     * Returns the threads of a ThreadSet result, asserting that the
+     * null padding only comes after them.
+     */
+    private static Set<Thread> nonNullThreads(Thread[] threads) {
+        Set<Thread> result = new HashSet<Thread>();
+        boolean end = false;
+        for (Thread thread : threads) {
+            if (thread == null) {
+                end = true;
+            } else {
+                assertFalse(end);
+                result.add(thread);
+            }
+        }
+        return result;
+    }
+
+    public void test_ProfilerStats_Histogram() throws Exception {
+        ProfilerStats.Histogram histogram = new ProfilerStats.Histogram();
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0.0, histogram.getMean());
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        histogram.record(0, 3);
+        assertEquals(103, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(100, histogram.getMax());
+        // buckets are powers of two, so percentiles are upper bounds
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 50 && p50 < 100);
+        assertEquals(100, histogram.getPercentile(100));
+        assertEquals(0, histogram.getPercentile(0));
+        try {
+            histogram.getPercentile(101);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        ProfilerStats.Histogram copy = new ProfilerStats.Histogram(histogram);
+        histogram.clear();
+        assertEquals(0, histogram.getCount());
+        assertEquals(103, copy.getCount());
+    }
+
+    public void test_SamplingProfiler_stats() throws Exception {
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(Thread.currentThread());
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        profiler.setCaptureWorkers(2);
+        profiler.start(1);
+        toBeMeasured();
+        ProfilerStats running = profiler.getStats();
+        profiler.stop();
+        ProfilerStats stats = profiler.getStats();
+        profiler.shutdown();
+        HprofData hprofData = profiler.getHprofData();
+
+        assertTrue(running.getTicks() > 0);
+        assertTrue(stats.getTicks() >= running.getTicks());
+        assertEquals(hprofData.getTicks(), stats.getTicks());
+        assertEquals(hprofData.getMissedTicks(), stats.getMissedTicks());
+        assertTrue(stats.getTickNanos().getMax() > 0);
+        assertTrue(stats.getThreadNanos().getCount() >= stats.getThreadsPerTick().getSum());
+        assertEquals(1, stats.getThreadsPerTick().getMax());
+        assertEquals(hprofData.getSamples().size(), stats.getDistinctStacks());
+        assertTrue(stats.getDistinctFrames() > 0);
+        assertTrue(stats.getRetainedBytes() > 0);
+        assertNotNull(stats.toString());
+    }
+
+    /**
+     * Check the VirtualThreadSet on any VM, and if virtual threads
+     * are supported, that samples of many virtual threads of one task
+     * are reported as a single thread.
+     */
+    public void test_VirtualThreadSet() throws Exception {
+        ThreadSet platformThreads = SamplingProfiler.newArrayThreadSet(Thread.currentThread());
+        VirtualThreadSet threadSet = new VirtualThreadSet(platformThreads);
+        assertFalse(VirtualThreadSet.isVirtual(Thread.currentThread()));
+        assertSame(Thread.currentThread(), threadSet.threads()[0]);
+        assertEquals(VirtualThreadSet.DEFAULT_TASK, threadSet.getTask(Thread.currentThread()));
+        try {
+            threadSet.register(Thread.currentThread(), "task");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        if (!VirtualThreadSet.isSupported()) {
+            try {
+                VirtualThreadSet.newVirtualThreadFactory();
+                fail();
+            } catch (UnsupportedOperationException expected) {
+            }
+            return;
+        }
+
+        ThreadFactory threadFactory
+                = threadSet.wrap(VirtualThreadSet.newVirtualThreadFactory(), "task");
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        profiler.start(1);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = threadFactory.newThread(new Runnable() {
+                public void run() {
+                    try {
+                        toBeMeasured();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            assertTrue(VirtualThreadSet.isVirtual(threads[i]));
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        profiler.stop();
+        profiler.shutdown();
+        HprofData hprofData = profiler.getHprofData();
+        Set<Integer> taskThreadIds = new HashSet<Integer>();
+        for (ThreadEvent event : hprofData.getThreadHistory()) {
+            if ("task".equals(event.threadName)) {
+                taskThreadIds.add(event.threadId);
+            } else {
+                assertFalse(taskThreadIds.contains(event.threadId));
+            }
+        }
+        // the task never ends however many threads came and went
+        assertEquals(1, taskThreadIds.size());
+        test_HprofData(hprofData, true);
+    }
+
     public void test_HprofData_null() throws Exception {
         try {
             new HprofData(null);
@@ -89,13 +1842,13 @@ public class SamplingProfilerTest extends TestCase {
     }
 
     public void test_HprofData_empty() throws Exception {
-        Map<StackTrace, int[]> stackTraces = new HashMap<StackTrace, int[]>();
+        Map<StackTrace, long[]> stackTraces = new HashMap<StackTrace, long[]>();
         HprofData hprofData = new HprofData(stackTraces);
         test_HprofData(hprofData, true);
     }
 
     public void test_HprofData_timeMillis() throws Exception {
-        Map<StackTrace, int[]> stackTraces = new HashMap<StackTrace, int[]>();
+        Map<StackTrace, long[]> stackTraces = new HashMap<StackTrace, long[]>();
         HprofData hprofData = new HprofData(stackTraces);
         long now = System.currentTimeMillis();
         hprofData.setStartMillis(now);
@@ -103,8 +1856,20 @@ public class SamplingProfilerTest extends TestCase {
         test_HprofData(hprofData, true);
     }
 
+    public void test_HprofData_ticks() throws Exception {
+        Map<StackTrace, long[]> stackTraces = new HashMap<StackTrace, long[]>();
+        HprofData hprofData = new HprofData(stackTraces);
+        hprofData.setIntervalMicros(250);
+        hprofData.setTicks(1000);
+        hprofData.setMissedTicks(7);
+        assertEquals(250, hprofData.getIntervalMicros());
+        assertEquals(1000, hprofData.getTicks());
+        assertEquals(7, hprofData.getMissedTicks());
+        test_HprofData(hprofData, true);
+    }
+
     public void test_HprofData_addThreadEvent_null() throws Exception {
-        Map<StackTrace, int[]> stackTraces = new HashMap<StackTrace, int[]>();
+        Map<StackTrace, long[]> stackTraces = new HashMap<StackTrace, long[]>();
         HprofData hprofData = new HprofData(stackTraces);
         try {
             hprofData.addThreadEvent(null);
@@ -115,7 +1880,7 @@ public class SamplingProfilerTest extends TestCase {
     }
 
     public void test_HprofData_addThreadEvent() throws Exception {
-        Map<StackTrace, int[]> stackTraces = new HashMap<StackTrace, int[]>();
+        Map<StackTrace, long[]> stackTraces = new HashMap<StackTrace, long[]>();
         HprofData hprofData = new HprofData(stackTraces);
 
         // should have nothing in the thread history to start
@@ -153,7 +1918,7 @@ public class SamplingProfilerTest extends TestCase {
     }
 
     public void test_HprofData_addStackTrace() throws Exception {
-        Map<StackTrace, int[]> stackTraces = new HashMap<StackTrace, int[]>();
+        Map<StackTrace, long[]> stackTraces = new HashMap<StackTrace, long[]>();
         HprofData hprofData = new HprofData(stackTraces);
 
         // should have no samples to start
@@ -165,7 +1930,7 @@ public class SamplingProfilerTest extends TestCase {
         final int objectId = 3;
         final int sampleCount = 4;
         StackTraceElement[] stackFrames = new Throwable().getStackTrace();
-        final int[] countCell = new int[] { 4 };
+        final long[] countCell = new long[] { 4 };
         StackTrace stackTrace = new StackTrace(stackTraceId, threadId, stackFrames);
         try {
             hprofData.addStackTrace(stackTrace, countCell);
@@ -301,9 +2066,26 @@ public class SamplingProfilerTest extends TestCase {
                      Long.toHexString(parsed.getFlags()));
         assertEquals(Long.toHexString(hprofData.getDepth()),
                      Long.toHexString(parsed.getDepth()));
+        assertEquals(hprofData.getIntervalMicros(), parsed.getIntervalMicros());
+        assertEquals(hprofData.getEffectiveIntervalMicros(),
+                     parsed.getEffectiveIntervalMicros());
+        assertEquals(hprofData.getTicks(), parsed.getTicks());
+        assertEquals(hprofData.getMissedTicks(), parsed.getMissedTicks());
+        assertEquals(hprofData.getMaxCountError(), parsed.getMaxCountError());
+        assertEquals(hprofData.getCountUnit(), parsed.getCountUnit());
         assertEquals(hprofData.getThreadHistory(),
                      parsed.getThreadHistory());
         assertEquals(hprofData.getSamples(),
                      parsed.getSamples());
+        assertEquals(hprofData.getAllocIntervalBytes(), parsed.getAllocIntervalBytes());
+        assertEquals(hprofData.getTriggerReason(), parsed.getTriggerReason());
+        assertEquals(hprofData.getAllocSites(),
+                     parsed.getAllocSites());
+        assertEquals(hprofData.getHeapSummaries(),
+                     parsed.getHeapSummaries());
+        assertEquals(hprofData.getLockSites(),
+                     parsed.getLockSites());
+        assertEquals(decodeTimelines(hprofData),
+                     decodeTimelines(parsed));
     }
 }